@@ -2,6 +2,7 @@ package com.strumcode.endb.backend;
 
 import com.strumcode.endb.backend.server.Server;
 import com.strumcode.endb.backend.dm.DataManager;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
 import com.strumcode.endb.backend.tbm.TableManager;
 import com.strumcode.endb.backend.tm.TransactionManager;
 import com.strumcode.endb.backend.utils.Panic;
@@ -15,6 +16,7 @@ public class Launcher {
     public static final int port = 9999;
 
     public static final long DEFALUT_MEM = (1<<20)*64;
+    public static final int DEFAULT_AUTOVACUUM = 0;                 // 秒，0 表示不自动 VACUUM，需要时用 -autovacuum 打开
     public static final long KB = 1 << 10;
 	public static final long MB = 1 << 20;
 	public static final long GB = 1 << 30;
@@ -24,37 +26,121 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("io", true, "-io channel|mmap|direct");
+        options.addOption("segmented", false, "-segmented");
+        options.addOption("compress", false, "-compress");
+        options.addOption("pagesize", true, "-pagesize 8KB");
+        options.addOption("indexshare", true, "-indexshare 20");
+        options.addOption("heapshare", true, "-heapshare 0");
+        options.addOption("autovacuum", true, "-autovacuum 60 (default 0, off)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            int[] shares = new int[PageCache.POOLS];
+            shares[PageCache.POOL_HEAP] = parseShare(cmd.getOptionValue("heapshare"), 0);
+            shares[PageCache.POOL_INDEX] = parseShare(cmd.getOptionValue("indexshare"), PageCache.DEFAULT_INDEX_SHARE);
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), parseIo(cmd.getOptionValue("io")), shares,
+                    parseAutoVacuum(cmd.getOptionValue("autovacuum")));
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseIo(cmd.getOptionValue("io")), cmd.hasOption("segmented"), cmd.hasOption("compress"), parsePageSize(cmd.getOptionValue("pagesize")));
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, int io, boolean segmented, boolean compressed, int pageSize) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, io, segmented, compressed, pageSize, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    // shares 是各分区保留的缓冲池百分比，下标为 PageCache.POOL_HEAP、POOL_INDEX
+    // autoVacuum 是后台 VACUUM 的间隔秒数，0 表示不启动
+    private static void openDB(String path, long mem, int io, int[] shares, int autoVacuum) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, io, tm);
+        try {
+            // 先设置索引分区，它有默认值，调小之后才给堆分区腾得出份额
+            dm.setPoolShare(PageCache.POOL_INDEX, shares[PageCache.POOL_INDEX]);
+            dm.setPoolShare(PageCache.POOL_HEAP, shares[PageCache.POOL_HEAP]);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        if(autoVacuum > 0) {
+            tbm.startAutoVacuum(autoVacuum);
+        }
         new Server(port, tbm).start();
     }
 
+    private static int parseIo(String ioStr) {
+        if(ioStr == null || "".equals(ioStr) || "channel".equals(ioStr)) {
+            return PageCache.IO_CHANNEL;
+        }
+        if("mmap".equals(ioStr)) {
+            return PageCache.IO_MMAP;
+        }
+        if("direct".equals(ioStr)) {
+            return PageCache.IO_DIRECT;
+        }
+        Panic.panic(Error.InvalidIoException);
+        return PageCache.IO_CHANNEL;
+    }
+
+    // 页大小，4KB、8KB、16KB 或 32KB
+    private static int parsePageSize(String sizeStr) {
+        if(sizeStr == null || "".equals(sizeStr)) {
+            return PageCache.DEFAULT_PAGE_SIZE;
+        }
+        int size = 0;
+        if(sizeStr.endsWith("KB")) {
+            try {
+                size = Integer.parseInt(sizeStr.substring(0, sizeStr.length()-2)) * (int)KB;
+            } catch(NumberFormatException e) {
+                Panic.panic(Error.InvalidPageSizeException);
+            }
+        }
+        if(!PageCache.isValidPageSize(size)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return size;
+    }
+
+    private static int parseShare(String shareStr, int defaultShare) {
+        if(shareStr == null || "".equals(shareStr)) {
+            return defaultShare;
+        }
+        try {
+            return Integer.parseInt(shareStr);
+        } catch(NumberFormatException e) {
+            Panic.panic(Error.InvalidPoolShareException);
+        }
+        return defaultShare;
+    }
+
+    private static int parseAutoVacuum(String secStr) {
+        if(secStr == null || "".equals(secStr)) {
+            return DEFAULT_AUTOVACUUM;
+        }
+        int sec = -1;
+        try {
+            sec = Integer.parseInt(secStr);
+        } catch(NumberFormatException e) {
+            Panic.panic(Error.InvalidAutoVacuumException);
+        }
+        if(sec < 0) {
+            Panic.panic(Error.InvalidAutoVacuumException);
+        }
+        return sec;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
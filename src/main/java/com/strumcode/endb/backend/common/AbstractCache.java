@@ -2,121 +2,677 @@ package com.strumcode.endb.backend.common;
 
 import com.strumcode.endb.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ *
+ * 默认情况下，资源的引用计数归零时立即被驱逐（写回）；
+ * 以 resident = true 构造时则是缓冲池模式：引用归零的资源仍然常驻缓存，只有在需要腾出位置时，才驱逐一个未被引用的资源并写回。
+ *
+ * 缓冲池模式的驱逐策略是 2Q 的一个 CLOCK 近似，用来抵抗全表扫描：
+ * 第一次加载的资源是冷的（相当于 2Q 的 A1in），冷资源超过分段的 1/COLD_SHARE 时优先驱逐冷资源，被驱逐的冷资源的 key 记进幽灵队列（A1out）；
+ * 缺失的 key 在幽灵队列中时说明它在不久前被用过又被挤出去了，这次以热资源（Am）的身份加载。热资源之间仍然按 CLOCK 驱逐。
+ * 这样一次扫描带进来的页只会在冷区里互相替换，不会把反复使用的热页挤出去。
+ *
+ * 缓存按 key 分成 SEGMENTS 个分段，每个分段各有一把锁，不同 key 的访问基本不会互相竞争。
+ * 同一个 key 同时只会被一个线程加载，其余线程等待该 key 的加载 future 完成（而不是轮询）。
+ * 每个分段的数据放在一张 LongSlotMap 里，值、引用计数、加载状态和 CLOCK 访问位在同一个槽位中，访问缓存不会装箱。
+ *
+ * 缓冲池模式下最大资源数可以用 resize() 在线调整，见 resize。
+ *
+ * 资源可以分属不同的分区（partition），由 get 的调用方指定，每个分区可以保留一定份额的位置：
+ * 分区的资源数不超过保留份额时，别的分区缺失不会驱逐它的资源（实在找不到别的可驱逐的资源时除外）。每个分区分别统计命中和缺失次数。
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
 
-    private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;                                  // 为了应对多线程场景，在对以上公共内容修改时都要获得锁
+    private static final byte FLAG_REFERENCED = 1;          // CLOCK 访问位
+    private static final byte FLAG_HOT = 2;                 // 2Q 中属于热区
+    private static final int PARTITION_SHIFT = 2;           // 分区号放在 flags 的第 2、3 位
+    public static final int MAX_PARTITIONS = 4;
+    private static final int COLD_SHARE = 4;                // 冷区占分段的份额 1/4
+    private static final int RESERVE_RETRIES = 10;          // 缓冲池腾不出位置时最多等待重试的次数（每次 1ms）
 
-    public AbstractCache(int maxResource) {
+    // visitResident 给出的热度，按位组合
+    public static final int HEAT_REFERENCED = FLAG_REFERENCED;
+    public static final int HEAT_HOT = FLAG_HOT;
+
+    private Segment[] segments;
+
+    private volatile int maxResource;                   // 缓存的最大缓存资源数
+    private boolean resident;                           // 引用归零后是否继续常驻缓存
+    private AtomicInteger count;                        // 缓存中元素的个数（包括正在加载的）
+    private AtomicInteger evictHand;                    // 下一次从哪个分段开始找驱逐对象
+    private volatile int[] reservedShares;              // 每个分区保留的份额（百分比），写时复制
+
+    public AbstractCache(int maxResource, boolean resident) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.resident = resident;
+        this.count = new AtomicInteger(0);
+        this.evictHand = new AtomicInteger(0);
+        this.reservedShares = new int[MAX_PARTITIONS];
+        segments = new Segment[SEGMENTS];
+        // 幽灵队列总共记住 maxResource/2 个 key
+        int ghosts = Math.max(4, maxResource / SEGMENTS / 2);
+        for (int i = 0; i < SEGMENTS; i ++) {
+            segments[i] = new Segment(ghosts);
+        }
+    }
+
+    public AbstractCache(int maxResource) {
+        this(maxResource, false);
     }
 
     protected T get(long key) throws Exception {
+        return get(key, 0);
+    }
+
+    /**
+     * @param partition  资源缺失时归入的分区；已在缓存中的资源如果属于别的分区（比如预读进来的），改归这个分区
+     */
+    @SuppressWarnings("unchecked")
+    protected T get(long key, int partition) throws Exception {
+        Segment seg = segmentFor(key);
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            CompletableFuture<T> loading = null;
+            seg.lock.lock();
+            try {
+                LongSlotMap map = seg.map;
+                int slot = map.find(key);
+                if(slot >= 0 && map.state(slot) == LongSlotMap.READY) {
+                    // 资源在缓存中，直接返回
+                    int ref = map.refs(slot);
+                    if(ref == 0 && resident) {
+                        seg.unpinned --;
+                    }
+                    map.setRefs(slot, ref + 1);
+                    byte f = map.flags(slot);
+                    int p = partitionOf(f);
+                    if(p != partition) {
+                        seg.parts[p] --;
+                        seg.parts[partition] ++;
+                        f = (byte)((f & ~(3 << PARTITION_SHIFT)) | (partition << PARTITION_SHIFT));
+                    }
+                    map.setFlags(slot, (byte)(f | FLAG_REFERENCED));
+                    seg.hits[partition] ++;
+                    return (T)map.value(slot);
                 }
-                continue;
+                if(slot >= 0) {
+                    loading = (CompletableFuture<T>)map.value(slot);
+                }
+            } finally {
+                seg.lock.unlock();
             }
 
-            if(cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            if(loading != null) {
+                // 请求的资源正在被其他线程获取，等它加载完再重新查找
+                awaitQuietly(loading);
+                continue;
             }
 
-            // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
+            // 先占一个位置，缓存满时驱逐一个未被引用的资源，这一步不能持有分段锁
+            reserve(RESERVE_RETRIES, partition);
+
+            CompletableFuture<T> future;
+            seg.lock.lock();
+            try {
+                if(seg.map.find(key) >= 0) {
+                    // 占位期间已经有别的线程开始加载了
+                    count.decrementAndGet();
+                    continue;
+                }
+                future = new CompletableFuture<>();
+                int slot = seg.map.put(key, LongSlotMap.LOADING, future, 1);
+                byte f = (byte)(partition << PARTITION_SHIFT);
+                if(resident) {
+                    if(seg.forgetGhost(key)) {
+                        f |= FLAG_HOT;
+                    } else {
+                        seg.cold ++;
+                    }
+                }
+                seg.map.setFlags(slot, f);
+                seg.parts[partition] ++;
+                seg.misses[partition] ++;
+            } finally {
+                seg.lock.unlock();
             }
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
+            return load(seg, key, partition, future);
         }
+    }
 
+    private T load(Segment seg, long key, int partition, CompletableFuture<T> future) throws Exception {
         T obj = null;
         try {
-            obj = getForCache(key);
+            obj = getForCache(key, partition);
         } catch(Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            seg.removeLoading(key, resident);
+            seg.lock.unlock();
+            count.decrementAndGet();
+            future.completeExceptionally(e);
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
-        
+        seg.lock.lock();
+        int slot = seg.map.find(key);
+        seg.map.setValue(slot, obj);
+        seg.map.setState(slot, LongSlotMap.READY);
+        seg.map.setFlags(slot, (byte)(seg.map.flags(slot) | FLAG_REFERENCED));
+        seg.lock.unlock();
+        future.complete(obj);
         return obj;
     }
 
+    private void awaitQuietly(CompletableFuture<T> loading) {
+        try {
+            loading.join();
+        } catch(CompletionException ignored) {
+            // 加载失败时由等待者重新尝试
+        }
+    }
+
+    // 为 partition 分区的资源占一个位置，腾不出位置时最多等待重试 maxRetries 次
+    private void reserve(int maxRetries, int partition) throws Exception {
+        int retries = 0;
+        while(true) {
+            int c = count.get();
+            if(maxResource <= 0 || c < maxResource) {
+                if(count.compareAndSet(c, c+1)) {
+                    return;
+                }
+                continue;
+            }
+            if(!evictOne(partition)) {
+                // 缓冲池模式下资源可能只是被后台写回、预读暂时占着，稍等再试，一直腾不出来才算满
+                if(!resident || ++retries > maxRetries) {
+                    throw Error.CacheFullException;
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * 为 requester 分区从各个分段中轮流找一个引用为 0 的资源驱逐（requester 为 -1 时不代表任何分区）。
+     * 第一轮只看冷资源超出份额的分段，只驱逐其中的冷资源；第一轮没找到时，第二轮冷热都可以驱逐。
+     * 前两轮都不驱逐别的分区在保留份额以内的资源，都没找到时第三轮不再保留。
+     * 没有可驱逐的资源时返回 false
+     */
+    private boolean evictOne(int requester) {
+        if(!resident) {
+            return false;
+        }
+        int protect = protectedPartitions(requester);
+        int start = evictHand.getAndIncrement();
+        for(int round = 0; round < 3; round ++) {
+            if(round == 2 && protect == 0) {
+                break;
+            }
+            int mask = round < 2 ? protect : 0;
+            for(int i = 0; i < SEGMENTS; i ++) {
+                Segment seg = segments[(start + i) & (SEGMENTS - 1)];
+                seg.lock.lock();
+                try {
+                    if(seg.unpinned == 0) {
+                        continue;
+                    }
+                    boolean coldOnly = round == 0;
+                    if(coldOnly && seg.cold * COLD_SHARE <= seg.map.size()) {
+                        continue;
+                    }
+                    if(sweep(seg, coldOnly, mask)) {
+                        return true;
+                    }
+                } finally {
+                    seg.lock.unlock();
+                }
+            }
+        }
+        return false;
+    }
+
+    // 除 requester 以外、资源数没有超过保留份额的分区，按位返回。各分段的计数不加锁读，只是个近似
+    private int protectedPartitions(int requester) {
+        int[] shares = reservedShares;
+        int mask = 0;
+        for (int p = 0; p < MAX_PARTITIONS; p ++) {
+            if(p == requester || shares[p] == 0) {
+                continue;
+            }
+            if(getPartitionCount(p) <= (long)shares[p] * maxResource / 100) {
+                mask |= 1 << p;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * 在分段内用 CLOCK 算法找一个引用为 0 的资源驱逐（调用方持有分段锁）：
+     * 指针扫过的未引用资源如果访问位为 1，则清零访问位给它第二次机会，否则驱逐它。属于 protect 中的分区的资源跳过
+     */
+    private boolean sweep(Segment seg, boolean coldOnly, int protect) {
+        LongSlotMap map = seg.map;
+        // 有符合条件的未引用资源时，最多扫两圈一定能找到
+        for(int n = 2 * map.capacity(); n > 0; n --) {
+            int slot = seg.hand;
+            seg.hand = (slot + 1) & (map.capacity() - 1);
+            if(map.state(slot) != LongSlotMap.READY || map.refs(slot) != 0) {
+                continue;
+            }
+            byte f = map.flags(slot);
+            boolean hot = (f & FLAG_HOT) != 0;
+            if(coldOnly && hot) {
+                continue;
+            }
+            int p = partitionOf(f);
+            if((protect & (1 << p)) != 0) {
+                continue;
+            }
+            if((f & FLAG_REFERENCED) != 0) {
+                map.setFlags(slot, (byte)(f & ~FLAG_REFERENCED));
+                continue;
+            }
+            long key = map.key(slot);
+            evictAt(seg, slot);
+            if(!hot) {
+                seg.rememberGhost(key);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 驱逐 key 对应的资源，资源不在缓存中、正在加载或者还被引用着时什么也不做，返回是否驱逐了。只用于缓冲池模式。
+     * 这不是替换策略挑出来的驱逐（比如资源所依托的东西要回收了），被驱逐的 key 不记进幽灵队列
+     */
+    protected boolean evict(long key) {
+        if(!resident) {
+            return false;
+        }
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            int slot = seg.map.find(key);
+            if(slot < 0 || seg.map.state(slot) != LongSlotMap.READY || seg.map.refs(slot) != 0) {
+                return false;
+            }
+            evictAt(seg, slot);
+            return true;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    // 驱逐分段中一个引用为 0 的常驻资源（调用方持有分段锁）
+    @SuppressWarnings("unchecked")
+    private void evictAt(Segment seg, int slot) {
+        LongSlotMap map = seg.map;
+        byte f = map.flags(slot);
+        // 写回期间持有分段锁，避免其他线程在写回完成前从磁盘读到旧数据
+        releaseForCache((T)map.value(slot));
+        map.removeAt(slot);
+        seg.unpinned --;
+        seg.parts[partitionOf(f)] --;
+        seg.evictions ++;
+        if((f & FLAG_HOT) == 0) {
+            seg.cold --;
+        }
+        count.decrementAndGet();
+    }
+
+    /**
+     * 预读用：key 不在缓存中时先为它占一个正在加载的位置（不加引用），返回 true，之后必须调用 finishPreload 或 abortPreload。
+     * 占位期间其他线程 get 这个 key 会等待预读完成。key 已在缓存中，或者缓存满了腾不出位置时返回 false。只用于缓冲池模式
+     */
+    protected boolean beginPreload(long key) {
+        return beginPreload(key, false, 0);
+    }
+
+    /**
+     * hot 为 true 时资源直接进入热区，partition 是资源归入的分区，给重启后按上次关闭时的状态恢复缓存用
+     */
+    protected boolean beginPreload(long key, boolean hot, int partition) {
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            if(seg.map.find(key) >= 0) {
+                return false;
+            }
+        } finally {
+            seg.lock.unlock();
+        }
+        try {
+            // 预读只是优化，腾不出位置就放弃，不等待
+            reserve(0, partition);
+        } catch(Exception e) {
+            return false;
+        }
+        seg.lock.lock();
+        try {
+            if(seg.map.find(key) >= 0) {
+                count.decrementAndGet();
+                return false;
+            }
+            // 预读的资源默认是冷的，也不消耗幽灵队列里的记录，只有真正被访问过才算数
+            int slot = seg.map.put(key, LongSlotMap.LOADING, new CompletableFuture<T>(), 0);
+            byte f = (byte)(partition << PARTITION_SHIFT);
+            if(hot) {
+                f |= FLAG_HOT;
+            } else {
+                seg.cold ++;
+            }
+            seg.map.setFlags(slot, f);
+            seg.parts[partition] ++;
+            return true;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 预读完成，资源以未被引用的状态常驻缓存。不设置访问位，预读了却没有被用到的资源会先被驱逐
+     */
+    @SuppressWarnings("unchecked")
+    protected void finishPreload(long key, T obj) {
+        Segment seg = segmentFor(key);
+        CompletableFuture<T> future;
+        seg.lock.lock();
+        try {
+            int slot = seg.map.find(key);
+            future = (CompletableFuture<T>)seg.map.value(slot);
+            seg.map.setValue(slot, obj);
+            seg.map.setState(slot, LongSlotMap.READY);
+            seg.unpinned ++;
+        } finally {
+            seg.lock.unlock();
+        }
+        future.complete(obj);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void abortPreload(long key, Exception e) {
+        Segment seg = segmentFor(key);
+        CompletableFuture<T> future;
+        seg.lock.lock();
+        try {
+            future = (CompletableFuture<T>)seg.map.value(seg.map.find(key));
+            seg.removeLoading(key, true);
+        } finally {
+            seg.lock.unlock();
+        }
+        count.decrementAndGet();
+        future.completeExceptionally(e);
+    }
+
     /**
      * 减少缓存的引用计数一次，尝试刷回磁盘
      */
+    @SuppressWarnings("unchecked")
     protected void release(long key) {
-        lock.lock();
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
         try {
-            int ref = references.get(key)-1;
-            if(ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
-            } else {
-                references.put(key, ref);
+            LongSlotMap map = seg.map;
+            int slot = map.find(key);
+            int ref = map.refs(slot) - 1;
+            map.setRefs(slot, ref);
+            if(ref == 0 && resident) {
+                // 缓冲池模式下不立即驱逐，等待 CLOCK 指针扫到它
+                seg.unpinned ++;
+            } else if(ref == 0) {
+                releaseForCache((T)map.value(slot));
+                seg.parts[partitionOf(map.flags(slot))] --;
+                map.removeAt(slot);
+                count.decrementAndGet();
             }
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 在分段锁内依次把引用为 0 的常驻资源交给 visitor，visitor 返回 true 的资源会被加一次引用（之后需要调用 release 释放），
+     * 最多挑选 limit 个。visitor 执行期间别的线程无法引用该资源，可以安全地读取它的内容。返回挑选出的个数
+     */
+    @SuppressWarnings("unchecked")
+    protected int pinUnpinned(Predicate<T> visitor, int limit) {
+        int picked = 0;
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                LongSlotMap map = seg.map;
+                for (int slot = 0; slot < map.capacity() && seg.unpinned > 0; slot ++) {
+                    if(picked == limit) {
+                        return picked;
+                    }
+                    if(map.state(slot) != LongSlotMap.READY || map.refs(slot) != 0) {
+                        continue;
+                    }
+                    if(visitor.test((T)map.value(slot))) {
+                        map.setRefs(slot, 1);
+                        seg.unpinned --;
+                        picked ++;
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
         }
+        return picked;
+    }
+
+    /**
+     * 在线调整最大资源数，只用于缓冲池模式
+     * 调大立即生效，之后缺失的资源直接占用新的位置，不影响正在进行的访问；
+     * 调小时先降低上限，再在调用线程里逐个驱逐未被引用的资源（脏的会写回）直到降到新的上限以下，每次只持有一个分段的锁，不阻塞其他访问。
+     * 被引用着的资源驱逐不了，超出的部分留给之后的 reserve 在缺失时继续驱逐。返回这次驱逐的个数
+     */
+    protected int resize(int newMaxResource) {
+        maxResource = newMaxResource;
+        int evicted = 0;
+        while(count.get() > newMaxResource && maxResource == newMaxResource) {
+            if(!evictOne(-1)) {
+                break;
+            }
+            evicted ++;
+        }
+        return evicted;
+    }
+
+    protected int getMaxResource() {
+        return maxResource;
+    }
+
+    // 缓存中的资源个数（包括正在加载的）
+    protected int getResourceCount() {
+        return count.get();
+    }
+
+    // 累计驱逐的资源个数
+    protected long getEvictions() {
+        long n = 0;
+        for (Segment seg : segments) {
+            n += seg.evictions;
+        }
+        return n;
+    }
+
+    /**
+     * 设置 partition 分区保留的份额（最大资源数的百分比），0 表示不保留。各分区份额的合法性由调用方检查
+     */
+    protected void setReservedShare(int partition, int percent) {
+        int[] shares = reservedShares.clone();
+        shares[partition] = percent;
+        reservedShares = shares;
+    }
+
+    protected int getReservedShare(int partition) {
+        return reservedShares[partition];
+    }
+
+    // partition 分区在缓存中的资源个数（包括正在加载的）
+    protected int getPartitionCount(int partition) {
+        int n = 0;
+        for (Segment seg : segments) {
+            n += seg.parts[partition];
+        }
+        return n;
+    }
+
+    // partition 分区累计的命中次数
+    protected long getHits(int partition) {
+        long n = 0;
+        for (Segment seg : segments) {
+            n += seg.hits[partition];
+        }
+        return n;
+    }
+
+    // partition 分区累计的缺失次数
+    protected long getMisses(int partition) {
+        long n = 0;
+        for (Segment seg : segments) {
+            n += seg.misses[partition];
+        }
+        return n;
+    }
+
+    /**
+     * 在分段锁内依次把缓存中已加载的资源的 key、热度（HEAT_HOT、HEAT_REFERENCED 的组合）和分区交给 visitor
+     */
+    protected void visitResident(ResidentVisitor visitor) {
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                LongSlotMap map = seg.map;
+                for (int slot = 0; slot < map.capacity(); slot ++) {
+                    if(map.state(slot) == LongSlotMap.READY) {
+                        byte f = map.flags(slot);
+                        visitor.visit(map.key(slot), f & (FLAG_HOT | FLAG_REFERENCED), partitionOf(f));
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+    }
+
+    public interface ResidentVisitor {
+        void visit(long key, int heat, int partition);
     }
 
     /**
      * 关闭缓存，写回所有资源（从缓存写回到磁盘）
      */
+    @SuppressWarnings("unchecked")
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);        // 将缓存中所有的资源写回磁盘。
-                references.remove(key);
-                cache.remove(key);
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                LongSlotMap map = seg.map;
+                for (int slot = 0; slot < map.capacity(); slot ++) {
+                    if(map.state(slot) == LongSlotMap.READY) {
+                        releaseForCache((T)map.value(slot));        // 将缓存中所有的资源写回磁盘。
+                    }
+                }
+                map.clear();
+                seg.unpinned = 0;
+                seg.hand = 0;
+                seg.cold = 0;
+                Arrays.fill(seg.parts, 0);
+                seg.ghosts.clear();
+                seg.ghostHead = 0;
+                seg.ghostSize = 0;
+            } finally {
+                seg.lock.unlock();
             }
-        } finally {
-            lock.unlock();
+        }
+        count.set(0);
+    }
+
+    private static int partitionOf(byte flags) {
+        return (flags >>> PARTITION_SHIFT) & (MAX_PARTITIONS - 1);
+    }
+
+    private Segment segmentFor(long key) {
+        return segments[(int)(LongSlotMap.hash(key) >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static class Segment {
+        Lock lock = new ReentrantLock();
+        LongSlotMap map = new LongSlotMap();
+        int unpinned;                                   // 缓冲池模式下引用为 0 的资源个数
+        int hand;                                       // CLOCK 指针
+        int cold;                                       // 冷资源个数（包括正在加载的）
+        volatile long evictions;                        // 只在分段锁内修改
+        // 各分区的资源个数、命中和缺失次数，只在分段锁内修改，统计时不加锁读
+        int[] parts = new int[MAX_PARTITIONS];
+        long[] hits = new long[MAX_PARTITIONS];
+        long[] misses = new long[MAX_PARTITIONS];
+
+        /**
+         * 幽灵队列：最近被驱逐的冷资源的 key，ghostRing 按先后顺序循环记录，ghosts 用来查找。
+         * ghosts 中槽位的引用计数字段记着这个 key 最近一次记录在 ghostRing 中的下标。同一个 key 可能先后记录好几次
+         * （中间被 forgetGhost 移除过、或者重新加载后又被驱逐），环上较早的记录过期时，下标对不上说明 key 已经有了更新的记录，不能把它移除
+         */
+        LongSlotMap ghosts = new LongSlotMap();
+        long[] ghostRing;
+        int ghostHead;
+        int ghostSize;
+
+        Segment(int ghostCapacity) {
+            ghostRing = new long[ghostCapacity];
+        }
+
+        void rememberGhost(long key) {
+            if(ghostSize == ghostRing.length) {
+                // 队列满了，最早的一条记录过期；key 已经因为重新加载被移除、或者后面又记录过一次时保留它
+                int old = ghosts.find(ghostRing[ghostHead]);
+                if(old >= 0 && ghosts.refs(old) == ghostHead) {
+                    ghosts.removeAt(old);
+                }
+                ghostHead = (ghostHead + 1) % ghostRing.length;
+                ghostSize --;
+            }
+            int index = (ghostHead + ghostSize) % ghostRing.length;
+            int slot = ghosts.find(key);
+            if(slot < 0) {
+                ghosts.put(key, LongSlotMap.READY, null, index);
+            } else {
+                ghosts.setRefs(slot, index);
+            }
+            ghostRing[index] = key;
+            ghostSize ++;
+        }
+
+        // key 在幽灵队列中时把它移除并返回 true
+        boolean forgetGhost(long key) {
+            int slot = ghosts.find(key);
+            if(slot < 0) {
+                return false;
+            }
+            ghosts.removeAt(slot);
+            return true;
+        }
+
+        // 移除一个加载失败的槽位
+        void removeLoading(long key, boolean resident) {
+            int slot = map.find(key);
+            if(resident && (map.flags(slot) & FLAG_HOT) == 0) {
+                cold --;
+            }
+            parts[partitionOf(map.flags(slot))] --;
+            map.removeAt(slot);
         }
     }
 
@@ -125,6 +681,12 @@ public abstract class AbstractCache<T> {
      * 当资源不在缓存时的获取行为
      */
     protected abstract T getForCache(long key) throws Exception;
+    /**
+     * 带分区的获取行为，默认和分区无关
+     */
+    protected T getForCache(long key, int partition) throws Exception {
+        return getForCache(key);
+    }
     /**
      * 当资源被驱逐时的写回行为
      */
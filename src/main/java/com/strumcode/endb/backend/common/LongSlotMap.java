@@ -0,0 +1,182 @@
+package com.strumcode.endb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * 以 long 为 key 的开放寻址（线性探测）哈希表，供 AbstractCache 的分段使用
+ *
+ * 每个槽位同时保存 key、值、引用计数、加载状态和一个标志字节，全部放在并列的基本类型数组里，
+ * 查找和修改引用计数都不会装箱，也不会分配新对象。删除时使用向后移动（backward shift），不留墓碑。
+ *
+ * 本身不是线程安全的，由调用方加锁。注意插入可能触发扩容，扩容后槽位下标会变化，不要在解锁后继续使用旧的下标。
+ */
+public class LongSlotMap {
+    public static final byte EMPTY = 0;
+    public static final byte LOADING = 1;                   // 正在加载，值是加载的 future
+    public static final byte READY = 2;                     // 加载完成，值是缓存的对象
+
+    private static final int INIT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int[] refs;
+    private byte[] states;
+    private byte[] flags;                                   // 调用方自定义的标志位，例如 CLOCK 的访问位
+
+    private int size;
+    private int mask;
+
+    public LongSlotMap() {
+        alloc(INIT_CAPACITY);
+    }
+
+    public static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    // 返回 key 所在的槽位，不存在返回 -1
+    public int find(long key) {
+        int i = (int)hash(key) & mask;
+        while(states[i] != EMPTY) {
+            if(keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // 插入一个不存在的 key，返回其槽位
+    public int put(long key, byte state, Object value, int ref) {
+        if((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int i = (int)hash(key) & mask;
+        while(states[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        refs[i] = ref;
+        states[i] = state;
+        flags[i] = 0;
+        size ++;
+        return i;
+    }
+
+    public void removeAt(int slot) {
+        int hole = slot;
+        int i = slot;
+        while(true) {
+            i = (i + 1) & mask;
+            if(states[i] == EMPTY) {
+                break;
+            }
+            int home = (int)hash(keys[i]) & mask;
+            // 槽位 i 上的元素的理想位置不在 (hole, i] 区间内时，把它移动到空洞处
+            if(((i - home) & mask) >= ((i - hole) & mask)) {
+                move(i, hole);
+                hole = i;
+            }
+        }
+        states[hole] = EMPTY;
+        values[hole] = null;
+        size --;
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+        refs[to] = refs[from];
+        states[to] = states[from];
+        flags[to] = flags[from];
+    }
+
+    public long key(int slot) {
+        return keys[slot];
+    }
+
+    public Object value(int slot) {
+        return values[slot];
+    }
+
+    public void setValue(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    public byte state(int slot) {
+        return states[slot];
+    }
+
+    public void setState(int slot, byte state) {
+        states[slot] = state;
+    }
+
+    public int refs(int slot) {
+        return refs[slot];
+    }
+
+    public void setRefs(int slot, int ref) {
+        refs[slot] = ref;
+    }
+
+    public byte flags(int slot) {
+        return flags[slot];
+    }
+
+    public void setFlags(int slot, byte f) {
+        flags[slot] = f;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // 槽位总数，遍历时槽位下标范围为 [0, capacity)
+    public int capacity() {
+        return keys.length;
+    }
+
+    public void clear() {
+        Arrays.fill(states, EMPTY);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldRefs = refs;
+        byte[] oldStates = states;
+        byte[] oldFlags = flags;
+        alloc(capacity);
+        for(int j = 0; j < oldKeys.length; j ++) {
+            if(oldStates[j] == EMPTY) {
+                continue;
+            }
+            int i = (int)hash(oldKeys[j]) & mask;
+            while(states[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+            refs[i] = oldRefs[j];
+            states[i] = oldStates[j];
+            flags[i] = oldFlags[j];
+        }
+    }
+
+    private void alloc(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        refs = new int[capacity];
+        states = new byte[capacity];
+        flags = new byte[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -1,11 +1,17 @@
 package com.strumcode.endb.backend.common;
 
+import java.nio.ByteBuffer;
+
+/**
+ * raw 可能是页的数据（堆内数组或者 mmap 映射的一段），只用带下标的绝对读写访问，不要改动它的 position/limit，
+ * 同一个 raw 可能被多个线程同时使用
+ */
 public class SubArray {
-    public byte[] raw;
+    public ByteBuffer raw;
     public int start;
     public int end;
 
-    public SubArray(byte[] raw, int start, int end) {
+    public SubArray(ByteBuffer raw, int start, int end) {
         this.raw = raw;
         this.start = start;
         this.end = end;
@@ -1,35 +1,94 @@
 package com.strumcode.endb.backend.dm;
 
 import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import com.strumcode.endb.backend.dm.pageCache.PoolStats;
 import com.strumcode.endb.backend.dm.dataItem.DataItem;
+import com.strumcode.endb.backend.dm.dataItem.DataItemView;
 import com.strumcode.endb.backend.dm.logger.Logger;
 import com.strumcode.endb.backend.dm.page.PageOne;
 import com.strumcode.endb.backend.tm.TransactionManager;
 
+import java.io.InputStream;
+import java.util.List;
+
 // DM 层提供了三个功能供上层使用，分别是读、插入和修改。修改是通过读出的 DataItem 实现的，于是 DataManager 只需要提供 read() 和 insert() 方法。
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // pool 是数据所在页的归属，PageCache.POOL_HEAP 或 POOL_INDEX，B+ 树节点放在索引页里，和表的记录分开缓存
+    DataItem read(long uid, int pool) throws Exception;
+    // 只读地访问 uid 处的数据项，不经过数据项缓存，view 可以反复使用（见 DataItemView）。数据项无效时返回 false，不需要 release
+    boolean read(long uid, int pool, DataItemView view) throws Exception;
+    long insert(long xid, byte[] data, int pool) throws Exception;
+    // 批量插入记录（堆页），按顺序返回 uid。一页能放下的数据项一起放，只 pin 一次页、写一条日志
+    List<Long> insertBatch(long xid, List<byte[]> data) throws Exception;
+    // 回收已经无效的数据项 uid 占的空间（VACUUM），之后 uid 可能被新插入的数据项重用。旧文件（PageX 格式）的空间不能回收，什么都不做
+    void free(long uid) throws Exception;
+    /**
+     * 放不进一页的大值存成溢出链（见 Overflow），返回第一块的 uid。readOverflow 按块惰性读出。
+     * 一条链可以被同一行的多个版本引用：shareOverflow 在事务 xid 中给它加一个引用，freeOverflow 减一个引用，没有引用时回收整条链（同 free）
+     */
+    long insertOverflow(long xid, byte[] data) throws Exception;
+    InputStream readOverflow(long uid);
+    void shareOverflow(long xid, long uid) throws Exception;
+    void freeOverflow(long uid) throws Exception;
+    int maxItemSize();                              // insert 能放下的最大数据
+    /**
+     * VACUUM 按页遍历堆页用：pgno 是堆页时返回页上有效的数据项（溢出块除外）的 uid，不是堆页时返回空列表。
+     * 旧文件（PageX 格式）的空间不能回收，也不区分堆页和索引页，总是返回空列表
+     */
+    List<Long> listItems(int pgno) throws Exception;
+    List<Long> listItems(int pgno, byte state) throws Exception;  // 同 listItems，列出 ValidFlag 是 state（见 DataItem.VALID 等）的数据项
+    byte[] readInvalid(long uid) throws Exception;  // 拷出已经无效但槽位还没有回收的数据项的数据，uid 有效或者槽位是空的时返回 null。同 isOverflow，uid 可以是任意值
+    boolean isOverflow(long uid) throws Exception;  // uid 是不是一条溢出链的第一块，uid 可以是任意值，不会因为 uid 不存在而抛异常
+    int getPageNumber();                            // 已经分配的页数
+    void prefetch(long uid);                        // 提示 uid 所在的页以及其后的若干页马上会被读到，后台预读
+    void resizePool(long memory) throws Exception;  // 在线调整缓冲池大小，见 PageCache.resize
+    PoolStats getPoolStats();
+    void setPoolShare(int pool, int percent) throws Exception;     // 见 PageCache.setPoolShare
+    int getPageSize();
     void close();
 
-    public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+    /**
+     * @param io  页的读写方式，见 PageCache.IO_CHANNEL / IO_MMAP
+     * @param segmented  数据页是否按段文件（".db.0"、".db.1" ...）存放
+     * @param compressed  数据页是否压缩存放，只支持 PageCache.IO_CHANNEL
+     * @param pageSize  页大小，记录在 PageOne 里，打开时不需要再指定
+     */
+    public static DataManager create(String path, long mem, int io, boolean segmented, boolean compressed, int pageSize, TransactionManager tm) {
         Logger lg = Logger.create(path);
+        PageCache pc = PageCache.create(path, mem, io, segmented, compressed, pageSize, lg);
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
         dm.initPageOne();
         return dm;
     }
 
-    public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+    public static DataManager open(String path, long mem, int io, TransactionManager tm) {
         Logger lg = Logger.open(path);
+        PageCache pc = PageCache.open(path, mem, io, lg);
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        if(!dm.loadCheckPageOne()) {
+        boolean cleanClose = dm.loadCheckPageOne();
+        if(!PageOne.hasFeature(dm.pageOne, PageOne.FEATURE_HWM)) {
+            /*
+             * 旧文件没有高水位，页数只能按文件长度算，这时文件里还没有预分配的空页。
+             * 下一次 newPage 就可能预分配区段，之后再按文件长度算就会把预分配的全 0 页当成已经分配的页，
+             * 所以先记下高水位并落盘，再做任何可能预分配的事。以后正常关闭时照常更新高水位，崩溃时恢复按日志截断
+             */
+            PageOne.addFeature(dm.pageOne, PageOne.FEATURE_HWM);
+            PageOne.setHwm(dm.pageOne, pc.getPageNumber());
+            pc.flushPage(dm.pageOne);
+        }
+        if(!cleanClose) {
             // 通过校验第一页来判断上次数据库是否正常关闭，从而决定是否要执行恢复流程
-            Recover.recover(tm, lg, pc);
+            // 恢复时按日志中出现过的最大页号截断文件，预分配的区段也一起截掉
+            Recover.recover(tm, lg, pc, dm.slotted);
+        } else if(PageOne.hasFeature(dm.pageOne, PageOne.FEATURE_HWM)) {
+            // 文件长度包含预分配的空页，已分配的页数以高水位为准
+            pc.setPageNumber(PageOne.getHwm(dm.pageOne));
         }
-        dm.fillPageIndex();
+        // 正常关闭时 FSM 和数据页一起落盘了，可以直接用；恢复过的库要重新扫描
+        dm.fillPageIndex(cleanClose);
         // 重新对第一页生成随机字节
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
@@ -1,13 +1,18 @@
 package com.strumcode.endb.backend.dm;
 
 import com.strumcode.endb.backend.common.AbstractCache;
+import com.strumcode.endb.backend.common.SubArray;
 import com.strumcode.endb.backend.dm.dataItem.DataItem;
 import com.strumcode.endb.backend.dm.dataItem.DataItemImpl;
+import com.strumcode.endb.backend.dm.dataItem.DataItemView;
 import com.strumcode.endb.backend.dm.logger.Logger;
 import com.strumcode.endb.backend.dm.page.Page;
 import com.strumcode.endb.backend.dm.page.PageOne;
 import com.strumcode.endb.backend.dm.page.PageX;
+import com.strumcode.endb.backend.dm.page.SlottedPage;
 import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import com.strumcode.endb.backend.dm.pageCache.PoolStats;
+import com.strumcode.endb.backend.dm.pageIndex.FreeSpaceMap;
 import com.strumcode.endb.backend.dm.pageIndex.PageIndex;
 import com.strumcode.endb.backend.dm.pageIndex.PageInfo;
 import com.strumcode.endb.backend.tm.TransactionManager;
@@ -15,16 +20,26 @@ import com.strumcode.endb.backend.utils.Panic;
 import com.strumcode.endb.backend.utils.Types;
 import com.strumcode.endb.common.Error;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * DataManager 是 DM 层直接对外提供方法的类，同时，也实现成 DataItem 对象的缓存。
  * 而缓存 DataItem 对象使用的 key，是由页号和页内偏移组成的一个 8 字节无符号整数，页号和偏移各占 4 字节。
+ * 数据页是 SlottedPage 的格式时（新建的库），key 的低位是槽位号，记录在页内的位置可以在整理页面时改变。
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    private static final int PREFETCH_PAGES = 32;                   // 扫描时每次预读的页数
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
-    PageIndex pIndex;
+    PageIndex[] pIndex;                                             // 下标为页的归属，不区分归属的旧文件两个下标是同一个
+    FreeSpaceMap fsm;                                               // 读入或者初始化 PageOne 之后才知道有没有 FSM
+    boolean slotted;                                                // 数据页是 SlottedPage 还是 PageX 的格式，同样由 PageOne 决定
     Page pageOne;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
@@ -32,12 +47,16 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
     }
 
     @Override
     public DataItem read(long uid) throws Exception {
-        DataItemImpl di = (DataItemImpl)super.get(uid);
+        return read(uid, PageCache.POOL_HEAP);
+    }
+
+    @Override
+    public DataItem read(long uid, int pool) throws Exception {
+        DataItemImpl di = (DataItemImpl)super.get(uid, pool);
         if(!di.isValid()) {
             di.release();
             return null;
@@ -45,60 +64,441 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    /**
+     * 不经过数据项缓存，直接 pin 住数据项所在的页，让 view 指向它。和 getForCache 一样在页锁内找位置、记下页上多了一个持有者，
+     * 持有期间页不会被整理，数据项的位置不变
+     */
+    @Override
+    public boolean read(long uid, int pool, DataItemView view) throws Exception {
+        short offset = (short)(uid & ((1L << 16) - 1));
+        int pgno = (int)(uid >>> 32);
+        Page pg = pc.getPage(pgno, pool);
+        if(!slotted) {
+            view.attach(pg, offset, uid, this);
+        } else {
+            pg.lock();
+            try {
+                offset = SlottedPage.getOffset(pg, offset);
+                if(offset >= 0) {
+                    pg.setLiveItems(pg.getLiveItems() + 1);
+                    view.attach(pg, offset, uid, this);
+                }
+            } finally {
+                pg.unlock();
+            }
+            if(offset < 0) {
+                pg.release();
+                throw Error.NullEntryException;
+            }
+        }
+        if(!view.isValid()) {
+            view.release();
+            return false;
+        }
+        return true;
+    }
+
+    // DataItemView.release 调用，同 releaseForCache
+    public void releaseView(Page pg) {
+        unpin(pg);
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, data, PageCache.POOL_HEAP);
+    }
+
+    @Override
+    public long insert(long xid, byte[] data, int pool) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        int maxFreeSpace = slotted ? SlottedPage.maxFreeSpace(pc.getPageSize()) : PageX.maxFreeSpace(pc.getPageSize());
+        if(raw.length > maxFreeSpace) {
             // 这里不允许一个数据项超过一个页允许存放的空间
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
-        for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        PageIndex index = pIndex[pool];
+        while(true) {
+            PageInfo pi = index.take(raw.length);
+            if(pi == null) {
+                // 没有放得下的页，新分配的页不经过 PageIndex 直接给当前线程用，不会被别的线程抢走，也就不需要重试
+                pi = new PageInfo(fsm.newDataPage(pool), maxFreeSpace);
+                fsm.update(pi.pgno, maxFreeSpace, pool);
             }
+
+            Page pg = null;
+            int freeSpace = pi.freeSpace;
+            try {
+                pg = pc.getPage(pi.pgno, pool);
+                if(getFreeSpace(pg) < raw.length) {
+                    // 从 FSM 重建的空闲空间只会少估，这里防御 FSM 没有完整落盘的情况：这一页按实际空闲空间放回（见 finally），重新选页
+                    continue;
+                }
+                short offset;
+                if(slotted) {
+                    offset = reserveSlot(pg, raw.length);
+                    if(offset < 0) {
+                        // 要整理才放得下，但有别的线程正持有这一页的数据项：按不整理能用的空间放回，重新选页
+                        freeSpace = SlottedPage.getContiguousFreeSpace(pg);
+                        pg.release();
+                        pg = null;
+                        continue;
+                    }
+                    // 槽位选好之后只有持有这一页的插入线程会往页里放记录，写日志不需要持有页锁
+                    logger.log(Recover.insertLog(xid, pg, offset, raw));
+                    pg.lock();
+                    try {
+                        SlottedPage.insert(pg, offset, raw);
+                    } finally {
+                        pg.unlock();
+                    }
+                } else {
+                    // 首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回插入位置的偏移。
+                    byte[] log = Recover.insertLog(xid, pg, PageX.getFSO(pg), raw);
+                    logger.log(log);
+
+                    offset = PageX.insert(pg, raw);
+                }
+
+                // 空闲空间要在 release 之前读，release 之后页可能被驱逐，页框会被别的页复用
+                freeSpace = getFreeSpace(pg);
+                pg.release();
+                pg = null;
+                fsm.update(pi.pgno, freeSpace, pool);
+                return Types.addressToUid(pi.pgno, offset);
+
+            } finally {
+                // 将取出的 pg 重新插入pIndex，优先作为当前线程下一次插入的页。重试时也是先放回这一页、解除 pin，再去选下一页
+                if(pg != null) {
+                    freeSpace = getFreeSpace(pg);
+                    pg.release();
+                }
+                index.putBack(pi.pgno, freeSpace);
+            }
+        }
+    }
+
+    /**
+     * 批量插入：每选出一页，就把接下来放得下的数据项都放进这一页，一页只 pin 一次、写一条日志（见 Recover.batchInsertLog）。
+     * 第一个数据项按 insert 的方式选页，后面的数据项放不下时再选下一页
+     */
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> data) throws Exception {
+        int maxFreeSpace = slotted ? SlottedPage.maxFreeSpace(pc.getPageSize()) : PageX.maxFreeSpace(pc.getPageSize());
+        List<byte[]> raws = new ArrayList<>(data.size());
+        int[] lengths = new int[data.size()];
+        for (int i = 0; i < data.size(); i ++) {
+            byte[] raw = DataItem.wrapDataItemRaw(data.get(i));
+            if(raw.length > maxFreeSpace) {
+                throw Error.DataTooLargeException;
+            }
+            raws.add(raw);
+            lengths[i] = raw.length;
         }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
+
+        PageIndex index = pIndex[PageCache.POOL_HEAP];
+        List<Long> uids = new ArrayList<>(data.size());
+        while(uids.size() < raws.size()) {
+            int from = uids.size();
+            PageInfo pi = index.take(lengths[from]);
+            if(pi == null) {
+                pi = new PageInfo(fsm.newDataPage(PageCache.POOL_HEAP), maxFreeSpace);
+                fsm.update(pi.pgno, maxFreeSpace, PageCache.POOL_HEAP);
+            }
+            Page pg = null;
+            int freeSpace = pi.freeSpace;
+            try {
+                pg = pc.getPage(pi.pgno, PageCache.POOL_HEAP);
+                short[] offsets = reserveBatch(pg, lengths, from);
+                if(offsets.length == 0) {
+                    // 和 insert 一样：FSM 少估了，或者要整理才放得下但整理不了，按实际能用的空间放回，重新选页
+                    freeSpace = slotted ? SlottedPage.getContiguousFreeSpace(pg) : getFreeSpace(pg);
+                    pg.release();
+                    pg = null;
+                    continue;
+                }
+                List<byte[]> batch = raws.subList(from, from + offsets.length);
+                // 先写日志再放数据项，这一页的插入只有当前线程在做，规划好的位置不会被别人占掉
+                logger.log(Recover.batchInsertLog(xid, pg, offsets, batch));
+                pg.lock();
+                try {
+                    for (int i = 0; i < offsets.length; i ++) {
+                        if(slotted) {
+                            SlottedPage.insert(pg, offsets[i], batch.get(i));
+                        } else {
+                            PageX.insert(pg, batch.get(i));
+                        }
+                    }
+                } finally {
+                    pg.unlock();
+                }
+                for (short offset : offsets) {
+                    uids.add(Types.addressToUid(pi.pgno, offset));
+                }
+                freeSpace = getFreeSpace(pg);
+                pg.release();
+                pg = null;
+                fsm.update(pi.pgno, freeSpace, PageCache.POOL_HEAP);
+            } finally {
+                if(pg != null) {
+                    freeSpace = getFreeSpace(pg);
+                    pg.release();
+                }
+                index.putBack(pi.pgno, freeSpace);
+            }
         }
+        return uids;
+    }
 
-        Page pg = null;
-        int freeSpace = 0;
+    // 规划 lengths[from] 开始的数据项在页里的位置，返回能放进这一页的那些的槽位号（PageX 格式是页内偏移）
+    private short[] reserveBatch(Page pg, int[] lengths, int from) {
+        if(slotted) {
+            pg.lock();
+            try {
+                return SlottedPage.reserveBatch(pg, lengths, from, pg.getLiveItems() == 0);
+            } finally {
+                pg.unlock();
+            }
+        }
+        // PageX 只往后追加，依次排在 FSO 之后
+        int space = PageX.getFreeSpace(pg);
+        int offset = PageX.getFSO(pg);
+        short[] offsets = new short[lengths.length - from];
+        int count = 0;
+        for (int i = from; i < lengths.length && lengths[i] <= space; i ++) {
+            offsets[count ++] = (short)offset;
+            offset += lengths[i];
+            space -= lengths[i];
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    @Override
+    public void free(long uid) throws Exception {
+        if(!slotted) {
+            return;
+        }
+        short slot = (short)(uid & ((1L << 16) - 1));
+        int pgno = (int)(uid >>> 32);
+        Page pg = pc.getPage(pgno, PageCache.POOL_HEAP);
+        int freeSpace;
+        int pool;
         try {
-            pg = pc.getPage(pi.pgno);
-            // 首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回插入位置的偏移。
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            logger.log(Recover.freeLog(uid));
+            // 释放只清槽位、不挪记录，页上别的数据项不受影响
+            pg.lock();
+            try {
+                SlottedPage.free(pg, slot);
+                freeSpace = SlottedPage.getFreeSpace(pg);
+            } finally {
+                pg.unlock();
+            }
+            pool = fsm.isPooled() ? PageX.getPool(pg) : PageCache.POOL_HEAP;
+        } finally {
+            pg.release();
+        }
+        // 页正被插入线程拿着或者是某个线程的当前插入页时，PageIndex 先记下来，页放回时再用上
+        pIndex[pool].update(pgno, freeSpace);
+        fsm.update(pgno, freeSpace, pool);
+    }
+
+    @Override
+    public long insertOverflow(long xid, byte[] data) throws Exception {
+        return Overflow.insert(this, xid, data, maxItemSize());
+    }
+
+    @Override
+    public InputStream readOverflow(long uid) {
+        return new Overflow.ChainInputStream(this, uid);
+    }
+
+    @Override
+    public void shareOverflow(long xid, long uid) throws Exception {
+        Overflow.share(this, xid, uid);
+    }
+
+    @Override
+    public void freeOverflow(long uid) throws Exception {
+        if(!slotted) {
+            return;
+        }
+        Overflow.release(this, uid);
+    }
 
-            short offset = PageX.insert(pg, raw);
+    @Override
+    public int maxItemSize() {
+        int maxFreeSpace = slotted ? SlottedPage.maxFreeSpace(pc.getPageSize()) : PageX.maxFreeSpace(pc.getPageSize());
+        return maxFreeSpace - DataItem.wrapDataItemRaw(new byte[0]).length;
+    }
+
+    @Override
+    public List<Long> listItems(int pgno) throws Exception {
+        return listItems(pgno, DataItem.VALID);
+    }
 
+    @Override
+    public List<Long> listItems(int pgno, byte state) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        if(!isHeapPage(pgno)) {
+            return uids;
+        }
+        Page pg = pc.getPage(pgno, PageCache.POOL_HEAP);
+        try {
+            if(PageX.getPool(pg) != PageCache.POOL_HEAP) {
+                return uids;
+            }
+            pg.lock();
+            try {
+                int slots = SlottedPage.getSlots(pg);
+                for (short slot = 0; slot < slots; slot ++) {
+                    short offset = SlottedPage.getOffset(pg, slot);
+                    if(offset < 0) {
+                        continue;
+                    }
+                    SubArray sa = DataItem.peekData(pg, offset, state);
+                    if(sa != null && !Overflow.isChunk(sa)) {
+                        uids.add(Types.addressToUid(pgno, slot));
+                    }
+                }
+            } finally {
+                pg.unlock();
+            }
+        } finally {
             pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+        }
+        return uids;
+    }
 
+    @Override
+    public byte[] readInvalid(long uid) throws Exception {
+        int pgno = (int)(uid >>> 32);
+        if((uid & 0xffff8000L) != 0 || !isHeapPage(pgno)) {
+            return null;
+        }
+        Page pg = pc.getPage(pgno, PageCache.POOL_HEAP);
+        try {
+            if(PageX.getPool(pg) != PageCache.POOL_HEAP) {
+                return null;
+            }
+            pg.lock();
+            try {
+                short offset = SlottedPage.getOffset(pg, (short)uid);
+                if(offset < 0) {
+                    return null;
+                }
+                byte state = DataItem.getValidFlag(pg, offset);
+                if(state == DataItem.VALID) {
+                    return null;
+                }
+                SubArray sa = DataItem.peekData(pg, offset, state);
+                byte[] data = new byte[sa.end - sa.start];
+                pg.getData().get(sa.start, data);
+                return data;
+            } finally {
+                pg.unlock();
+            }
         } finally {
-            // 将取出的 pg 重新插入pIndex
-            if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+            pg.release();
+        }
+    }
+
+    @Override
+    public boolean isOverflow(long uid) throws Exception {
+        int pgno = (int)(uid >>> 32);
+        if((uid & 0xffff8000L) != 0 || !isHeapPage(pgno)) {
+            return false;
+        }
+        Page pg = pc.getPage(pgno, PageCache.POOL_HEAP);
+        try {
+            if(PageX.getPool(pg) != PageCache.POOL_HEAP) {
+                return false;
+            }
+            pg.lock();
+            try {
+                short offset = SlottedPage.getOffset(pg, (short)uid);
+                if(offset < 0) {
+                    return false;
+                }
+                SubArray sa = DataItem.peekData(pg, offset);
+                return sa != null && Overflow.isHead(sa);
+            } finally {
+                pg.unlock();
             }
+        } finally {
+            pg.release();
+        }
+    }
+
+    // pgno 是不是槽位页格式的堆页。先看 FSM，不把索引页读进堆页的分区，读进来之后还会再看一下页里的归属标记
+    private boolean isHeapPage(int pgno) {
+        if(!slotted || !fsm.isPooled() || pgno < 2 || pgno > pc.getPageNumber()) {
+            return false;
+        }
+        if(fsm.isEnabled() && fsm.isFsmPage(pgno)) {
+            return false;
         }
+        return fsm.getPool(pgno) == PageCache.POOL_HEAP;
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pc.getPageNumber();
+    }
+
+    /**
+     * 在页锁内为长 length 的记录选槽位，连续空间不够时只有这一页没有数据项在缓存中才整理。
+     * 解析数据项也在页锁内（见 getForCache、read(uid, pool, view)），整理不会和解析交错
+     */
+    private short reserveSlot(Page pg, int length) {
+        pg.lock();
+        try {
+            return SlottedPage.reserve(pg, length, pg.getLiveItems() == 0);
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    private int getFreeSpace(Page pg) {
+        return slotted ? SlottedPage.getFreeSpace(pg) : PageX.getFreeSpace(pg);
+    }
+
+    @Override
+    public void prefetch(long uid) {
+        int pgno = (int)(uid >>> 32);
+        pc.prefetch(pgno, PREFETCH_PAGES);
+    }
+
+    @Override
+    public void resizePool(long memory) throws Exception {
+        pc.resize(memory);
+    }
+
+    @Override
+    public PoolStats getPoolStats() {
+        return pc.getPoolStats();
+    }
+
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
+    @Override
+    public void setPoolShare(int pool, int percent) throws Exception {
+        pc.setPoolShare(pool, percent);
     }
 
     @Override
     public void close() {
         super.close();
-        logger.close();
 
-        // 关闭时设置第一页的字节校验
+        // 关闭时记录高水位，设置第一页的字节校验
+        PageOne.setHwm(pageOne, pc.getPageNumber());
         PageOne.setVcClose(pageOne);
         pageOne.release();
+        // 页缓存关闭前还会写回脏页，写回前要 flush 日志，所以日志最后关闭
         pc.close();
+        logger.close();
     }
 
     // 生成 update 日志
@@ -114,23 +514,57 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     // 继承 AbstractCache<DataItem> 要实现的
     @Override
     protected DataItem getForCache(long uid) throws Exception {
+        return getForCache(uid, PageCache.POOL_HEAP);
+    }
+
+    // 数据项所在的页按 pool 分区缓存
+    @Override
+    protected DataItem getForCache(long uid, int pool) throws Exception {
         short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
-        Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        int pgno = (int)(uid >>> 32);
+        Page pg = pc.getPage(pgno, pool);
+        if(!slotted) {
+            return DataItem.parseDataItem(pg, offset, this);
+        }
+        pg.lock();
+        try {
+            short slot = offset;
+            offset = SlottedPage.getOffset(pg, slot);
+            if(offset < 0) {
+                pg.release();
+                throw Error.NullEntryException;
+            }
+            // 数据项持有这一页的引用，页在数据项释放之前不会被驱逐，计数记在页对象上不会丢
+            pg.setLiveItems(pg.getLiveItems() + 1);
+            return DataItem.parseDataItem(pg, offset, uid, this);
+        } finally {
+            pg.unlock();
+        }
     }
 
     // 继承 AbstractCache<DataItem> 要实现的
     @Override
     protected void releaseForCache(DataItem di) {
         // 需要将 DataItem 写回数据源，由于对文件的读写是以页为单位进行的，只需要将 DataItem 所在的页 release 即可
-        di.page().release();
+        unpin(di.page());
+    }
+
+    // 数据项不再持有它所在的页
+    private void unpin(Page pg) {
+        if(slotted) {
+            pg.lock();
+            try {
+                pg.setLiveItems(pg.getLiveItems() - 1);
+            } finally {
+                pg.unlock();
+            }
+        }
+        pg.release();
     }
 
     // 在创建文件时初始化 PageOne
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -138,6 +572,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             Panic.panic(e);
         }
         pc.flushPage(pageOne);
+        initFsm();
     }
 
     // 在打开已有文件时时读入 PageOne，并验证正确性
@@ -147,21 +582,50 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         } catch (Exception e) {
             Panic.panic(e);
         }
+        initFsm();
         return PageOne.checkVc(pageOne);
     }
 
-    // 初始化pageIndex
-    void fillPageIndex() {
+    private void initFsm() {
+        boolean pooled = PageOne.hasFeature(pageOne, PageOne.FEATURE_POOLS);
+        slotted = PageOne.hasFeature(pageOne, PageOne.FEATURE_SLOTTED);
+        fsm = new FreeSpaceMap(pc, PageOne.hasFeature(pageOne, PageOne.FEATURE_FSM), pooled, slotted);
+        pIndex = new PageIndex[PageCache.POOLS];
+        pIndex[PageCache.POOL_HEAP] = new PageIndex(pc.getPageSize());
+        // 旧文件不区分页的归属，索引节点和记录混在同一批页里
+        pIndex[PageCache.POOL_INDEX] = pooled ? new PageIndex(pc.getPageSize()) : pIndex[PageCache.POOL_HEAP];
+    }
+
+    /**
+     * 初始化pageIndex
+     * @param trustFsm  上次正常关闭时 FSM 是可信的，直接从 FSM 重建；否则扫描所有数据页，顺便把 FSM 重写一遍
+     */
+    void fillPageIndex(boolean trustFsm) {
+        if(trustFsm && fsm.isEnabled()) {
+            fsm.load(pIndex);
+            return;
+        }
         int pageNumber = pc.getPageNumber();
+        pc.prefetch(2, PREFETCH_PAGES);
         for(int i = 2; i <= pageNumber; i ++) {
+            if((i - 2) % PREFETCH_PAGES == 0) {
+                // 提前一个窗口预读后面的页，读盘和这里的处理重叠起来
+                pc.prefetch(i + PREFETCH_PAGES, PREFETCH_PAGES);
+            }
+            if(fsm.isEnabled() && fsm.isFsmPage(i)) {
+                continue;
+            }
             Page pg = null;
             try {
                 pg = pc.getPage(i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            int freeSpace = getFreeSpace(pg);
+            int pool = fsm.isPooled() ? PageX.getPool(pg) : PageCache.POOL_HEAP;
             pg.release();
+            pIndex[pool].add(i, freeSpace);
+            fsm.update(i, freeSpace, pool);
         }
     }
     
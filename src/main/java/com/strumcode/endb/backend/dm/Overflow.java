@@ -0,0 +1,199 @@
+package com.strumcode.endb.backend.dm;
+
+import com.strumcode.endb.backend.common.SubArray;
+import com.strumcode.endb.backend.dm.dataItem.DataItem;
+import com.strumcode.endb.backend.tm.TransactionManagerImpl;
+import com.strumcode.endb.backend.utils.Codec;
+import com.strumcode.endb.common.Error;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 溢出链：放不进一页的大值拆成若干块，每块是一个普通的数据项，按顺序串成单链表，上层只记第一块的 uid。
+ * 块的格式：
+ * [Next 8] [Data]
+ * 第一块多一个引用计数：
+ * [Next 8] [Refs 4] [Data]
+ * Next 为下一块的 uid，0 表示最后一块。Next 的最高位总是 1，标记这是溢出块：堆页上的表记录（VM 的 Entry）开头是非负的 XMIN，
+ * VACUUM 遍历堆页时靠它跳过溢出块（见 DataManager.listItems）。第一块的 Next 还带着 HEAD_BIT，uid 的低 32 位只用到低 15 位，这一位总是空着的。
+ *
+ * Refs 是引用这条链的行版本数。更新一行时没改的大字段不复制，新版本直接共用旧版本的链，Refs 加一（share）；
+ * VACUUM 回收一个死版本时减一（release），减到 0 才回收整条链。
+ * Refs 的修改和 XMAX 一样写普通的更新日志：同一条链上的 share 被行锁串行化，崩溃时活跃的事务的 share 一定是这条链上最后一次 share，
+ * 恢复时撤销它只会让 Refs 偏大（之后有 VACUUM 的 release 也被一起撤销了），最坏是漏回收这条链，不会提前回收还有人引用的链。
+ *
+ * 除了最后一块，每块都正好占满一个空页，实际上就是独占的溢出页。块和普通数据项一样写插入日志，恢复和回滚都不需要特殊处理。
+ * 块从后往前插入，插入每一块时已经知道下一块的 uid，不需要回头修改。
+ */
+class Overflow {
+    private static final int OF_NEXT = 0;
+    private static final int OF_DATA = 8;
+    private static final int OF_REFS = 8;
+    private static final int OF_HEAD_DATA = OF_REFS + 4;
+    private static final long CHUNK_BIT = Long.MIN_VALUE;
+    private static final long HEAD_BIT = 1L << 31;
+
+    // sa 是一个数据项的数据，判断它是不是溢出块
+    static boolean isChunk(SubArray sa) {
+        return sa.end - sa.start >= OF_DATA && (sa.raw.getLong(sa.start + OF_NEXT) & CHUNK_BIT) != 0;
+    }
+
+    // 是不是一条链的第一块
+    static boolean isHead(SubArray sa) {
+        return isChunk(sa) && sa.end - sa.start >= OF_HEAD_DATA && (sa.raw.getLong(sa.start + OF_NEXT) & HEAD_BIT) != 0;
+    }
+
+    private static long next(SubArray sa) {
+        return sa.raw.getLong(sa.start + OF_NEXT) & ~(CHUNK_BIT | HEAD_BIT);
+    }
+
+    // maxItem 是一个数据项最多能放的数据，见 DataManagerImpl.maxItemSize
+    static long insert(DataManager dm, long xid, byte[] data, int maxItem) throws Exception {
+        int chunk = maxItem - OF_DATA;
+        // 第一块要放引用计数，少放 4 个字节，剩下的按整块切开
+        int head = Math.min(data.length, maxItem - OF_HEAD_DATA);
+        int chunks = (data.length - head + chunk - 1) / chunk;
+        long next = 0;
+        for(int i = chunks - 1; i >= 0; i --) {
+            int from = head + i * chunk;
+            int to = Math.min(data.length, from + chunk);
+            byte[] raw = new byte[OF_DATA + to - from];
+            Codec.putLong(raw, OF_NEXT, next | CHUNK_BIT);
+            System.arraycopy(data, from, raw, OF_DATA, to - from);
+            next = dm.insert(xid, raw);
+        }
+        byte[] raw = new byte[OF_HEAD_DATA + head];
+        Codec.putLong(raw, OF_NEXT, next | CHUNK_BIT | HEAD_BIT);
+        Codec.putInt(raw, OF_REFS, 1);
+        System.arraycopy(data, 0, raw, OF_HEAD_DATA, head);
+        return dm.insert(xid, raw);
+    }
+
+    // 又一个行版本在事务 xid 中引用了这条链，见 DataManager.shareOverflow
+    static void share(DataManager dm, long xid, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            throw Error.NullEntryException;
+        }
+        try {
+            di.before();
+            try {
+                SubArray sa = di.data();
+                sa.raw.putInt(sa.start + OF_REFS, sa.raw.getInt(sa.start + OF_REFS) + 1);
+            } finally {
+                di.after(xid);
+            }
+        } finally {
+            di.release();
+        }
+    }
+
+    // 引用这条链的一个行版本被回收了，减到 0 时回收整条链，见 DataManager.freeOverflow
+    static void release(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return;
+        }
+        boolean last;
+        try {
+            di.before();
+            SubArray sa = di.data();
+            int refs = sa.raw.getInt(sa.start + OF_REFS);
+            last = refs <= 1;
+            if(last) {
+                di.unBefore();
+            } else {
+                sa.raw.putInt(sa.start + OF_REFS, refs - 1);
+                di.after(TransactionManagerImpl.SUPER_XID);
+            }
+        } finally {
+            di.release();
+        }
+        if(last) {
+            free(dm, uid);
+        }
+    }
+
+    // 回收整条链，见 DataManager.free
+    private static void free(DataManager dm, long uid) throws Exception {
+        while(uid != 0) {
+            DataItem di = dm.read(uid);
+            if(di == null) {
+                return;
+            }
+            long next;
+            try {
+                next = next(di.data());
+            } finally {
+                di.release();
+            }
+            dm.free(uid);
+            uid = next;
+        }
+    }
+
+    /**
+     * 按块惰性读取溢出链，每次只把当前这一块拷出来，读到哪一块才去读哪一页
+     */
+    static class ChainInputStream extends InputStream {
+        private DataManager dm;
+        private long next;
+        private byte[] buf = new byte[0];
+        private int pos;
+
+        ChainInputStream(DataManager dm, long uid) {
+            this.dm = dm;
+            this.next = uid;
+        }
+
+        // 当前块读完时读入下一块，链结束返回 false
+        private boolean fill() throws IOException {
+            while(pos == buf.length) {
+                if(next == 0) {
+                    return false;
+                }
+                DataItem di;
+                try {
+                    di = dm.read(next);
+                } catch(Exception e) {
+                    throw new IOException(e);
+                }
+                if(di == null) {
+                    throw new IOException(Error.NullEntryException);
+                }
+                try {
+                    SubArray sa = di.data();
+                    int of = isHead(sa) ? OF_HEAD_DATA : OF_DATA;
+                    next = next(sa);
+                    buf = new byte[sa.end - sa.start - of];
+                    sa.raw.get(sa.start + of, buf);
+                    pos = 0;
+                } finally {
+                    di.release();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package com.strumcode.endb.backend.dm;
 
-import com.google.common.primitives.Bytes;
 import com.strumcode.endb.backend.dm.page.PageX;
+import com.strumcode.endb.backend.dm.page.SlottedPage;
 import com.strumcode.endb.backend.dm.pageCache.PageCache;
 import com.strumcode.endb.backend.common.SubArray;
 import com.strumcode.endb.backend.dm.dataItem.DataItem;
 import com.strumcode.endb.backend.dm.logger.Logger;
 import com.strumcode.endb.backend.dm.page.Page;
 import com.strumcode.endb.backend.tm.TransactionManager;
+import com.strumcode.endb.backend.tm.TransactionManagerImpl;
+import com.strumcode.endb.backend.utils.Codec;
 import com.strumcode.endb.backend.utils.Panic;
 import com.strumcode.endb.backend.utils.Parser;
 
@@ -16,12 +18,20 @@ import java.util.Map.Entry;
 
 /**
  * DM 为上层模块，提供了两种操作，分别是插入新数据（I）和更新现有数据（U），至于为啥没有删除数据，这个会在 VM 一节叙述。
+ * 槽位页还有第三种：VACUUM 回收已经无效的数据项（F），只在 SUPER_XID 下进行，恢复时总是重做，不会撤销。
+ * 只重做不撤销是安全的：被回收的数据项在 VM 里已经 purge 过（无效标记的更新日志在前面），并且没有事务还会读到它，
+ * 回收这件事本身没有"回滚"的需要；崩溃时还活跃的事务插入或修改的数据项都不是死版本，不会被回收，撤销这些事务时也就不会碰到回收过的槽位。
+ * 恢复按日志顺序重做，同一个槽位上的 插入 -> 回收 -> 重用它的插入 按原来的先后重放，最后留下的是重用之后的记录；
+ * 回收日志重做多次、或者页已经比日志新（槽位空着）都没关系，见 SlottedPage.recoverFree。
+ * 批量插入时一页上一次放入的多个数据项共用一条日志（B），恢复时拆回一条条插入日志处理。
  * DM 的日志策略很简单，一句话就是：在进行 I 和 U 操作之前，必须先进行对应的日志操作，在保证日志写入磁盘后，才进行数据操作。即 WAL
  */
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_FREE = 2;
+    private static final byte LOG_TYPE_BATCH = 3;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -41,7 +51,10 @@ public class Recover {
         byte[] newRaw;
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    /**
+     * @param slotted  数据页是 SlottedPage 的格式，日志里的页内偏移（插入日志的 Offset、uid 的低 16 位）是槽位号
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, boolean slotted) {
         System.out.println("Recovering...");
 
         lg.rewind();
@@ -50,9 +63,11 @@ public class Recover {
             byte[] log = lg.next();
             if(log == null) break;
             int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
+            if(isInsertLog(log) || isBatchLog(log)) {
+                // 批量插入日志的页号和插入日志在同一个位置
+                pgno = Parser.parseInt(log, OF_INSERT_PGNO);
+            } else if(isFreeLog(log)) {
+                pgno = (int)(parseFreeLogUid(log) >>> 32);
             } else {
                 UpdateLogInfo li = parseUpdateLog(log);
                 pgno = li.pgno;
@@ -67,63 +82,71 @@ public class Recover {
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
+        redoTranscations(tm, lg, pc, slotted);
         System.out.println("Redo Transactions Over.");
 
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, lg, pc, slotted);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
+    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc, boolean slotted) {
         lg.rewind();
         while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    // 已完成的事务就要 redo
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    // 已完成的事务就要 redo
-                    doUpdateLog(pc, log, REDO);
+            byte[] next = lg.next();
+            if(next == null) break;
+            for (byte[] log : splitLog(next)) {
+                if(isInsertLog(log)) {
+                    InsertLogInfo li = parseInsertLog(log);
+                    long xid = li.xid;
+                    if(!tm.isActive(xid)) {
+                        // 已完成的事务就要 redo
+                        doInsertLog(pc, log, REDO, slotted);
+                    }
+                } else if(isFreeLog(log)) {
+                    doFreeLog(pc, log);
+                } else {
+                    UpdateLogInfo xi = parseUpdateLog(log);
+                    long xid = xi.xid;
+                    if(!tm.isActive(xid)) {
+                        // 已完成的事务就要 redo
+                        doUpdateLog(pc, log, REDO, slotted);
+                    }
                 }
             }
         }
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
+    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc, boolean slotted) {
         Map<Long, List<byte[]>> logCache = new HashMap<>();
         lg.rewind();
         while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    // 活跃的要 undo
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
+            byte[] next = lg.next();
+            if(next == null) break;
+            for (byte[] log : splitLog(next)) {
+                if(isInsertLog(log)) {
+                    InsertLogInfo li = parseInsertLog(log);
+                    long xid = li.xid;
+                    if(tm.isActive(xid)) {
+                        // 活跃的要 undo
+                        if(!logCache.containsKey(xid)) {
+                            logCache.put(xid, new ArrayList<>());
+                        }
+                        logCache.get(xid).add(log);
                     }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    // 活跃的要 undo
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
+                } else if(isFreeLog(log)) {
+                    continue;
+                } else {
+                    UpdateLogInfo xi = parseUpdateLog(log);
+                    long xid = xi.xid;
+                    if(tm.isActive(xid)) {
+                        // 活跃的要 undo
+                        if(!logCache.containsKey(xid)) {
+                            logCache.put(xid, new ArrayList<>());
+                        }
+                        logCache.get(xid).add(log);
                     }
-                    logCache.get(xid).add(log);
                 }
             }
         }
@@ -138,9 +161,9 @@ public class Recover {
             for (int i = logs.size()-1; i >= 0; i --) {
                 byte[] log = logs.get(i);
                 if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
+                    doInsertLog(pc, log, UNDO, slotted);
                 } else {
-                    doUpdateLog(pc, log, UNDO);
+                    doUpdateLog(pc, log, UNDO, slotted);
                 }
             }
             // 把这些 active 事务修改状态为 abort
@@ -152,26 +175,38 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isFreeLog(byte[] log) {
+        return log[0] == LOG_TYPE_FREE;
+    }
+
+    private static boolean isBatchLog(byte[] log) {
+        return log[0] == LOG_TYPE_BATCH;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    // 日志直接写进一个数组，新旧数据都从原处拷过去
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        int length = raw.end - raw.start;
+        byte[] log = new byte[OF_UPDATE_RAW + length * 2];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        Codec.putLong(log, OF_XID, xid);
+        Codec.putLong(log, OF_UPDATE_UID, di.getUid());
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, length);
+        raw.raw.get(raw.start, log, OF_UPDATE_RAW + length, length);
+        return log;
     }
 
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = Parser.parseLong(log, OF_XID);
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
@@ -181,7 +216,7 @@ public class Recover {
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
+    private static void doUpdateLog(PageCache pc, byte[] log, int flag, boolean slotted) {
         int pgno;
         short offset;
         byte[] raw;
@@ -203,35 +238,46 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            if(slotted) {
+                SlottedPage.recoverUpdate(pg, raw, offset);
+            } else {
+                PageX.recoverUpdate(pg, raw, offset);
+            }
         } finally {
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Offset] [Raw]，槽位页里 Offset 是槽位号
     private static final int OF_INSERT_PGNO = OF_XID+8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+    public static byte[] insertLog(long xid, Page pg, short offset, byte[] raw) {
+        return insertLog(xid, pg.getPageNumber(), offset, raw, 0, raw.length);
+    }
+
+    // raw[from, from+length) 是插入的数据项
+    private static byte[] insertLog(long xid, int pgno, short offset, byte[] raw, int from, int length) {
+        byte[] log = new byte[OF_INSERT_RAW + length];
+        log[OF_TYPE] = LOG_TYPE_INSERT;
+        Codec.putLong(log, OF_XID, xid);
+        Codec.putInt(log, OF_INSERT_PGNO, pgno);
+        Codec.putShort(log, OF_INSERT_OFFSET, offset);
+        System.arraycopy(raw, from, log, OF_INSERT_RAW, length);
+        return log;
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.xid = Parser.parseLong(log, OF_XID);
+        li.pgno = Parser.parseInt(log, OF_INSERT_PGNO);
+        li.offset = Parser.parseShort(log, OF_INSERT_OFFSET);
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(PageCache pc, byte[] log, int flag, boolean slotted) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
@@ -243,7 +289,88 @@ public class Recover {
             if(flag == UNDO) {
                 DataItem.setDataItemRawInvalid(li.raw);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
+            if(slotted) {
+                SlottedPage.recoverInsert(pg, li.raw, li.offset);
+            } else {
+                PageX.recoverInsert(pg, li.raw, li.offset);
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [Count] [Offset1] [Length1] [Raw1] ... [OffsetN] [LengthN] [RawN]，和插入日志一样，槽位页里 Offset 是槽位号
+    private static final int OF_BATCH_COUNT = OF_INSERT_PGNO+4;
+    private static final int OF_BATCH_ITEMS = OF_BATCH_COUNT+2;
+
+    // offsets[i] 是 raws 中第 i 个数据项在页 pg 中的位置
+    public static byte[] batchInsertLog(long xid, Page pg, short[] offsets, List<byte[]> raws) {
+        int size = OF_BATCH_ITEMS;
+        for (byte[] raw : raws) {
+            size += 4 + raw.length;
+        }
+        byte[] log = new byte[size];
+        log[OF_TYPE] = LOG_TYPE_BATCH;
+        Codec.putLong(log, OF_XID, xid);
+        Codec.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        Codec.putShort(log, OF_BATCH_COUNT, (short)raws.size());
+        int pos = OF_BATCH_ITEMS;
+        for (int i = 0; i < raws.size(); i ++) {
+            byte[] raw = raws.get(i);
+            Codec.putShort(log, pos, offsets[i]);
+            Codec.putShort(log, pos + 2, (short)raw.length);
+            System.arraycopy(raw, 0, log, pos + 4, raw.length);
+            pos += 4 + raw.length;
+        }
+        return log;
+    }
+
+    // 批量插入日志拆成等价的一条条插入日志，别的日志原样返回
+    private static List<byte[]> splitLog(byte[] log) {
+        if(!isBatchLog(log)) {
+            return Collections.singletonList(log);
+        }
+        long xid = Parser.parseLong(log, OF_XID);
+        int pgno = Parser.parseInt(log, OF_INSERT_PGNO);
+        int count = Parser.parseShort(log, OF_BATCH_COUNT) & 0xffff;
+        List<byte[]> logs = new ArrayList<>(count);
+        int pos = OF_BATCH_ITEMS;
+        for (int i = 0; i < count; i ++) {
+            short offset = Parser.parseShort(log, pos);
+            int length = Parser.parseShort(log, pos + 2) & 0xffff;
+            pos += 4;
+            logs.add(insertLog(xid, pgno, offset, log, pos, length));
+            pos += length;
+        }
+        return logs;
+    }
+
+    // [LogType] [XID] [UID]
+    private static final int OF_FREE_UID = OF_XID+8;
+
+    public static byte[] freeLog(long uid) {
+        byte[] log = new byte[OF_FREE_UID + 8];
+        log[OF_TYPE] = LOG_TYPE_FREE;
+        Codec.putLong(log, OF_XID, TransactionManagerImpl.SUPER_XID);
+        Codec.putLong(log, OF_FREE_UID, uid);
+        return log;
+    }
+
+    private static long parseFreeLogUid(byte[] log) {
+        return Parser.parseLong(log, OF_FREE_UID);
+    }
+
+    // 回收日志不区分事务，总是重做（原因见类注释），撤销阶段跳过
+    private static void doFreeLog(PageCache pc, byte[] log) {
+        long uid = parseFreeLogUid(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage((int)(uid >>> 32));
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            SlottedPage.recoverFree(pg, (short)(uid & ((1L << 16) - 1)));
         } finally {
             pg.release();
         }
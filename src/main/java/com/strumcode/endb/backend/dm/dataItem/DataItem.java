@@ -1,23 +1,29 @@
 package com.strumcode.endb.backend.dm.dataItem;
 
-import com.google.common.primitives.Bytes;
 import com.strumcode.endb.backend.dm.DataManagerImpl;
 import com.strumcode.endb.backend.dm.page.Page;
-import com.strumcode.endb.backend.utils.Parser;
+import com.strumcode.endb.backend.utils.Codec;
 import com.strumcode.endb.backend.utils.Types;
 import com.strumcode.endb.backend.common.SubArray;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * DataItem 是 DM 层向上层提供的数据抽象。上层模块通过地址，向 DM 请求到对应的 DataItem，再获取到其中的数据。
  */
 public interface DataItem {
+    // ValidFlag 的取值
+    byte VALID = 0;
+    byte INVALID = 1;                               // 无效：恢复时撤销的插入（旧版本的 VACUUM purge 的也是这个）
+    byte PURGED = 2;                                // 被 VACUUM purge 过，空间还没有回收，见 VersionManager.purge
+
     SubArray data();                                // // 该方法返回的形式是 SubArray，这个在页层面是数据共享的。并且返回的是这个 dataItem 的纯数据，不包含其他 dataItem 的格式，这个纯数据的格式就是 Entry 记录
     
     void before();
     void unBefore();
     void after(long xid);
+    void invalidate(long xid);                      // 把数据项标记为无效并落日志，之后 DataManager.read 读不到它
+    void purge(long xid);                           // 同 invalidate，标记成 PURGED，DataManager.listItems 能把它和撤销的插入区分开
     void release();
 
     void lock();
@@ -31,21 +37,46 @@ public interface DataItem {
     SubArray getRaw();
 
     public static byte[] wrapDataItemRaw(byte[] raw) {
-        byte[] valid = new byte[1];
-        byte[] size = Parser.short2Byte((short)raw.length);
-        return Bytes.concat(valid, size, raw);
+        byte[] item = new byte[DataItemImpl.OF_DATA + raw.length];
+        Codec.putShort(item, DataItemImpl.OF_SIZE, (short)raw.length);
+        System.arraycopy(raw, 0, item, DataItemImpl.OF_DATA, raw.length);
+        return item;
     }
 
     // 从页面的 offset(页中数据偏移) 处解析出 dataitem，从 offset 开始长为 length 的都属于 dataitem
     public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
-        byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+ DataItemImpl.OF_SIZE, offset+ DataItemImpl.OF_DATA));
+        return parseDataItem(pg, offset, Types.addressToUid(pg.getPageNumber(), offset), dm);
+    }
+
+    // 槽位页里数据项的 uid 是 (页号, 槽位号)，和偏移无关
+    public static DataItem parseDataItem(Page pg, short offset, long uid, DataManagerImpl dm) {
+        ByteBuffer raw = pg.getData();
+        short size = raw.getShort(offset+ DataItemImpl.OF_SIZE);
         short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
+        return new DataItemImpl(pg, offset, offset+length, uid, dm);
+    }
+
+    // 页面 offset 处的数据项有效时返回它的数据，无效时返回 null。不经过缓存，调用方要持有页锁
+    public static SubArray peekData(Page pg, short offset) {
+        return peekData(pg, offset, VALID);
+    }
+
+    // 页面 offset 处的数据项的 ValidFlag，调用方要持有页锁
+    public static byte getValidFlag(Page pg, short offset) {
+        return pg.getData().get(offset + DataItemImpl.OF_VALID);
+    }
+
+    // 页面 offset 处的数据项的 ValidFlag 是 state 时返回它的数据，否则返回 null。不经过缓存，调用方要持有页锁
+    public static SubArray peekData(Page pg, short offset, byte state) {
+        if(getValidFlag(pg, offset) != state) {
+            return null;
+        }
+        ByteBuffer raw = pg.getData();
+        int size = raw.getShort(offset + DataItemImpl.OF_SIZE) & 0xffff;
+        return new SubArray(raw, offset + DataItemImpl.OF_DATA, offset + DataItemImpl.OF_DATA + size);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte)1;
+        raw[DataItemImpl.OF_VALID] = INVALID;
     }
 }
@@ -4,15 +4,14 @@ import com.strumcode.endb.backend.dm.DataManagerImpl;
 import com.strumcode.endb.backend.dm.page.Page;
 import com.strumcode.endb.backend.common.SubArray;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 /**
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法     // 删除一个 DataItem，只需要简单地将其有效位设置为 0。
+ * ValidFlag 1字节，0为合法，1为非法，2为被 VACUUM purge 过（也是非法，见 DataItem.PURGED）     // 删除一个 DataItem，只需要简单地将其有效位设置为 0。
  * DataSize  2字节，标识 Data 的长度
+ *
+ * 缓存中的每个数据项都是一个 DataItemImpl，要尽量小：只记页、位置和 uid。
+ * 读写锁用按 uid 分条的 Latches，前相只在 before() 到 after()/unBefore() 之间存在，用的是线程复用的缓冲区。
  */
 public class DataItemImpl implements DataItem {
 
@@ -20,40 +19,36 @@ public class DataItemImpl implements DataItem {
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
 
+    // 每个线程一块复用的前相缓冲区。before 时取走（嵌套修改时第二个拿不到就新分配），after/unBefore 时还回去
+    private static final ThreadLocal<byte[]> beforeImages = new ThreadLocal<>();
+
     /**
-     * raw 是描述这个 dataitem 在页中的位置的
-     * raw.raw 是 page 的 data
-     * raw.start 是这个 dataitem 的数据在页中的起始位置
-     * raw.end 是这个 dataitem 的数据在页中的结尾位置
+     * [start, end) 是这个 dataitem 在页 pg 的数据中的位置
      */
-    private SubArray raw;
-    private byte[] oldRaw;
-    private Lock rLock;
-    private Lock wLock;
+    private int start;
+    private int end;
+    private byte[] oldRaw;                  // 只在修改过程中不为 null，可能比数据项长，只有前 end-start 个字节有效
     private DataManagerImpl dm;             // 保存一个 dm 的引用是因为其释放依赖 dm 的释放（dm 同时实现了缓存接口，用于缓存 DataItem），以及修改数据时落日志。
-    private long uid;                       // Types.addressToUid(pg.getPageNumber(), offset);
+    private long uid;                       // Types.addressToUid(pg.getPageNumber(), offset)，槽位页里 offset 是槽位号
     private Page pg;
 
-    // uid 是通过 Types.addressToUid(pg.getPageNumber(), offset) 得来的，在 updatelog 中有用
-    public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
-        this.raw = raw;
-        this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+    // uid 是通过 Types.addressToUid(pg.getPageNumber(), offset) 得来的（槽位页里 offset 是槽位号），在 updatelog 中有用
+    public DataItemImpl(Page pg, int start, int end, long uid, DataManagerImpl dm) {
+        this.pg = pg;
+        this.start = start;
+        this.end = end;
         this.dm = dm;
         this.uid = uid;
-        this.pg = pg;
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start+OF_VALID] == (byte)0;
+        return pg.getData().get(start+OF_VALID) == VALID;
     }
 
     // Keypoint 该方法返回的形式是 SubArray，这个在页层面是数据共享的，并且返回的是这个 dataItem 的纯数据，不包含其他 dataItem 的格式，这个纯数据的格式就是 Entry
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+        return new SubArray(pg.getData(), start+OF_DATA, end);
     }
 
     /**
@@ -63,23 +58,57 @@ public class DataItemImpl implements DataItem {
      */
     @Override
     public void before() {
-        wLock.lock();
+        Latches.of(uid).writeLock().lock();
         pg.setDirty(true);
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+        byte[] buf = beforeImages.get();
+        if(buf == null || buf.length < end - start) {
+            buf = new byte[end - start];
+        } else {
+            beforeImages.set(null);
+        }
+        pg.getData().get(start, buf, 0, end - start);
+        oldRaw = buf;
     }
 
     @Override
     public void unBefore() {
-        // 从 oldRaw 恢复数据到 raw.raw，这是在修改后如果发生错误或需要回滚时将数据恢复到它的初始状态。
-        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
-        wLock.unlock();
+        // 从 oldRaw 恢复数据到页中，这是在修改后如果发生错误或需要回滚时将数据恢复到它的初始状态。
+        pg.getData().put(start, oldRaw, 0, end - start);
+        returnBeforeImage();
+        Latches.of(uid).writeLock().unlock();
     }
 
     @Override
     public void after(long xid) {
         // 记录当前数据项的日志信息，通过日志记录可以实现事务的持久化和恢复机制。
         dm.logDataItem(xid, this);
-        wLock.unlock();
+        returnBeforeImage();
+        Latches.of(uid).writeLock().unlock();
+    }
+
+    // 缓冲区还给当前线程，留下大的那块
+    private void returnBeforeImage() {
+        byte[] cur = beforeImages.get();
+        if(cur == null || cur.length < oldRaw.length) {
+            beforeImages.set(oldRaw);
+        }
+        oldRaw = null;
+    }
+
+    @Override
+    public void invalidate(long xid) {
+        setValidFlag(xid, INVALID);
+    }
+
+    @Override
+    public void purge(long xid) {
+        setValidFlag(xid, PURGED);
+    }
+
+    private void setValidFlag(long xid, byte flag) {
+        before();
+        pg.getData().put(start+OF_VALID, flag);
+        after(xid);
     }
 
     @Override
@@ -89,22 +118,22 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public void lock() {
-        wLock.lock();
+        Latches.of(uid).writeLock().lock();
     }
 
     @Override
     public void unlock() {
-        wLock.unlock();
+        Latches.of(uid).writeLock().unlock();
     }
 
     @Override
     public void rLock() {
-        rLock.lock();
+        Latches.of(uid).readLock().lock();
     }
 
     @Override
     public void rUnLock() {
-        rLock.unlock();
+        Latches.of(uid).readLock().unlock();
     }
 
     @Override
@@ -117,6 +146,7 @@ public class DataItemImpl implements DataItem {
         return uid;
     }
 
+    // 修改过程中（before 之后）才有，前 getRaw() 长度个字节是修改前的内容
     @Override
     public byte[] getOldRaw() {
         return oldRaw;
@@ -124,7 +154,7 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public SubArray getRaw() {
-        return raw;
+        return new SubArray(pg.getData(), start, end);
     }
     
 }
@@ -0,0 +1,51 @@
+package com.strumcode.endb.backend.dm.dataItem;
+
+import com.strumcode.endb.backend.common.SubArray;
+import com.strumcode.endb.backend.dm.DataManagerImpl;
+import com.strumcode.endb.backend.dm.page.Page;
+
+/**
+ * 只读地访问一个数据项，不经过 DataManager 的数据项缓存：不创建 DataItemImpl，也没有缓存加载时等待用的 future。
+ * 同一个 DataItemView 可以反复使用：DataManager.read(uid, pool, view) 让它指向一个数据项并 pin 住所在的页，用完 release，之后再指向别的数据项。
+ * 只用在不修改数据项的读路径上（B+ 树的查找），同一时刻只给一个线程用。读数据之前加 rLock，和修改数据项的 before/after 互斥，同 DataItemImpl
+ */
+public class DataItemView {
+    private final SubArray data = new SubArray(null, 0, 0);
+    private DataManagerImpl dm;
+    private long uid;
+    private Page pg;
+
+    // 指向页 pg 的 offset 处的数据项，由 DataManagerImpl 在页锁内调用，同 DataItem.parseDataItem
+    public void attach(Page pg, short offset, long uid, DataManagerImpl dm) {
+        this.pg = pg;
+        this.uid = uid;
+        this.dm = dm;
+        data.raw = pg.getData();
+        data.start = offset + DataItemImpl.OF_DATA;
+        data.end = data.start + data.raw.getShort(offset + DataItemImpl.OF_SIZE);
+    }
+
+    public boolean isValid() {
+        return data.raw.get(data.start - DataItemImpl.OF_DATA + DataItemImpl.OF_VALID) == DataItem.VALID;
+    }
+
+    // 返回的总是同一个 SubArray，下一次 read 之后它指向别的数据项
+    public SubArray data() {
+        return data;
+    }
+
+    public void rLock() {
+        Latches.of(uid).readLock().lock();
+    }
+
+    public void rUnLock() {
+        Latches.of(uid).readLock().unlock();
+    }
+
+    public void release() {
+        Page p = pg;
+        pg = null;
+        data.raw = null;
+        dm.releaseView(p);
+    }
+}
@@ -0,0 +1,26 @@
+package com.strumcode.endb.backend.dm.dataItem;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 数据项的读写锁按 uid 分到固定的 STRIPES 把锁上，数据项本身不再各自持有一把 ReentrantReadWriteLock。
+ * 不同的数据项可能落在同一把锁上，只是多一点竞争：同一个线程同时只会持有一个数据项的锁（修改 B+ 树节点、设置 XMAX 都是一次一个），不会死锁。
+ */
+class Latches {
+    private static final int STRIPE_BITS = 10;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private static final ReadWriteLock[] latches = new ReadWriteLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i ++) {
+            latches[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    // 同一页相邻槽位的 uid 只差低位，乘上一个奇数常数再取高位，打散到各个锁上
+    static ReadWriteLock of(long uid) {
+        return latches[(int)((uid * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS))];
+    }
+}
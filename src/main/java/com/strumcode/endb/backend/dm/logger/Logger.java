@@ -16,6 +16,7 @@ import java.nio.channels.FileChannel;
  */
 public interface Logger {
     void log(byte[] data);                                   // 将一个字节数组数据 data 包装为一条规范的 log 并追加写入日志文件
+    void flush();                                            // 保证已写入的日志全部落盘，写回数据页之前调用（WAL）
     void truncate(long x) throws Exception;                  // 截掉日志文件多余的部分
     byte[] next();                                           // 返回下一条日志 log 的字节数组 data
     void rewind();                                           // 重置日志读取指针。
@@ -1,6 +1,6 @@
 package com.strumcode.endb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
+import com.strumcode.endb.backend.utils.Codec;
 import com.strumcode.endb.backend.utils.Panic;
 import com.strumcode.endb.backend.utils.Parser;
 import com.strumcode.endb.common.Error;
@@ -120,8 +120,13 @@ public class LoggerImpl implements Logger {
      * 整个日志文件的 xchecksum 是用每条 log 算的
      */
     private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+        return calChecksum(xCheck, log, 0, log.length);
+    }
+
+    // 只对 log[from, to) 计算，不用先拷出来
+    private int calChecksum(int xCheck, byte[] log, int from, int to) {
+        for (int i = from; i < to; i ++) {
+            xCheck = xCheck * SEED + log[i];
         }
         return xCheck;
     }
@@ -136,12 +141,26 @@ public class LoggerImpl implements Logger {
             // fc.size(): The current size of this channel's file, measured in bytes
             fc.position(fc.size());
             fc.write(buf);
+            // 总校验和也要在锁内更新，否则并发写日志时校验和会和日志内容对不上
+            updateXChecksum(log);
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 每条日志在 log() 返回前都已经落盘，这里再 force 一次作为写数据页之前的 WAL 屏障
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
     // 在日志文件中追加写入一条 log 后更新日志文件的总校验和
@@ -158,9 +177,11 @@ public class LoggerImpl implements Logger {
 
     // 将一个字节数组数据 data 包装为一条规范的 log
     private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+        byte[] log = new byte[OF_DATA + data.length];
+        Codec.putInt(log, OF_SIZE, data.length);
+        Codec.putInt(log, OF_CHECKSUM, calChecksum(0, data));
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        return log;
     }
 
     @Override
@@ -198,8 +219,8 @@ public class LoggerImpl implements Logger {
         }
 
         byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        int checkSum1 = calChecksum(0, log, OF_DATA, log.length);
+        int checkSum2 = Parser.parseInt(log, OF_CHECKSUM);
         if(checkSum1 != checkSum2) {
             return null;
         }
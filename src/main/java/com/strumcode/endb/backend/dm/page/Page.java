@@ -1,5 +1,7 @@
 package com.strumcode.endb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 /**
  * 内存中的页
  */
@@ -10,5 +12,8 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
-    byte[] getData();
+    ByteBuffer getData();                   // 页的内容，只能用带下标的绝对读写访问
+    // 缓存中这一页上的数据项个数，有数据项的页不能整理（数据项记着页内偏移）。在页锁内读写，见 DataManagerImpl
+    int getLiveItems();
+    void setLiveItems(int liveItems);
 }
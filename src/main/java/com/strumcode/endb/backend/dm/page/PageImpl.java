@@ -2,18 +2,20 @@ package com.strumcode.endb.backend.dm.page;
 
 import com.strumcode.endb.backend.dm.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PageImpl implements Page {
     private int pageNumber;
-    private byte[] data;
+    private ByteBuffer data;
     private boolean dirty;
+    private int liveItems;
     private Lock lock;
     
     private PageCache pc;
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pc) {
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
@@ -44,8 +46,16 @@ public class PageImpl implements Page {
         return pageNumber;
     }
 
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
 
+    public int getLiveItems() {
+        return liveItems;
+    }
+
+    public void setLiveItems(int liveItems) {
+        this.liveItems = liveItems;
+    }
+
 }
@@ -3,20 +3,34 @@ package com.strumcode.endb.backend.dm.page;
 import com.strumcode.endb.backend.dm.pageCache.PageCache;
 import com.strumcode.endb.backend.utils.RandomUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * 数据库 ".db" 文件的第一页，特殊管理第一页
  * ValidCheck：db 启动时给 100~107 字节处填入一个随机字节，db 关闭时将其拷贝到 108~115 字节（一共 8 个字节）
  * 数据库在每次启动时，就会检查第一页两处的字节是否相同，以此来判断上一次是否正常关闭。如果是异常关闭，就需要执行数据的恢复流程。
+ * Features：116~119 字节，创建数据库时确定的功能标记，旧版本创建的文件这里是 0
+ * HighWaterMark：120~123 字节，正常关闭时已经分配出去的页数。文件按区段预分配，文件长度不再等于页数
+ * PageSize：124~127 字节，建库时选定的页大小。没有 FEATURE_PAGE_SIZE 标记的旧文件是 PageCache.DEFAULT_PAGE_SIZE
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_FEATURES = OF_VC + 2*LEN_VC;
+    private static final int OF_HWM = OF_FEATURES + 4;
+    private static final int OF_PAGE_SIZE = OF_HWM + 4;
 
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static final int FEATURE_FSM = 1;                // 文件中有 FreeSpaceMap 页
+    public static final int FEATURE_HWM = 2;                // PageOne 中记录了高水位
+    public static final int FEATURE_POOLS = 4;              // 数据页区分堆页和索引页（见 PageX、FreeSpaceMap）
+    public static final int FEATURE_PAGE_SIZE = 8;          // PageOne 中记录了页大小
+    public static final int FEATURE_SLOTTED = 16;           // 数据页带槽位目录（见 SlottedPage），uid 的低 16 位是槽位号而不是页内偏移
+
+    public static byte[] InitRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setVcOpen(raw);
+        ByteBuffer.wrap(raw).putInt(OF_FEATURES, FEATURE_FSM | FEATURE_HWM | FEATURE_POOLS | FEATURE_PAGE_SIZE | FEATURE_SLOTTED);
+        ByteBuffer.wrap(raw).putInt(OF_PAGE_SIZE, pageSize);
         return raw;
     }
 
@@ -29,20 +43,52 @@ public class PageOne {
         System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, OF_VC, LEN_VC);
     }
 
+    private static void setVcOpen(ByteBuffer raw) {
+        raw.put(OF_VC, RandomUtil.randomBytes(LEN_VC));
+    }
+
     public static void setVcClose(Page pg) {
         pg.setDirty(true);
         setVcClose(pg.getData());
     }
 
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
+    private static void setVcClose(ByteBuffer raw) {
+        raw.put(OF_VC+LEN_VC, raw, OF_VC, LEN_VC);
+    }
+
+    public static boolean hasFeature(Page pg, int feature) {
+        return (pg.getData().getInt(OF_FEATURES) & feature) != 0;
+    }
+
+    // 从文件开头的原始字节里读页大小，打开数据库时缓冲池还没建起来，拿不到 Page
+    public static int getPageSize(ByteBuffer raw) {
+        if((raw.getInt(OF_FEATURES) & FEATURE_PAGE_SIZE) == 0) {
+            return PageCache.DEFAULT_PAGE_SIZE;
+        }
+        return raw.getInt(OF_PAGE_SIZE);
+    }
+
+    // 打开旧文件时补上新的特性标记，见 DataManager.open
+    public static void addFeature(Page pg, int feature) {
+        pg.setDirty(true);
+        pg.getData().putInt(OF_FEATURES, pg.getData().getInt(OF_FEATURES) | feature);
+    }
+
+    public static void setHwm(Page pg, int pageNumber) {
+        pg.setDirty(true);
+        pg.getData().putInt(OF_HWM, pageNumber);
+    }
+
+    public static int getHwm(Page pg) {
+        return pg.getData().getInt(OF_HWM);
     }
 
     public static boolean checkVc(Page pg) {
         return checkVc(pg.getData());
     }
 
-    private static boolean checkVc(byte[] raw) {
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC + LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC + 2*LEN_VC));
+    private static boolean checkVc(ByteBuffer raw) {
+        // LEN_VC 是 8 字节，正好按一个 long 比较
+        return raw.getLong(OF_VC) == raw.getLong(OF_VC+LEN_VC);
     }
 }
@@ -3,23 +3,36 @@ package com.strumcode.endb.backend.dm.page;
 import com.strumcode.endb.backend.dm.pageCache.PageCache;
 import com.strumcode.endb.backend.utils.Parser;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * PageX 管理普通页
  * 普通页结构
  * [FreeSpaceOffset] [Data]
  * FreeSpaceOffset: 2字节，表示这一页的空闲位置  FSO（Free Space Offset） 的偏移
+ *      最高位是页的归属标记：1 表示索引页（PageCache.POOL_INDEX），0 表示堆页。旧文件里的页、全 0 的新页都是堆页
+ *      FSO 只有 15 位，32KB 的页最后一个字节不用
+ * 页大小是数据库的属性（见 PageOne），这里按 Page 的 buffer 大小计算
  */
 public class PageX {
     
     private static final short OF_FREE = 0;
     private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final int INDEX_BIT = 0x8000;
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+    // 一个空页能放下的数据
+    public static int maxFreeSpace(int pageSize) {
+        return limit(pageSize) - OF_DATA;
+    }
+
+    private static int limit(int pageSize) {
+        return Math.min(pageSize, INDEX_BIT - 1);
+    }
+
+    // pool 为这一页的归属，PageCache.POOL_HEAP 或 POOL_INDEX
+    public static byte[] initRaw(int pageSize, int pool) {
+        byte[] raw = new byte[pageSize];
+        setFSO(raw, (short)(pool == PageCache.POOL_INDEX ? OF_DATA | INDEX_BIT : OF_DATA));
         return raw;
     }
 
@@ -28,28 +41,40 @@ public class PageX {
         System.arraycopy(Parser.short2Byte(fso), 0, raw, OF_FREE, OF_DATA);
     }
 
+    // 页的归属
+    public static int getPool(Page pg) {
+        return (pg.getData().getShort(OF_FREE) & INDEX_BIT) != 0 ? PageCache.POOL_INDEX : PageCache.POOL_HEAP;
+    }
+
     // 获取此页的 FSO 偏移
     public static short getFSO(Page pg) {
         return getFSO(pg.getData());
     }
 
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, OF_DATA));
+    private static short getFSO(ByteBuffer raw) {
+        // 文件按区段预分配，还没写回过的新页在磁盘上全是 0，FSO 为 0 等同于空页
+        short fso = (short)(raw.getShort(OF_FREE) & ~INDEX_BIT);
+        return fso == 0 ? OF_DATA : fso;
+    }
+
+    // 保留归属标记
+    private static void setFSO(ByteBuffer raw, short fso) {
+        raw.putShort(OF_FREE, (short)(fso | (raw.getShort(OF_FREE) & INDEX_BIT)));
     }
 
     // 将 raw 接着写在 pg 中，返回 raw 插入的位置
     public static short insert(Page pg, byte[] raw) {
         pg.setDirty(true);
         short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        pg.getData().put(offset, raw);
         setFSO(pg.getData(), (short)(offset + raw.length));
         return offset;
     }
 
     // 获取页面的空闲空间大小，注意不是空闲空间偏移
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        return limit(pg.getData().capacity()) - (int)getFSO(pg.getData());
     }
 
     // Keypoint 两个函数 recoverInsert() 和 recoverUpdate() 用于在数据库崩溃后重新打开时，恢复例程直接插入数据以及修改数据使用。
@@ -57,7 +82,7 @@ public class PageX {
     // 将 raw 插入 pg 中的 offset 位置，并将 pg 的 FSO 设置为较大值
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        pg.getData().put(offset, raw);
 
         short rawFSO = getFSO(pg.getData());
         if(rawFSO < offset + raw.length) {
@@ -68,6 +93,6 @@ public class PageX {
     // 将 raw 插入 pg 中的 offset 位置，不更新 FSO
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        pg.getData().put(offset, raw);
     }
 }
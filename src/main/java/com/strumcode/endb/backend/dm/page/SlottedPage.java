@@ -0,0 +1,302 @@
+package com.strumcode.endb.backend.dm.page;
+
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * SlottedPage 管理带槽位目录的普通页（PageOne 中有 FEATURE_SLOTTED 标记的数据库），没有这个标记的旧文件仍然是 PageX 的格式
+ * 页结构
+ * [Lower 2] [Upper 2] [Garbage 2] [DeadSlots 2] [Slot 0] [Slot 1] ... 空闲 ... [记录] [记录]
+ * Lower: 槽位目录的结尾，最高位和 PageX 的 FSO 一样是页的归属标记（见 PageX.getPool）
+ * Upper: 记录区的开头，记录从页尾往前放
+ * Garbage: 记录区里被释放、要整理之后才能用的字节数
+ * DeadSlots: 目录中空着的槽位数，插入时优先复用
+ * Slot: [Offset 2] [Length 2]，Offset 为 0 表示空槽位
+ *
+ * 数据项的 uid 是 (页号, 槽位号)，记录在页内的位置可以变：compact 把活着的记录挪到页尾连成一片，槽位号不变。
+ * 全 0 的页是空页：Lower 为 0 按 HEADER 算，Upper 为 0 按页尾算。和 PageX 一样 32KB 的页最后一个字节不用，偏移量都小于 0x8000。
+ */
+public class SlottedPage {
+
+    private static final int OF_LOWER = 0;
+    private static final int OF_UPPER = 2;
+    private static final int OF_GARBAGE = 4;
+    private static final int OF_DEAD = 6;
+    private static final int HEADER = 8;
+    private static final int SLOT_SIZE = 4;
+    private static final int INDEX_BIT = 0x8000;
+
+    // 每个线程一份整理页面用的暂存区，一条记录不会超过最大的页
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[PageCache.MAX_PAGE_SIZE]);
+
+    // 一个空页能放下的最大记录（还要占一个槽位）
+    public static int maxFreeSpace(int pageSize) {
+        return limit(pageSize) - HEADER - SLOT_SIZE;
+    }
+
+    private static int limit(int pageSize) {
+        return Math.min(pageSize, INDEX_BIT - 1);
+    }
+
+    // pool 为这一页的归属，PageCache.POOL_HEAP 或 POOL_INDEX
+    public static byte[] initRaw(int pageSize, int pool) {
+        byte[] raw = new byte[pageSize];
+        ByteBuffer.wrap(raw).putShort(OF_LOWER, (short)(pool == PageCache.POOL_INDEX ? HEADER | INDEX_BIT : HEADER));
+        return raw;
+    }
+
+    private static int lower(ByteBuffer raw) {
+        int lower = raw.getShort(OF_LOWER) & ~INDEX_BIT & 0xffff;
+        return lower == 0 ? HEADER : lower;
+    }
+
+    // 保留归属标记
+    private static void setLower(ByteBuffer raw, int lower) {
+        raw.putShort(OF_LOWER, (short)(lower | (raw.getShort(OF_LOWER) & INDEX_BIT)));
+    }
+
+    private static int upper(ByteBuffer raw) {
+        int upper = raw.getShort(OF_UPPER) & 0xffff;
+        return upper == 0 ? limit(raw.capacity()) : upper;
+    }
+
+    private static int slots(ByteBuffer raw) {
+        return (lower(raw) - HEADER) / SLOT_SIZE;
+    }
+
+    private static int slotOffset(ByteBuffer raw, int slot) {
+        return raw.getShort(HEADER + slot * SLOT_SIZE) & 0xffff;
+    }
+
+    private static int slotLength(ByteBuffer raw, int slot) {
+        return raw.getShort(HEADER + slot * SLOT_SIZE + 2) & 0xffff;
+    }
+
+    private static void setSlot(ByteBuffer raw, int slot, int offset, int length) {
+        raw.putShort(HEADER + slot * SLOT_SIZE, (short)offset);
+        raw.putShort(HEADER + slot * SLOT_SIZE + 2, (short)length);
+    }
+
+    // 槽位目录里的槽位数，包括空槽位
+    public static int getSlots(Page pg) {
+        return slots(pg.getData());
+    }
+
+    // 槽位 slot 上记录的偏移，空槽位或者不存在的槽位返回 -1
+    public static short getOffset(Page pg, short slot) {
+        ByteBuffer raw = pg.getData();
+        if(slot < 0 || slot >= slots(raw)) {
+            return -1;
+        }
+        int offset = slotOffset(raw, slot);
+        return offset == 0 ? -1 : (short)offset;
+    }
+
+    // 能插入的最大记录，算上整理之后能用的空间和新记录的槽位
+    public static int getFreeSpace(Page pg) {
+        ByteBuffer raw = pg.getData();
+        return Math.max(0, upper(raw) - lower(raw) + raw.getShort(OF_GARBAGE) - newSlotCost(raw));
+    }
+
+    // 不整理也能插入的最大记录
+    public static int getContiguousFreeSpace(Page pg) {
+        ByteBuffer raw = pg.getData();
+        return Math.max(0, upper(raw) - lower(raw) - newSlotCost(raw));
+    }
+
+    private static int newSlotCost(ByteBuffer raw) {
+        return raw.getShort(OF_DEAD) > 0 ? 0 : SLOT_SIZE;
+    }
+
+    /**
+     * 为长 length 的记录选一个槽位，空槽位优先，返回槽位号，之后用 insert 放进去。
+     * 连续的空闲空间不够时，canCompact 为 true 则先整理页面，否则返回 -1。
+     * Keypoint 整理会挪动记录，调用方要保证没有别的线程持有这一页的数据项（它们记着记录在页内的偏移）
+     */
+    public static short reserve(Page pg, int length, boolean canCompact) {
+        ByteBuffer raw = pg.getData();
+        if(upper(raw) - lower(raw) - newSlotCost(raw) < length) {
+            if(!canCompact || getFreeSpace(pg) < length) {
+                return -1;
+            }
+            compact(pg);
+        }
+        return (short)findSlot(raw);
+    }
+
+    /**
+     * 批量插入时用：为 lengths[from] 开始的记录按顺序选尽量多的槽位，返回选出的槽位号（一个都放不下时长度为 0），之后按顺序用 insert 放进去。
+     * 连续空间放不下全部记录、页里又有释放掉的空间时，canCompact 为 true 则先整理（要求同 reserve）
+     */
+    public static short[] reserveBatch(Page pg, int[] lengths, int from, boolean canCompact) {
+        ByteBuffer raw = pg.getData();
+        if(canCompact && raw.getShort(OF_GARBAGE) > 0) {
+            int need = 0;
+            for (int i = from; i < lengths.length && need <= raw.capacity(); i ++) {
+                need += lengths[i] + SLOT_SIZE;
+            }
+            if(need > upper(raw) - lower(raw)) {
+                compact(pg);
+            }
+        }
+        int space = upper(raw) - lower(raw);
+        int dead = raw.getShort(OF_DEAD);
+        int deadSlot = 0;
+        int newSlot = slots(raw);
+        short[] planned = new short[lengths.length - from];
+        int count = 0;
+        for (int i = from; i < lengths.length; i ++) {
+            int cost = lengths[i] + (dead > 0 ? 0 : SLOT_SIZE);
+            if(cost > space) {
+                break;
+            }
+            space -= cost;
+            if(dead > 0) {
+                // 和 findSlot 一样空槽位优先，按顺序用
+                while(slotOffset(raw, deadSlot) != 0) {
+                    deadSlot ++;
+                }
+                planned[count ++] = (short)deadSlot ++;
+                dead --;
+            } else {
+                planned[count ++] = (short)newSlot ++;
+            }
+        }
+        return Arrays.copyOf(planned, count);
+    }
+
+    private static int findSlot(ByteBuffer raw) {
+        int n = slots(raw);
+        if(raw.getShort(OF_DEAD) > 0) {
+            for (int i = 0; i < n; i ++) {
+                if(slotOffset(raw, i) == 0) {
+                    return i;
+                }
+            }
+        }
+        return n;
+    }
+
+    // 把 data 放进 reserve 选出的槽位 slot
+    public static void insert(Page pg, short slot, byte[] data) {
+        pg.setDirty(true);
+        place(pg.getData(), slot, data);
+    }
+
+    private static void place(ByteBuffer raw, int slot, byte[] data) {
+        int n = slots(raw);
+        if(slot >= n) {
+            // 中间跳过的槽位是空的（只有恢复时会跳过）
+            for (int i = n; i < slot; i ++) {
+                setSlot(raw, i, 0, 0);
+            }
+            raw.putShort(OF_DEAD, (short)(raw.getShort(OF_DEAD) + slot - n));
+            setLower(raw, HEADER + (slot + 1) * SLOT_SIZE);
+        } else {
+            raw.putShort(OF_DEAD, (short)(raw.getShort(OF_DEAD) - 1));
+        }
+        int offset = upper(raw) - data.length;
+        raw.put(offset, data);
+        raw.putShort(OF_UPPER, (short)offset);
+        setSlot(raw, slot, offset, data.length);
+    }
+
+    // 释放槽位 slot 上的记录，空间要等整理之后才能用
+    public static void free(Page pg, short slot) {
+        pg.setDirty(true);
+        free(pg.getData(), slot);
+    }
+
+    private static void free(ByteBuffer raw, int slot) {
+        int length = slotLength(raw, slot);
+        raw.putShort(OF_GARBAGE, (short)(raw.getShort(OF_GARBAGE) + length));
+        raw.putShort(OF_DEAD, (short)(raw.getShort(OF_DEAD) + 1));
+        setSlot(raw, slot, 0, 0);
+    }
+
+    /**
+     * 整理页面：活着的记录按原来的先后挪到页尾连成一片，末尾的空槽位一起去掉。槽位号不变
+     */
+    public static void compact(Page pg) {
+        pg.setDirty(true);
+        ByteBuffer raw = pg.getData();
+        int n = slots(raw);
+        while(n > 0 && slotOffset(raw, n - 1) == 0) {
+            n --;
+        }
+        // 按偏移从大到小挪，记录只会往页尾方向移动，依次挪不会覆盖还没挪的记录。排序的 key 是 偏移 << 16 | 槽位号
+        long[] order = new long[n];
+        for (int i = 0; i < n; i ++) {
+            order[i] = ((long)slotOffset(raw, i) << 16) | i;
+        }
+        Arrays.sort(order);
+        int upper = limit(raw.capacity());
+        int dead = 0;
+        byte[] buf = scratch.get();
+        for (int i = n - 1; i >= 0; i --) {
+            int slot = (int)(order[i] & 0xffff);
+            int offset = (int)(order[i] >>> 16);
+            if(offset == 0) {
+                dead ++;
+                continue;
+            }
+            int length = slotLength(raw, slot);
+            upper -= length;
+            if(upper != offset) {
+                // 源和目标可能重叠，经过暂存区拷贝
+                raw.get(offset, buf, 0, length);
+                raw.put(upper, buf, 0, length);
+            }
+            setSlot(raw, slot, upper, length);
+        }
+        setLower(raw, HEADER + n * SLOT_SIZE);
+        raw.putShort(OF_UPPER, (short)upper);
+        raw.putShort(OF_GARBAGE, (short)0);
+        raw.putShort(OF_DEAD, (short)dead);
+    }
+
+    // Keypoint 恢复时磁盘上的页可能比正在重做的日志新，也可能旧，下面两个函数对任何一种状态都按槽位把内容放对
+
+    /**
+     * 把 data 放到槽位 slot：槽位上已经是同样长度的记录时原地覆盖，否则重新放置（空间不够时先整理）。
+     * 整理之后还放不下，说明磁盘上的页比这条日志新，槽位之后还会被重用，这条日志的结果反正会被后面的日志盖掉，跳过
+     */
+    public static void recoverInsert(Page pg, byte[] data, short slot) {
+        pg.setDirty(true);
+        ByteBuffer raw = pg.getData();
+        int n = slots(raw);
+        if(slot < n && slotOffset(raw, slot) != 0) {
+            if(slotLength(raw, slot) == data.length) {
+                raw.put(slotOffset(raw, slot), data);
+                return;
+            }
+            free(raw, slot);
+        }
+        int grow = slot < n ? 0 : (slot + 1 - n) * SLOT_SIZE;
+        if(upper(raw) - lower(raw) - grow < data.length) {
+            compact(pg);
+            n = slots(raw);
+            grow = slot < n ? 0 : (slot + 1 - n) * SLOT_SIZE;
+            if(upper(raw) - lower(raw) - grow < data.length) {
+                return;
+            }
+        }
+        place(raw, slot, data);
+    }
+
+    // 更新前后的记录长度相同，和插入一样处理
+    public static void recoverUpdate(Page pg, byte[] data, short slot) {
+        recoverInsert(pg, data, slot);
+    }
+
+    // 释放槽位 slot，槽位空着时什么都不做。页比日志新、槽位已经被重用时也会释放，重用它的插入日志在后面，会把记录再放回去
+    public static void recoverFree(Page pg, short slot) {
+        ByteBuffer raw = pg.getData();
+        if(slot < slots(raw) && slotOffset(raw, slot) != 0) {
+            pg.setDirty(true);
+            free(raw, slot);
+        }
+    }
+}
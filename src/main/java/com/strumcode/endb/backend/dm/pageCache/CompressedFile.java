@@ -0,0 +1,413 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 压缩存放的页文件（-compress 建库）
+ * 对上层仍然是按页号排列的一个大文件，实际每一页用 Lz 压缩后按 SECTOR 向上取整存放在底层文件（单个 ".db" 或段文件）的任意位置，
+ * 页号到位置的对应关系记在 ".pmap" 文件里：[magic 4][pageSize 4][保留 8]，之后第 pgno 页占 8 字节：扇区号 << 16 | 长度。
+ * 长度为 0 表示全 0 的页，不占空间（预分配的区段因此不占磁盘）；长度等于页大小表示压缩不划算，原样存放。
+ *
+ * Keypoint 页总是写到新的位置（copy-on-write），不会覆盖 ".pmap" 中还指向的旧位置：
+ * force() 先 fsync 数据，再把改过的映射项写进 ".pmap" 并 fsync，之后旧位置才回收给新的写。
+ * 这样崩溃后 ".pmap" 里的每一项都指向完整落盘的页，页内容的新旧和不压缩时一样由日志恢复处理。
+ *
+ * 空闲空间是若干段连续的扇区，按起始扇区号和按长度各记一份：回收时和前后相邻的空闲段合并，紧挨文件末尾时直接退回给末尾，
+ * 分配时取放得下的最短的一段（一样长取靠前的），都放不下时从文件末尾分配。打开时根据 ".pmap" 重建。
+ * 只支持 -io channel：mmap 要求页在文件里按页号排列，O_DIRECT 要求按块对齐读写。
+ */
+class CompressedFile implements PageFile {
+    static final String MAP_SUFFIX = ".pmap";
+    private static final int SECTOR = 512;
+    private static final int MAGIC = 0x504d4150;
+    private static final int HEADER = 16;
+    private static final int ENTRY_SIZE = 8;
+
+    private PageFile data;
+    private RandomAccessFile mapFile;
+    private FileChannel mapChannel;
+    private int pageSize;
+    private int maxSectors;
+
+    // 以下由 this 保护
+    private long[] entries;                                             // 下标为页号 - 1
+    private int pages;
+    private BitSet dirty;                                               // 还没写进 ".pmap" 的映射项
+    private boolean resized;                                            // setLength 之后 ".pmap" 的长度还没跟上
+    private TreeMap<Long, Long> freeRuns;                               // 空闲段的起始扇区号 -> 扇区数，相邻的段总是合并在一起
+    private TreeSet<long[]> freeBySize;                                 // 同样的空闲段，元素为 [扇区数, 起始扇区号]，按扇区数排序
+    private long bump;                                                  // 文件末尾第一个没用过的扇区
+    private List<Long> pendingFree;                                     // 被新位置取代、要等下一次 force 才能回收的 [扇区号 << 8 | 扇区数]
+
+    private ReadWriteLock ioLock;                                       // 读页期间持有读锁，回收扇区时持有写锁，读到一半的位置不会被重用
+    private Object forceLock;
+    private boolean closed;
+
+    private ThreadLocal<byte[][]> scratch;                              // 每个线程一份页大小的暂存区：页内容、压缩结果
+
+    private CompressedFile(PageFile data, File map, int pageSize) throws IOException {
+        this.data = data;
+        this.mapFile = new RandomAccessFile(map, "rw");
+        this.mapChannel = mapFile.getChannel();
+        this.pageSize = pageSize;
+        this.maxSectors = pageSize / SECTOR;
+        this.entries = new long[64];
+        this.dirty = new BitSet();
+        this.freeRuns = new TreeMap<>();
+        this.freeBySize = new TreeSet<>(Comparator.<long[]>comparingLong(r -> r[0]).thenComparingLong(r -> r[1]));
+        this.pendingFree = new ArrayList<>();
+        this.ioLock = new ReentrantReadWriteLock();
+        this.forceLock = new Object();
+        this.scratch = ThreadLocal.withInitial(() -> new byte[][]{new byte[pageSize], new byte[pageSize - SECTOR]});
+    }
+
+    static File mapFile(String path) {
+        return new File(path + MAP_SUFFIX);
+    }
+
+    // 在已经建好的空文件 data 之上建一个压缩存放的页文件
+    static CompressedFile create(String path, PageFile data, int pageSize) throws IOException {
+        File map = mapFile(path);
+        if(!map.createNewFile()) {
+            throw new IOException("File exists: " + map);
+        }
+        CompressedFile f = new CompressedFile(data, map, pageSize);
+        ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(0, MAGIC).putInt(4, pageSize);
+        f.mapChannel.write(header, 0);
+        f.mapChannel.force(true);
+        return f;
+    }
+
+    static CompressedFile open(String path, PageFile data) throws IOException {
+        File map = mapFile(path);
+        ByteBuffer raw = ByteBuffer.wrap(java.nio.file.Files.readAllBytes(map.toPath()));
+        if(raw.limit() < HEADER || raw.getInt(0) != MAGIC) {
+            throw new IOException("Bad page map: " + map);
+        }
+        CompressedFile f = new CompressedFile(data, map, raw.getInt(4));
+        f.load(raw);
+        return f;
+    }
+
+    // 读入所有映射项，映射项之间没用到的扇区都是空闲的
+    private void load(ByteBuffer raw) {
+        pages = (raw.limit() - HEADER) / ENTRY_SIZE;
+        entries = new long[Math.max(64, pages)];
+        long[] used = new long[pages];
+        int n = 0;
+        for (int i = 0; i < pages; i ++) {
+            entries[i] = raw.getLong(HEADER + i * ENTRY_SIZE);
+            if(length(entries[i]) > 0) {
+                used[n ++] = (sector(entries[i]) << 8) | sectors(length(entries[i]));
+            }
+        }
+        Arrays.sort(used, 0, n);
+        long next = 0;
+        for (int i = 0; i < n; i ++) {
+            long start = used[i] >>> 8;
+            addFree(next, start - next);
+            next = Math.max(next, start + (used[i] & 0xff));
+        }
+        bump = next;
+    }
+
+    public int read(ByteBuffer dst, long offset) throws IOException {
+        int total = 0;
+        byte[] page = scratch.get()[0];
+        ioLock.readLock().lock();
+        try {
+            while(dst.hasRemaining()) {
+                long entry;
+                synchronized (this) {
+                    if(offset >= (long)pages * pageSize) {
+                        break;
+                    }
+                    entry = entries[(int)(offset / pageSize)];
+                }
+                loadPage(entry, page);
+                int in = (int)(offset % pageSize);
+                int n = Math.min(dst.remaining(), pageSize - in);
+                dst.put(page, in, n);
+                offset += n;
+                total += n;
+            }
+        } finally {
+            ioLock.readLock().unlock();
+        }
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    // 按映射项把一页读进 page
+    private void loadPage(long entry, byte[] page) throws IOException {
+        int len = length(entry);
+        if(len == 0) {
+            Arrays.fill(page, (byte)0);
+            return;
+        }
+        byte[] buf = len == pageSize ? page : scratch.get()[1];
+        readFully(ByteBuffer.wrap(buf, 0, len), sector(entry) * SECTOR);
+        if(len != pageSize) {
+            Lz.decompress(buf, 0, len, page, pageSize);
+        }
+    }
+
+    // 只接受整页的写，每一页写到新的位置
+    public int write(ByteBuffer src, long offset) throws IOException {
+        if(offset % pageSize != 0 || src.remaining() % pageSize != 0) {
+            throw new IOException("Unaligned write to compressed page file");
+        }
+        int n = src.remaining() / pageSize;
+        byte[][] bufs = scratch.get();
+        for (int i = 0; i < n; i ++) {
+            src.get(bufs[0], 0, pageSize);
+            writePage((int)(offset / pageSize) + i, bufs[0], bufs[1]);
+        }
+        return n * pageSize;
+    }
+
+    public void write(ByteBuffer[] srcs, long offset) throws IOException {
+        for (ByteBuffer src : srcs) {
+            offset += write(src, offset);
+        }
+    }
+
+    private void writePage(int idx, byte[] page, byte[] out) throws IOException {
+        int len = 0;
+        byte[] payload = page;
+        if(!isZero(page)) {
+            int c = Lz.compress(page, pageSize, out);
+            if(c > 0) {
+                len = c;
+                payload = out;
+            } else {
+                len = pageSize;
+            }
+        }
+        long sector = 0;
+        if(len > 0) {
+            synchronized (this) {
+                sector = allocate(sectors(len));
+            }
+            writeFully(ByteBuffer.wrap(payload, 0, len), sector * SECTOR);
+        }
+        synchronized (this) {
+            if(idx >= entries.length) {
+                entries = Arrays.copyOf(entries, Math.max(idx + 1, entries.length * 2));
+            }
+            if(idx < pages) {
+                free(entries[idx]);
+            } else {
+                pages = idx + 1;
+            }
+            entries[idx] = (sector << 16) | len;
+            dirty.set(idx);
+        }
+    }
+
+    public MappedByteBuffer map(long offset, long size) throws IOException {
+        throw new IOException("Compressed page file cannot be mapped");
+    }
+
+    public synchronized long size() {
+        return (long)pages * pageSize;
+    }
+
+    public synchronized void setLength(long size) throws IOException {
+        if(size % pageSize != 0) {
+            throw new IOException("Unaligned length of compressed page file");
+        }
+        int n = (int)(size / pageSize);
+        for (int i = n; i < pages; i ++) {
+            free(entries[i]);
+            entries[i] = 0;
+        }
+        if(n >= entries.length) {
+            entries = Arrays.copyOf(entries, n + 1);
+        }
+        if(n < pages) {
+            dirty.clear(n, pages);
+        }
+        pages = n;
+        resized = true;
+    }
+
+    public void force(boolean metaData) throws IOException {
+        synchronized (forceLock) {
+            int[] idx;
+            long[] vals;
+            List<Long> frees;
+            boolean resize;
+            int n;
+            synchronized (this) {
+                idx = dirty.stream().toArray();
+                vals = new long[idx.length];
+                for (int i = 0; i < idx.length; i ++) {
+                    vals[i] = entries[idx[i]];
+                }
+                dirty.clear();
+                frees = pendingFree;
+                pendingFree = new ArrayList<>();
+                resize = resized;
+                resized = false;
+                n = pages;
+            }
+            // 先让映射项指向的数据落盘，再落盘映射项
+            data.force(metaData);
+            if(resize) {
+                mapFile.setLength(HEADER + (long)n * ENTRY_SIZE);
+            }
+            writeEntries(idx, vals);
+            mapChannel.force(true);
+            // 旧位置已经没有落盘的映射项指向了，等读到一半的线程读完再回收
+            ioLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    for (long f : frees) {
+                        addFree(f >>> 8, f & 0xff);
+                    }
+                }
+            } finally {
+                ioLock.writeLock().unlock();
+            }
+        }
+    }
+
+    // 页号连续的映射项合成一次写
+    private void writeEntries(int[] idx, long[] vals) throws IOException {
+        int i = 0;
+        while(i < idx.length) {
+            int j = i + 1;
+            while(j < idx.length && idx[j] == idx[j - 1] + 1) {
+                j ++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((j - i) * ENTRY_SIZE);
+            for (int k = i; k < j; k ++) {
+                buf.putLong(vals[k]);
+            }
+            buf.flip();
+            long pos = HEADER + (long)idx[i] * ENTRY_SIZE;
+            while(buf.hasRemaining()) {
+                pos += mapChannel.write(buf, pos);
+            }
+            i = j;
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (forceLock) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        }
+        force(true);
+        mapChannel.close();
+        mapFile.close();
+        data.close();
+    }
+
+    // 分配 n 个连续的扇区，取放得下的最短的空闲段，剩下的部分仍是空闲段
+    private long allocate(int n) {
+        long[] run = freeBySize.ceiling(new long[]{n, 0});
+        if(run == null) {
+            long start = bump;
+            bump += n;
+            return start;
+        }
+        removeRun(run[1], run[0]);
+        if(run[0] > n) {
+            putRun(run[1] + n, run[0] - n);
+        }
+        return run[1];
+    }
+
+    private void free(long entry) {
+        int len = length(entry);
+        if(len > 0) {
+            pendingFree.add((sector(entry) << 8) | sectors(len));
+        }
+    }
+
+    // 把 [start, start+n) 还给空闲空间，和前后相邻的空闲段合并，合并后紧挨文件末尾时退回给末尾
+    private void addFree(long start, long n) {
+        if(n <= 0) {
+            return;
+        }
+        Map.Entry<Long, Long> prev = freeRuns.floorEntry(start);
+        if(prev != null && prev.getKey() + prev.getValue() == start) {
+            removeRun(prev.getKey(), prev.getValue());
+            start = prev.getKey();
+            n += prev.getValue();
+        }
+        Long next = freeRuns.get(start + n);
+        if(next != null) {
+            removeRun(start + n, next);
+            n += next;
+        }
+        if(start + n == bump) {
+            bump = start;
+            return;
+        }
+        putRun(start, n);
+    }
+
+    private void putRun(long start, long n) {
+        freeRuns.put(start, n);
+        freeBySize.add(new long[]{n, start});
+    }
+
+    private void removeRun(long start, long n) {
+        freeRuns.remove(start);
+        freeBySize.remove(new long[]{n, start});
+    }
+
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        while(buf.hasRemaining()) {
+            if(data.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("Compressed page beyond end of file");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long offset) throws IOException {
+        while(buf.hasRemaining()) {
+            data.write(buf, offset + buf.position());
+        }
+    }
+
+    private static boolean isZero(byte[] page) {
+        for (byte b : page) {
+            if(b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long sector(long entry) {
+        return entry >>> 16;
+    }
+
+    private static int length(long entry) {
+        return (int)(entry & 0xffff);
+    }
+
+    private static int sectors(int len) {
+        return (len + SECTOR - 1) / SECTOR;
+    }
+}
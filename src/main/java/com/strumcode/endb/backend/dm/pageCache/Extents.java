@@ -0,0 +1,69 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ".db" 文件按区段（extent）增长
+ * 文件的物理长度总是比已经分配出去的页多出一段预分配好的、写满 0 的空间，newPage() 从中分配页号时不需要任何 I/O，
+ * 只有用完了才再预分配一个区段：写 0 并 fsync 一次（包括文件长度这个元数据）。
+ * 区段大小随文件变大：当前大小的 1/8，在 MIN_EXTENT ~ MAX_EXTENT 页之间（默认的 8K 页是 1MB ~ 64MB）。
+ *
+ * 预分配出来的页全是 0，和还没写过的新页等价：普通页的 FSO 为 0 时按空页处理（见 PageX），FSM 页本来就是全 0。
+ */
+class Extents {
+    private static final int MIN_EXTENT = 1 << 7;                  // 128 页，1MB
+    private static final int MAX_EXTENT = 1 << 13;                 // 8192 页，64MB
+    private static final int ZERO_CHUNK = 1 << 20;
+
+    private PageFile file;
+    private int pageSize;
+    private volatile int allocated;                                 // 文件中物理存在的页数
+    private ByteBuffer zeros;
+
+    Extents(PageFile file, int pageSize, long length) {
+        this.file = file;
+        this.pageSize = pageSize;
+        this.allocated = (int)(length / pageSize);
+    }
+
+    // 保证页 pgno 在文件的物理范围内，不够时预分配新的区段
+    void ensure(int pgno) {
+        if(pgno <= allocated) {
+            return;
+        }
+        synchronized (this) {
+            while(pgno > allocated) {
+                int pages = Math.max(MIN_EXTENT, Math.min(MAX_EXTENT, allocated / 8));
+                zeroFill(PageCacheImpl.pageOffset(allocated + 1, pageSize), (long)pages * pageSize);
+                allocated += pages;
+            }
+        }
+    }
+
+    // 文件被截断到 pages 页
+    synchronized void truncated(int pages) {
+        allocated = pages;
+    }
+
+    private void zeroFill(long offset, long length) {
+        if(zeros == null) {
+            zeros = FrameArena.allocate(ZERO_CHUNK);
+        }
+        try {
+            long end = offset + length;
+            while(offset < end) {
+                zeros.clear().limit((int)Math.min(ZERO_CHUNK, end - offset));
+                while(zeros.hasRemaining()) {
+                    offset += file.write(zeros, offset);
+                }
+            }
+            // 文件长度变了，连同元数据一起 fsync
+            file.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
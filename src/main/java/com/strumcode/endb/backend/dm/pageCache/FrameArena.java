@@ -0,0 +1,74 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 缓冲池的页框，放在堆外（direct buffer）
+ * 页框按 CHUNK_FRAMES 个一块向操作系统申请，页被驱逐后它的页框放回空闲栈，给下一次缺页复用。
+ * 缓冲池缩小后，超出 maxFrames 的页框在归还时直接丢弃，一块中的页框都被丢弃后这块内存由 GC 回收。
+ * 这样缺页时不用再分配 8K 的数组，大内存配置下页的内容也不会进入老年代。
+ *
+ * 按需分块申请而不是启动时一次申请 maxFrames 个，是为了小库不必一开始就占满 -mem 的内存（direct 内存同样受 -XX:MaxDirectMemorySize 限制）。
+ * 页框只允许带下标的绝对读写，不能修改它的 position/limit。
+ *
+ * 页框以及其他直接参与页读写的 direct buffer 都用 allocate() 分配，地址按 MIN_PAGE_SIZE 对齐，满足 O_DIRECT（-io direct）的要求。
+ */
+class FrameArena {
+    private static final int CHUNK_FRAMES = 1 << 12;               // 每块 4096 个页框，32MB
+
+    private int frameSize;
+    private int maxFrames;
+    private int allocated;                                          // 已经申请、还没有丢弃的页框数
+    private ArrayDeque<ByteBuffer> free;
+
+    FrameArena(int frameSize, int maxFrames) {
+        this.frameSize = frameSize;
+        this.maxFrames = maxFrames;
+        this.free = new ArrayDeque<>();
+    }
+
+    // 取一个空闲页框，内容是上一次使用留下的，调用方负责整页覆盖
+    synchronized ByteBuffer take() {
+        if(free.isEmpty()) {
+            grow();
+        }
+        return free.pop();
+    }
+
+    synchronized void giveBack(ByteBuffer frame) {
+        if(allocated > maxFrames) {
+            allocated --;
+            return;
+        }
+        free.push(frame);
+    }
+
+    // 调整页框的上限，调小时先丢弃多余的空闲页框
+    synchronized void setMaxFrames(int maxFrames) {
+        this.maxFrames = maxFrames;
+        while(allocated > maxFrames && !free.isEmpty()) {
+            free.pop();
+            allocated --;
+        }
+    }
+
+    synchronized int getAllocated() {
+        return allocated;
+    }
+
+    private void grow() {
+        // 调用方（AbstractCache）保证同时在用的页不超过 maxFrames，这里多申请一块也不会超出太多
+        int n = Math.max(1, Math.min(CHUNK_FRAMES, maxFrames - allocated));
+        ByteBuffer chunk = allocate(n * frameSize);
+        for (int i = 0; i < n; i ++) {
+            free.push(chunk.slice(i * frameSize, frameSize));
+        }
+        allocated += n;
+    }
+
+    // 分配一块地址按 MIN_PAGE_SIZE 对齐的 direct buffer，各种页大小下页框的地址都是对齐的
+    static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size + PageCache.MIN_PAGE_SIZE).alignedSlice(PageCache.MIN_PAGE_SIZE).limit(size).slice();
+    }
+}
@@ -0,0 +1,162 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 页压缩用的 LZ77 编解码，格式和 LZ4 的 block 格式相同：
+ * 一串 sequence，每个 sequence 是 [token 1][字面量长度扩展][字面量][匹配偏移 2, 小端][匹配长度扩展]，
+ * token 高 4 位是字面量长度，低 4 位是匹配长度 - 4，等于 15 时后面跟扩展字节（每个 255 继续，小于 255 结束）。
+ * 最后一个 sequence 只有字面量。匹配用 4 字节的哈希表找，只找最近一次出现的位置，速度优先。
+ */
+class Lz {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int LAST_LITERALS = 5;                     // 最后 5 个字节总是字面量
+    private static final int MF_LIMIT = 12;                         // 离结尾不到 12 个字节时不再找匹配
+
+    private static final ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    /**
+     * 压缩 src[0, len) 到 dst，返回压缩后的长度；dst 放不下（压缩不划算）时返回 -1
+     */
+    static int compress(byte[] src, int len, byte[] dst) {
+        int[] table = TABLE.get();
+        // 表里存位置 + 1，0 表示空
+        Arrays.fill(table, 0);
+        int anchor = 0;
+        int op = 0;
+        int i = 0;
+        int limit = len - MF_LIMIT;
+        while(i < limit) {
+            int seq = getInt(src, i);
+            int h = (seq * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[h] - 1;
+            table[h] = i + 1;
+            if(ref < 0 || i - ref > MAX_OFFSET || getInt(src, ref) != seq) {
+                i ++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            int maxEnd = len - LAST_LITERALS;
+            while(i + matchLen < maxEnd && src[ref + matchLen] == src[i + matchLen]) {
+                matchLen ++;
+            }
+            op = emit(src, anchor, i - anchor, i - ref, matchLen, dst, op);
+            if(op < 0) {
+                return -1;
+            }
+            i += matchLen;
+            anchor = i;
+        }
+        return emit(src, anchor, len - anchor, 0, 0, dst, op);
+    }
+
+    // 写出一个 sequence，matchLen 为 0 时是最后一个只有字面量的 sequence。返回新的写位置，放不下时返回 -1
+    private static int emit(byte[] src, int litStart, int litLen, int offset, int matchLen, byte[] dst, int op) {
+        int ml = matchLen == 0 ? 0 : matchLen - MIN_MATCH;
+        // token + 扩展字节 + 字面量 + 偏移，先按最坏情况检查
+        if(op + 1 + litLen / 255 + 1 + litLen + 2 + ml / 255 + 1 > dst.length) {
+            return -1;
+        }
+        int tokenPos = op ++;
+        int token = Math.min(litLen, 15) << 4;
+        op = putLength(litLen, dst, op);
+        System.arraycopy(src, litStart, dst, op, litLen);
+        op += litLen;
+        if(matchLen != 0) {
+            dst[op ++] = (byte)offset;
+            dst[op ++] = (byte)(offset >>> 8);
+            token |= Math.min(ml, 15);
+            op = putLength(ml, dst, op);
+        }
+        dst[tokenPos] = (byte)token;
+        return op;
+    }
+
+    private static int putLength(int n, byte[] dst, int op) {
+        if(n < 15) {
+            return op;
+        }
+        n -= 15;
+        while(n >= 255) {
+            dst[op ++] = (byte)255;
+            n -= 255;
+        }
+        dst[op ++] = (byte)n;
+        return op;
+    }
+
+    /**
+     * 把 src[off, off+len) 解压到 dst，解出来的长度必须正好是 dstLen，否则说明数据损坏。
+     * src 在 off+len 之后可能还有别的数据（读页用的暂存区），每一步都检查不越过 off+len
+     */
+    static void decompress(byte[] src, int off, int len, byte[] dst, int dstLen) throws IOException {
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+        try {
+            while(ip < end) {
+                int token = src[ip ++] & 0xff;
+                int litLen = token >>> 4;
+                if(litLen == 15) {
+                    int b;
+                    do {
+                        checkInput(ip, 1, end);
+                        b = src[ip ++] & 0xff;
+                        litLen += b;
+                    } while(b == 255);
+                }
+                checkInput(ip, litLen, end);
+                if(op + litLen > dstLen) {
+                    throw new IOException("Bad compressed page");
+                }
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if(ip >= end) {
+                    break;
+                }
+                checkInput(ip, 2, end);
+                int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                int matchLen = token & 0xf;
+                if(matchLen == 15) {
+                    int b;
+                    do {
+                        checkInput(ip, 1, end);
+                        b = src[ip ++] & 0xff;
+                        matchLen += b;
+                    } while(b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if(offset == 0 || ref < 0 || op + matchLen > dstLen) {
+                    throw new IOException("Bad compressed page");
+                }
+                // 匹配可以和自己重叠，逐字节拷贝
+                for (int k = 0; k < matchLen; k ++) {
+                    dst[op + k] = dst[ref + k];
+                }
+                op += matchLen;
+            }
+        } catch(IndexOutOfBoundsException e) {
+            throw new IOException("Bad compressed page");
+        }
+        if(op != dstLen) {
+            throw new IOException("Bad compressed page");
+        }
+    }
+
+    // 从 ip 开始还要读 n 个字节，不能越过 end
+    private static void checkInput(int ip, int n, int end) throws IOException {
+        if(n > end - ip) {
+            throw new IOException("Bad compressed page");
+        }
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,434 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.common.AbstractCache;
+import com.strumcode.endb.backend.dm.logger.Logger;
+import com.strumcode.endb.backend.dm.page.Page;
+import com.strumcode.endb.backend.dm.page.PageImpl;
+import com.strumcode.endb.backend.utils.Panic;
+import com.strumcode.endb.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 内存映射模式的 PageCache（-io mmap）
+ * 把 ".db" 文件按 CHUNK_SIZE 一块映射成 MappedByteBuffer，getPage() 返回的 Page 直接是映射区中对应一页的视图，
+ * 缺页时不用读盘，也不用分配页大小的数组，也不用系统调用（块已经映射着时）。缓存里只放 Page 对象本身（锁、脏标记）。
+ *
+ * 每一块只映射到文件当前的长度（映射超出文件长度会把文件撑大），文件按区段预分配（见 Extents），访问到区段中的新页时再重新映射所在的块。
+ * 旧的映射在还被 Page 引用时依然有效。CHUNK_SIZE 是各种页大小的整数倍，段文件的大小又是 CHUNK_SIZE 的整数倍，一页不会跨两个映射块，一个映射块也不会跨两个段文件。
+ *
+ * Keypoint 映射是私有的（写时复制，见 PageFile.map），操作系统不会把映射区的修改写回文件。否则它随时可能写回一页，
+ * 而 DataItem 的修改在 after() 落日志之前就已经写进了页，崩溃后磁盘上会留下没有日志、恢复也撤销不了的修改。
+ * 脏页和 channel 模式一样由缓存自己写回：被驱逐时（引用已经归零，页上的修改都已经落了日志）先 flush 日志，再把页写进文件。
+ *
+ * 页被修改过之后，写时复制出来的那一页是匿名内存，不再是操作系统可以随时丢掉的页缓存，写回文件之后也还留在映射里，只有解除映射才能释放。
+ * 所以每一块记着其中写回过的页数（copies），所有在役块的 copies 加起来超过缓存的页数（-mem）时，让 copies 最多的块退役：
+ * 从块表里摘掉（之后缺页重新映射这一块，看到的是写回过的文件），驱逐其中没被引用的页，块中的页都离开缓存之后解除映射。
+ * 这样写时复制的副本最多是：缓存中被改过的页（-mem 以内）+ 在役块中写回过的页（-mem 以内）+ 退役了还被引用着的块。
+ * 最后一项是一直被引用着的页（PageOne、B+ 树的 boot 数据项）所在的块，每一页最多拖住一块。
+ * 不按页映射：每次缺页一次 mmap、每次驱逐一次 munmap，随机读比 channel 模式还慢（见 PageFetchBenchmark）。
+ *
+ * 每个映射占一个内存区域（VMA），进程的区域数受 vm.max_map_count 限制（默认 65530），映射着的块超过它的一半时，先解除没有页在缓存中的块。
+ * 解除映射之后再访问这个 buffer 会让进程崩溃，这和 channel 模式里页框被驱逐后给别的页复用是同一个约定：页只在被引用期间访问。
+ */
+public class MmapPageCacheImpl extends AbstractCache<Page> implements PageCache {
+
+    private static final int MEM_MIN_LIM = 10;
+    private static final int CHUNK_SIZE = 1 << 20;                      // 每一块 1MB
+    private static final int DEFAULT_MAX_MAP_COUNT = 65530;
+    private static final File MAX_MAP_COUNT = new File("/proc/sys/vm/max_map_count");
+    // sun.misc.Unsafe.invokeCleaner，用来立即解除映射；拿不到时（非 HotSpot 的 JVM）由 GC 回收 buffer 时解除
+    private static final MethodHandle INVOKE_CLEANER = findCleaner();
+
+    private PageFile file;
+    private Logger logger;
+    private int pageSize;
+    private Extents extents;
+    private Object mapLock;
+    // 以下只在 mapLock 内访问
+    private Chunk[] chunks;                                             // 下标为块号，还没映射或者已经退役的块为 null
+    private int mappedChunks;                                           // 映射着的块数，包括退役了还没解除映射的
+    private long copies;                                                // 在役块的 copies 之和
+    private int maxChunks;
+
+    private ConcurrentLinkedQueue<Chunk> retiring;                      // 退役了、还要驱逐其中的页的块
+
+    private AtomicInteger pageNumbers;
+
+    /**
+     * @param logger  写回数据页之前需要先 flush 的日志
+     */
+    MmapPageCacheImpl(PageFile file, int pageSize, int maxResource, Logger logger) {
+        super(maxResource, true);
+        setReservedShare(POOL_INDEX, DEFAULT_INDEX_SHARE);
+        if(maxResource < MEM_MIN_LIM) {
+            Panic.panic(Error.MemTooSmallException);
+        }
+        long length = 0;
+        try {
+            length = file.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        this.file = file;
+        this.logger = logger;
+        this.pageSize = pageSize;
+        this.extents = new Extents(file, pageSize, length);
+        this.mapLock = new Object();
+        this.chunks = new Chunk[0];
+        this.maxChunks = maxChunks();
+        this.retiring = new ConcurrentLinkedQueue<>();
+        this.pageNumbers = new AtomicInteger((int)(length / pageSize));
+    }
+
+    // 映射块数的上限：vm.max_map_count 的一半，剩下的留给 JVM 自己的映射
+    private static int maxChunks() {
+        try {
+            return Integer.parseInt(Files.readString(MAX_MAP_COUNT.toPath()).trim()) / 2;
+        } catch (IOException | RuntimeException e) {
+            return DEFAULT_MAX_MAP_COUNT / 2;
+        }
+    }
+
+    private static MethodHandle findCleaner() {
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return MethodHandles.lookup()
+                .findVirtual(c, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(f.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static class Chunk {
+        final int index;
+        final MappedByteBuffer buf;
+        int pages;                                                      // 缓存中这一块映射出来的页数
+        int copies;                                                     // 写回过的页数，同一页写回几次算几次，只会多算
+        boolean retired;
+
+        Chunk(int index, MappedByteBuffer buf) {
+            this.index = index;
+            this.buf = buf;
+        }
+    }
+
+    // 记着自己来自哪一块映射
+    private static class MappedPage extends PageImpl {
+        final Chunk chunk;
+
+        MappedPage(int pgno, ByteBuffer data, PageCache pc, Chunk chunk) {
+            super(pgno, data, pc);
+            this.chunk = chunk;
+        }
+    }
+
+    public int newPage(byte[] initData) {
+        int pgno = pageNumbers.incrementAndGet();
+        extents.ensure(pgno);
+        // 新页的初始内容写进文件，所在的块映射着时映射区里也放一份，这一页之前即使被映射过也能看到
+        long offset = PageCacheImpl.pageOffset(pgno, pageSize);
+        int idx = (int)(offset / CHUNK_SIZE);
+        int at = (int)(offset % CHUNK_SIZE);
+        try {
+            synchronized (mapLock) {
+                Chunk c = idx < chunks.length ? chunks[idx] : null;
+                if(c != null && c.buf.capacity() >= at + pageSize) {
+                    c.buf.put(at, initData);
+                    addCopy(c);
+                }
+            }
+            write(ByteBuffer.wrap(initData), offset);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return pgno;
+    }
+
+    public Page getPage(int pgno) throws Exception {
+        return getPage(pgno, POOL_HEAP);
+    }
+
+    public Page getPage(int pgno, int pool) throws Exception {
+        evictRetired();
+        return get((long)pgno, pool);
+    }
+
+    /**
+     * 驱逐退役的块中没被引用的页。块是在驱逐别的页时（持有缓存的分段锁）退役的，那时不能再去拿别的分段锁，留到下一次 getPage 做
+     */
+    private void evictRetired() {
+        Chunk c;
+        while((c = retiring.poll()) != null) {
+            int first = (int)((long)c.index * CHUNK_SIZE / pageSize) + 1;
+            for (int i = c.buf.capacity() / pageSize - 1; i >= 0; i --) {
+                evict(first + i);
+            }
+        }
+    }
+
+    // 映射区缺页时操作系统自己会做预读，这里不需要再做什么
+    public void prefetch(int pgnoFrom, int count) {
+    }
+
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pgno = (int)key;
+        long offset = PageCacheImpl.pageOffset(pgno, pageSize);
+        int at = (int)(offset % CHUNK_SIZE);
+        synchronized (mapLock) {
+            Chunk c = chunkFor((int)(offset / CHUNK_SIZE), at + pageSize);
+            c.pages ++;
+            return new MappedPage(pgno, c.buf.slice(at, pageSize), this, c);
+        }
+    }
+
+    // 返回第 idx 块的映射，长度至少是 end，不够长时按文件当前长度重新映射（调用方持有 mapLock）
+    private Chunk chunkFor(int idx, int end) throws IOException {
+        Chunk c = idx < chunks.length ? chunks[idx] : null;
+        if(c != null && c.buf.capacity() >= end) {
+            return c;
+        }
+        if(c != null) {
+            // 旧的映射还被缓存里的页引用着，退役，等这些页都被驱逐之后再解除
+            retire(c);
+        }
+        if(mappedChunks >= maxChunks) {
+            unmapIdle();
+        }
+        long start = (long)idx * CHUNK_SIZE;
+        long size = Math.min(CHUNK_SIZE, file.size() - start);
+        if(size < end) {
+            // 文件末尾之外的页，和 channel 模式一样读出来是全 0 的页，这里先把文件补齐再映射
+            file.setLength(start + end);
+            size = end;
+        }
+        c = new Chunk(idx, file.map(start, size));
+        if(idx >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(idx + 1, chunks.length * 2));
+        }
+        chunks[idx] = c;
+        mappedChunks ++;
+        return c;
+    }
+
+    // 把块从块表里摘掉，块中没有页在缓存里时立即解除映射（调用方持有 mapLock）
+    private void retire(Chunk c) {
+        chunks[c.index] = null;
+        c.retired = true;
+        copies -= c.copies;
+        if(c.pages == 0) {
+            unmap(c);
+        }
+    }
+
+    private void unmap(Chunk c) {
+        mappedChunks --;
+        if(INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer)c.buf);
+        } catch (Throwable e) {
+            Panic.panic(new RuntimeException(e));
+        }
+    }
+
+    // 映射着的块太多了，解除所有没有页在缓存中的块（调用方持有 mapLock）
+    private void unmapIdle() {
+        for (Chunk c : chunks) {
+            if(c != null && c.pages == 0) {
+                retire(c);
+            }
+        }
+    }
+
+    // 块中多了一页写时复制的副本，副本太多时让副本最多的块退役，直到降到缓存页数的 3/4（调用方持有 mapLock）
+    private void addCopy(Chunk c) {
+        c.copies ++;
+        copies ++;
+        int limit = getMaxResource();
+        if(copies <= limit) {
+            return;
+        }
+        while(copies > limit - limit / 4) {
+            Chunk max = null;
+            for (Chunk x : chunks) {
+                if(x != null && (max == null || x.copies > max.copies)) {
+                    max = x;
+                }
+            }
+            if(max == null || max.copies == 0) {
+                break;
+            }
+            retire(max);
+            if(max.pages > 0) {
+                retiring.add(max);
+            }
+        }
+    }
+
+    /**
+     * 驱逐时写回脏页，写时复制的副本还留在映射里，之后再读这一页看到的还是它，记进所在块的 copies。
+     * 页来自退役的块时，块中最后一页离开缓存后解除这一块的映射
+     */
+    @Override
+    protected void releaseForCache(Page pg) {
+        boolean dirty = pg.isDirty();
+        if(dirty) {
+            logger.flush();
+            flush(pg);
+            pg.setDirty(false);
+        }
+        Chunk c = ((MappedPage)pg).chunk;
+        synchronized (mapLock) {
+            c.pages --;
+            if(c.retired) {
+                if(c.pages == 0) {
+                    unmap(c);
+                }
+            } else if(dirty) {
+                addCopy(c);
+            }
+        }
+    }
+
+    private void flush(Page pg) {
+        try {
+            // 页的 buffer 可能同时被别的线程读，这里用一个独立的 position 写
+            write(pg.getData().duplicate().clear(), PageCacheImpl.pageOffset(pg.getPageNumber(), pageSize));
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void write(ByteBuffer buf, long offset) throws IOException {
+        while(buf.hasRemaining()) {
+            file.write(buf, offset + buf.position());
+        }
+    }
+
+    public void release(Page page) {
+        release((long)page.getPageNumber());
+    }
+
+    // 缓存里只有 Page 对象，调整的是 Page 对象的个数，也是写回过的页的副本数的上限，页的内容始终在映射区里
+    public synchronized void resize(long memory) throws Exception {
+        int pages = (int)(memory / pageSize);
+        if(pages < MEM_MIN_LIM) {
+            throw Error.MemTooSmallException;
+        }
+        super.resize(pages);
+    }
+
+    public PoolStats getPoolStats() {
+        PoolStats stats = new PoolStats();
+        stats.pageSize = pageSize;
+        stats.capacity = getMaxResource();
+        stats.resident = getResourceCount();
+        stats.evictions = getEvictions();
+        for (int pool = 0; pool < POOLS; pool ++) {
+            stats.shares[pool] = getReservedShare(pool);
+            stats.poolResident[pool] = getPartitionCount(pool);
+            stats.hits[pool] = getHits(pool);
+            stats.misses[pool] = getMisses(pool);
+        }
+        return stats;
+    }
+
+    public synchronized void setPoolShare(int pool, int percent) throws Exception {
+        if(pool < 0 || pool >= POOLS || percent < 0) {
+            throw Error.InvalidPoolShareException;
+        }
+        int total = percent;
+        for (int p = 0; p < POOLS; p ++) {
+            if(p != pool) {
+                total += getReservedShare(p);
+            }
+        }
+        if(total > 100) {
+            throw Error.InvalidPoolShareException;
+        }
+        setReservedShare(pool, percent);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void flushPage(Page pg) {
+        flush(pg);
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public void truncateByBgno(int maxPgno) {
+        long size = PageCacheImpl.pageOffset(maxPgno + 1, pageSize);
+        synchronized (mapLock) {
+            // 截断之后文件末尾之外的映射不能再访问，全部退役，用到时重新映射。缓存里的脏页还引用着旧的映射，驱逐时照常写回
+            for (Chunk c : chunks) {
+                if(c != null) {
+                    retire(c);
+                }
+            }
+            try {
+                file.setLength(size);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            extents.truncated(maxPgno);
+        }
+        pageNumbers.set(maxPgno);
+    }
+
+    public void setPageNumber(int pgno) {
+        pageNumbers.set(pgno);
+    }
+
+    @Override
+    public void close() {
+        // 驱逐所有页，脏页都写回文件，再解除所有映射
+        super.close();
+        synchronized (mapLock) {
+            for (Chunk c : chunks) {
+                if(c != null) {
+                    retire(c);
+                }
+            }
+        }
+        try {
+            file.force(false);
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 在役块中写回过的页数，测试里检查它不超过缓存的页数
+    long getCopies() {
+        synchronized (mapLock) {
+            return copies;
+        }
+    }
+
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+}
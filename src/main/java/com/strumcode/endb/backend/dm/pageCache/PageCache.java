@@ -1,74 +1,126 @@
 package com.strumcode.endb.backend.dm.pageCache;
 
+import com.strumcode.endb.backend.dm.logger.Logger;
 import com.strumcode.endb.backend.dm.page.Page;
+import com.strumcode.endb.backend.dm.page.PageOne;
 import com.strumcode.endb.backend.utils.Panic;
 import com.strumcode.endb.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 
 /**
  * 总的来说就是用来管理页面 page 的 page缓存池
  */
 public interface PageCache {
     
-    public static final int PAGE_SIZE = 1 << 13;
+    // 页大小在建库时用 -pagesize 选定，记录在 PageOne 里，打开时读出来，之后不能再改
+    public static final int DEFAULT_PAGE_SIZE = 1 << 13;
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 15;
+
+    // 页的读写方式，启动时用 -io 选择
+    public static final int IO_CHANNEL = 0;             // 默认，缓冲池 + FileChannel 读写
+    public static final int IO_MMAP = 1;                // 把文件映射到内存，页直接是映射区的视图
+    public static final int IO_DIRECT = 2;              // 缓冲池 + O_DIRECT 读写，绕过操作系统的页缓存，内存都留给 -mem
+
+    // 缓冲池的分区，堆页（表的记录和元数据）和索引页（B+ 树节点）分开统计，各自可以保留一部分缓冲池，见 setPoolShare
+    public static final int POOL_HEAP = 0;
+    public static final int POOL_INDEX = 1;
+    public static final int POOLS = 2;
+    public static final int DEFAULT_INDEX_SHARE = 20;   // 默认给索引页保留 20% 的缓冲池，全表扫描不会把索引挤出去
 
     int newPage(byte[] initData);
-    Page getPage(int pgno) throws Exception;
+    Page getPage(int pgno) throws Exception;            // 按堆页读
+    Page getPage(int pgno, int pool) throws Exception;  // 页缺失时归入 pool 分区，已在缓冲池里的页改归 pool 分区
     void close();
-    void release(Page page);                            // 就是 AbstractCache 的 release 【减少缓存的引用计数一次，尝试刷回磁盘】
+    void release(Page page);                            // 就是 AbstractCache 的 release 【减少缓存的引用计数一次，页仍常驻缓冲池，直到被驱逐时才刷回磁盘】
 
     void truncateByBgno(int maxPgno);                   // 根据已知的这个文件能产生的最大的页数，截断文件多余的部分
-    int getPageNumber();                                // 获得 pageCache 的总页数
+    int getPageSize();
+    int getPageNumber();                                // 获得 pageCache 的总页数（已经分配出去的页，文件中可能还有预分配的空页）
+    void setPageNumber(int pgno);                       // 打开数据库时按 PageOne 中记录的高水位恢复已分配的页数
     void flushPage(Page pg);                            // 将脏页刷回磁盘
+    void prefetch(int pgnoFrom, int count);             // 提示马上要顺序读 [pgnoFrom, pgnoFrom+count) 这些页，后台异步读进缓存
+    void resize(long memory) throws Exception;          // 在线把缓冲池调整为 memory 字节，缩小时在调用线程里驱逐多出来的页
+    PoolStats getPoolStats();
+    void setPoolShare(int pool, int percent) throws Exception;  // pool 分区保留的缓冲池百分比，各分区加起来不能超过 100
 
-    public static PageCacheImpl create(String path, long memory) {
-        File f = new File(path+ PageCacheImpl.DB_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
+    // 页大小是 MIN_PAGE_SIZE ~ MAX_PAGE_SIZE 之间的 2 的幂。页内偏移用 short 表示，PageX 还借用了 FSO 的最高位，所以最大 32KB
+    public static boolean isValidPageSize(int pageSize) {
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+    }
+
+    /**
+     * @param io  IO_CHANNEL、IO_MMAP 或 IO_DIRECT
+     * @param segmented  true 时把页存放在多个段文件 ".db.0"、".db.1" ... 里，打开时自动识别，不需要再指定
+     * @param compressed  true 时页压缩后存放（见 CompressedFile），只支持 IO_CHANNEL，打开时按 ".pmap" 文件是否存在自动识别
+     * @param pageSize  页大小，见 isValidPageSize
+     * @param logger  后台写回数据页之前需要先 flush 的日志（WAL）
+     */
+    public static PageCache create(String path, long memory, int io, boolean segmented, boolean compressed, int pageSize, Logger logger) {
+        if(!isValidPageSize(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
         }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
+        if(compressed && io != IO_CHANNEL) {
+            Panic.panic(Error.CompressionNotSupportedException);
         }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
+        PageFile file = PageFile.create(path, segmented, io == IO_DIRECT);
+        if(compressed) {
+            try {
+                file = CompressedFile.create(path, file, pageSize);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
         }
         /**
-         * 调用时传来的 memory 是整个 db 允许的最大内存，那除以页的大小 PAGE_SIZE 就能知道这个 pageCache 理论能存放的最大资源数
+         * 调用时传来的 memory 是整个 db 允许的最大内存，那除以页的大小就能知道这个 pageCache 理论能存放的最大资源数
          */
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(path, file, pageSize, (int)(memory/pageSize), io, logger);
     }
 
-    public static PageCacheImpl open(String path, long memory) {
-        File f = new File(path+ PageCacheImpl.DB_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
+    public static PageCache open(String path, long memory, int io, Logger logger) {
+        PageFile file = PageFile.open(path, io == IO_DIRECT);
+        if(file instanceof CompressedFile && io != IO_CHANNEL) {
+            Panic.panic(Error.CompressionNotSupportedException);
         }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
+        int pageSize = readPageSize(file);
+        return newPageCache(path, file, pageSize, (int)(memory/pageSize), io, logger);
+    }
+
+    private static PageCache newPageCache(String path, PageFile file, int pageSize, int maxResource, int io, Logger logger) {
+        if(io == IO_MMAP) {
+            // mmap 模式在驱逐时同步写回脏页，不需要后台刷脏页线程单独打开的文件
+            return new MmapPageCacheImpl(file, pageSize, maxResource, logger);
         }
+        // 压缩存放时页的位置记在 CompressedFile 的内存里，只能共用一个对象
+        PageFile writerFile = file instanceof CompressedFile ? file : PageFile.open(path, io == IO_DIRECT);
+        return new PageCacheImpl(file, writerFile, new File(path + WarmUp.WARM_SUFFIX), pageSize, maxResource, logger);
+    }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
+    // 缓冲池建起来之前先从文件开头读出 PageOne 里记录的页大小，PageOne 总是从偏移量 0 开始
+    private static int readPageSize(PageFile file) {
+        // O_DIRECT 时也要按块对齐读，MIN_PAGE_SIZE 足够放下 PageOne 的头部
+        ByteBuffer buf = FrameArena.allocate(MIN_PAGE_SIZE);
         try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
+            while(buf.hasRemaining()) {
+                if(file.read(buf, buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(buf.hasRemaining()) {
+            // 建库时 PageOne 还没写下去就中断了，按默认页大小打开
+            return DEFAULT_PAGE_SIZE;
+        }
+        int pageSize = PageOne.getPageSize(buf);
+        if(!isValidPageSize(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return pageSize;
     }
 }
@@ -1,37 +1,57 @@
 package com.strumcode.endb.backend.dm.pageCache;
 
 import com.strumcode.endb.backend.common.AbstractCache;
+import com.strumcode.endb.backend.dm.logger.Logger;
 import com.strumcode.endb.backend.dm.page.Page;
 import com.strumcode.endb.backend.dm.page.PageImpl;
 import com.strumcode.endb.backend.utils.Panic;
 import com.strumcode.endb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
+/**
+ * PageCacheImpl 是 ".db" 文件之上的缓冲池：引用归零的页仍常驻内存，只有在需要腾出页框时才驱逐页。
+ * 脏页平时由后台的 PageWriter 批量写回并 fsync，驱逐时如果还是脏页则由前台直接写回（不 fsync）。
+ *
+ * 页的读写都用带 64 位偏移量的 read/write（见 PageFile），不修改通道的 position，所以不需要文件锁，不同页的缺页可以并行读盘。
+ * 页的内容放在堆外的 FrameArena 里，页被驱逐后页框回收给下一次缺页使用。
+ * -io direct 时 file 是用 O_DIRECT 打开的，页只缓存在这里，不会在操作系统的页缓存里再存一份。
+ * 顺序访问或者显式的 prefetch 由后台的 ReadAhead 提前把页读进缓冲池。
+ * 正常关闭时记下缓冲池里的页，下次打开时由后台的 WarmUp 把它们读回来（见 WarmUp）。
+ * 文件按区段预分配（见 Extents），新页直接放进缓冲池作为脏页，之后和其他脏页一起写回。
+ */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    private PageFile file;
+    private int pageSize;                                    // 建库时选定，记录在 PageOne 里
+    private FrameArena arena;
+    private Extents extents;
+    private PageFile writerFile;
+    private PageWriter writer;
+    private ReadAhead readAhead;
+    private WarmUp warmUp;
+    private File warmFile;
 
     private AtomicInteger pageNumbers;                       // 当前整个 pageCache 的总共的页的数目
 
     /**
-     * @param file  ".db"文件
-     * @param fileChannel  从 file.getChannel() 得到的
-     * @param maxResource  (int)memory/PAGE_SIZE（memory 是 DB 设置的内存）
+     * @param file  存放页的文件（单个 ".db" 文件或者段文件）
+     * @param writerFile  同一组文件另外打开的一份，给后台刷脏页线程独占；压缩存放时和 file 是同一个对象（见 CompressedFile）
+     * @param warmFile  热启动用的 ".warm" 文件
+     * @param pageSize  页大小
+     * @param maxResource  (int)memory/pageSize（memory 是 DB 设置的内存）
+     * @param logger  写回数据页之前需要先 flush 的日志
      */
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+    PageCacheImpl(PageFile file, PageFile writerFile, File warmFile, int pageSize, int maxResource, Logger logger) {
+        super(maxResource, true);
+        setReservedShare(POOL_INDEX, DEFAULT_INDEX_SHARE);
         /**
          * Keypoint 为什么对最小资源数目有要求？
          * 这里指的是 PageCache 里面能存放页面的最大数目，如果整个 DB 设置的内存很小，甚至连 10 个 page 都放不下，那直接报 内存太小异常 好了
@@ -42,29 +62,60 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         long length = 0;
         try {
             // the length of this file, measured in bytes.
-            length = file.length();
+            length = file.size();
         } catch (IOException e) {
             Panic.panic(e);
         }
         this.file = file;
-        this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
+        this.pageSize = pageSize;
+        this.arena = new FrameArena(pageSize, maxResource);
+        this.extents = new Extents(file, pageSize, length);
         /**
          * 用当前 ".db" 文件大小除以 page 页大小得到现在的 pageCache 总共有几页
          * Keypoint 这里也能知道，pageCache 中的各个 page 在 ".db" 文件中的位置是按顺序排列的
          */
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / pageSize));
+        this.writerFile = writerFile;
+        this.writer = new PageWriter(this, writerFile, logger);
+        writer.start();
+        this.readAhead = new ReadAhead(this, file);
+        readAhead.start();
+        this.warmFile = warmFile;
+        this.warmUp = new WarmUp(this, file, warmFile, maxResource);
+        warmUp.start();
     }
 
+    /**
+     * 从预分配的区段里分配一个页号，页的初始内容作为脏页放进缓冲池，不需要 I/O。
+     * 在写回之前崩溃的话，磁盘上这一页是全 0，和初始内容等价（见 Extents）
+     */
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
+        extents.ensure(pgno);
+        if(beginPreload((long)pgno)) {
+            ByteBuffer frame = arena.take();
+            frame.put(0, initData);
+            Page pg = new PageImpl(pgno, frame, this);
+            pg.setDirty(true);
+            finishPreload((long)pgno, pg);
+        } else {
+            // 缓冲池里的页全被引用着，腾不出页框，直接写到文件
+            flush(new PageImpl(pgno, ByteBuffer.wrap(initData), null));
+        }
         return pgno;
     }
 
     public Page getPage(int pgno) throws Exception {
-        return get((long)pgno);
+        return getPage(pgno, POOL_HEAP);
+    }
+
+    public Page getPage(int pgno, int pool) throws Exception {
+        readAhead.access(pgno);
+        return get((long)pgno, pool);
+    }
+
+    public void prefetch(int pgnoFrom, int count) {
+        readAhead.prefetch(pgnoFrom, count);
     }
 
     /**
@@ -74,78 +125,190 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
+        long offset = pageOffset(pgno, pageSize);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        ByteBuffer frame = arena.take();
+        ByteBuffer buf = frame.duplicate().clear();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            // 一次 read 不保证读满，读到文件末尾之外的部分填 0（页框是复用的，不会自动清零）
+            while(buf.hasRemaining()) {
+                if(file.read(buf, offset + buf.position()) < 0) {
+                    while(buf.hasRemaining()) {
+                        buf.put((byte)0);
+                    }
+                }
+            }
         } catch(IOException e) {
+            arena.giveBack(frame);
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        return new PageImpl(pgno, frame, this);
     }
 
     /**
      * 来自抽象缓存框架 AbstractCache<Page>
+     * 页被驱逐出缓冲池（或关闭缓存）时调用，脏页需要写回，之后页框归还给 arena
      */
     @Override
     protected void releaseForCache(Page pg) {
         if(pg.isDirty()) {
             flush(pg);
             pg.setDirty(false);
+            writer.wakeUp();
         }
+        arena.giveBack(pg.getData());
+    }
+
+    // 给后台刷脏页线程用，见 AbstractCache.pinUnpinned
+    int pinUnpinnedPages(Predicate<Page> visitor, int limit) {
+        return pinUnpinned(visitor, limit);
+    }
+
+    // 以下给后台预读线程用，见 AbstractCache.beginPreload
+    boolean beginPagePreload(int pgno) {
+        return beginPreload((long)pgno);
+    }
+
+    boolean beginPagePreload(int pgno, boolean hot, int pool) {
+        return beginPreload((long)pgno, hot, pool);
+    }
+
+    // 把 src 中从 offset 开始的一页拷贝到页框里，放进缓冲池
+    void finishPagePreload(int pgno, ByteBuffer src, int offset) {
+        ByteBuffer frame = arena.take();
+        frame.put(0, src, offset, pageSize);
+        finishPreload((long)pgno, new PageImpl(pgno, frame, this));
+    }
+
+    void abortPagePreload(int pgno, Exception e) {
+        abortPreload((long)pgno, e);
+    }
+
+    // 给 WarmUp 用，见 AbstractCache.visitResident
+    void visitResidentPages(ResidentVisitor visitor) {
+        visitResident(visitor);
     }
 
     public void release(Page page) {
         release((long)page.getPageNumber());
     }
 
+    /**
+     * 在线调整缓冲池大小。调大时只是放宽上限，页框在用到时才申请，不阻塞读；
+     * 调小时在调用线程里逐个驱逐未被引用的页，脏页先写回，驱逐腾出来的页框不再复用（见 FrameArena）
+     */
+    public synchronized void resize(long memory) throws Exception {
+        int pages = (int)(memory / pageSize);
+        if(pages < MEM_MIN_LIM) {
+            throw Error.MemTooSmallException;
+        }
+        arena.setMaxFrames(pages);
+        super.resize(pages);
+    }
+
+    public PoolStats getPoolStats() {
+        PoolStats stats = new PoolStats();
+        stats.pageSize = pageSize;
+        stats.capacity = getMaxResource();
+        stats.resident = getResourceCount();
+        stats.frames = arena.getAllocated();
+        stats.evictions = getEvictions();
+        for (int pool = 0; pool < POOLS; pool ++) {
+            stats.shares[pool] = getReservedShare(pool);
+            stats.poolResident[pool] = getPartitionCount(pool);
+            stats.hits[pool] = getHits(pool);
+            stats.misses[pool] = getMisses(pool);
+        }
+        return stats;
+    }
+
+    public synchronized void setPoolShare(int pool, int percent) throws Exception {
+        if(pool < 0 || pool >= POOLS || percent < 0) {
+            throw Error.InvalidPoolShareException;
+        }
+        int total = percent;
+        for (int p = 0; p < POOLS; p ++) {
+            if(p != pool) {
+                total += getReservedShare(p);
+            }
+        }
+        if(total > 100) {
+            throw Error.InvalidPoolShareException;
+        }
+        setReservedShare(pool, percent);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    // 当前的目标页数，后台线程按它限制一次占用的页数
+    int capacity() {
+        return getMaxResource();
+    }
+
     public void flushPage(Page pg) {
         flush(pg);
+        force();
     }
 
     private void flush(Page pg) {
         int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+        long offset = pageOffset(pgno, pageSize);
 
-        fileLock.lock();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
+            // 页的 buffer 可能同时被别的线程读，这里用一个独立的 position 写
+            ByteBuffer buf = pg.getData().duplicate().clear();
             /**
              * Page 对象中包含的数据，例如 boolean dirty，通常不会直接存储在与 Page 数据（即字节数组）关联的文件中。在实际实现过程中，Page 对象可能包含元数据（如 dirty 标志），但是这些数据通常只是在内存中存在，用于管理和追踪 Page 的状态。
-             * 而当我们要把 Page 的数据写入文件时，真正写入的是 pg.getData() 返回的字节数组，这样可以确保我们写入的数据就是我们期望的 Page 内容。
-             * fc.position(offset); 设置的是 Page 的字节数据在文件中的写入位置，而这个位置的计算不需要考虑 Page 对象中的元数据，因为这些元数据通常不包含在写入文件的数据中。
+             * 而当我们要把 Page 的数据写入文件时，真正写入的是 pg.getData() 返回的页内容，这样可以确保我们写入的数据就是我们期望的 Page 内容。
+             * offset 是 Page 的字节数据在文件中的写入位置，而这个位置的计算不需要考虑 Page 对象中的元数据，因为这些元数据通常不包含在写入文件的数据中。
              */
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
+            while(buf.hasRemaining()) {
+                file.write(buf, offset + buf.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void force() {
+        try {
+            file.force(false);
         } catch(IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
     // 根据已知的这个文件能产生的最大的页数，截断多余的部分
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        long size = pageOffset(maxPgno + 1, pageSize);
         try {
             file.setLength(size);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        extents.truncated(maxPgno);
         pageNumbers.set(maxPgno);
     }
 
+    public void setPageNumber(int pgno) {
+        pageNumbers.set(pgno);
+    }
+
     @Override
     public void close() {
+        warmUp.stop();
+        readAhead.stop();
+        writer.stop();
+        WarmUp.dump(this, warmFile);
         super.close();
+        force();
         try {
-            fc.close();
             file.close();
+            if(writerFile != file) {
+                writerFile.close();
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -156,9 +319,9 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        // 页号从 1 开始
-        return (pgno-1) * PAGE_SIZE;
+    static long pageOffset(int pgno, int pageSize) {
+        // 页号从 1 开始，Keypoint 用 long 计算，int 乘法在 2GB 之后就溢出了
+        return (long)(pgno-1) * pageSize;
     }
     
 }
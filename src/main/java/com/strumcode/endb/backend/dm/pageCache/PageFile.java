@@ -0,0 +1,90 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.utils.Panic;
+import com.strumcode.endb.common.Error;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 存放数据页的文件，偏移量都是 64 位的
+ * 一个数据库的页要么放在单个 ".db" 文件里（SingleFile），要么按 SegmentedFile.SEGMENT_SIZE 切成 ".db.0"、".db.1" ... 多个段文件，
+ * 建库时选定，打开时按磁盘上存在的文件判断是哪一种。存在 ".pmap" 文件时页是压缩存放的，open 在底层文件外面包一层 CompressedFile。
+ *
+ * read/write 和 FileChannel 带偏移量的读写一样，一次不保证读写完，调用方循环；段文件的读写不会跨过段的边界。
+ *
+ * direct 为 true 时（-io direct）用 O_DIRECT 打开，读写绕过操作系统的页缓存：偏移量和长度都必须是块大小的整数倍，
+ * direct buffer 的地址也要对齐。页的读写都是整页，偏移量是页大小的整数倍，参与读写的 direct buffer 都从 FrameArena.allocate() 分配，按 MIN_PAGE_SIZE 对齐。
+ */
+interface PageFile {
+
+    int read(ByteBuffer dst, long offset) throws IOException;           // 读到文件末尾返回 -1
+    int write(ByteBuffer src, long offset) throws IOException;
+    void write(ByteBuffer[] srcs, long offset) throws IOException;      // 从 offset 开始把 srcs 全部写出（gathering write），会修改通道的 position，只给独占这个 PageFile 的线程用
+    MappedByteBuffer map(long offset, long size) throws IOException;    // 私有（写时复制）映射 [offset, offset+size)，不能跨段。对映射区的修改不会写回文件，见 MmapPageCacheImpl
+    long size() throws IOException;
+    void setLength(long size) throws IOException;
+    void force(boolean metaData) throws IOException;
+    void close() throws IOException;
+
+    /**
+     * @param segmented  true 时按段文件存放
+     * @param direct  true 时用 O_DIRECT 读写
+     */
+    static PageFile create(String path, boolean segmented, boolean direct) {
+        File single = new File(path + PageCacheImpl.DB_SUFFIX);
+        File first = SegmentedFile.segmentFile(path, 0);
+        try {
+            if(single.exists() || first.exists() || CompressedFile.mapFile(path).exists() || !(segmented ? first : single).createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return open(path, direct);
+    }
+
+    static PageFile open(String path, boolean direct) {
+        File single = new File(path + PageCacheImpl.DB_SUFFIX);
+        File first = SegmentedFile.segmentFile(path, 0);
+        File f = single.exists() ? single : first;
+        if(!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        try {
+            if(direct) {
+                // 文件系统的块大小必须能整除最小的页大小，否则整页读写也对不齐
+                long blockSize = Files.getFileStore(f.toPath()).getBlockSize();
+                if(PageCache.MIN_PAGE_SIZE % blockSize != 0) {
+                    Panic.panic(Error.DirectIoNotSupportedException);
+                }
+            }
+            PageFile file = f == single ? new SingleFile(single, direct) : new SegmentedFile(path, direct);
+            return CompressedFile.mapFile(path).exists() ? CompressedFile.open(path, file) : file;
+        } catch (UnsupportedOperationException e) {
+            // 文件系统不支持 O_DIRECT（例如 tmpfs）
+            Panic.panic(Error.DirectIoNotSupportedException);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return null;
+    }
+
+    // 打开页读写用的通道，direct 时带上 O_DIRECT
+    static FileChannel openChannel(File f, boolean direct) throws IOException {
+        if(direct) {
+            return FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+        }
+        return FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
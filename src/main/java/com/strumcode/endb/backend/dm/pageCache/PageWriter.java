@@ -0,0 +1,169 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.dm.logger.Logger;
+import com.strumcode.endb.backend.dm.page.Page;
+import com.strumcode.endb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台刷脏页线程
+ * 定期从缓冲池中挑出未被引用的脏页，在分段锁内把页内容拷贝到暂存区并清除脏标记，然后按页号排序，
+ * 页号相邻的页合并成一次 gathering write，每一批只 fsync 一次。写数据页之前先 flush 日志，保证 WAL。
+ *
+ * 挑出的页在写完之前一直被加了引用，不会被驱逐，所以前台驱逐时写回的新内容不会被这里的旧快照覆盖。
+ */
+class PageWriter implements Runnable {
+    private static final long INTERVAL_MS = 100;
+    private static final int MAX_BATCH = 256;
+
+    private PageCacheImpl pc;
+    private PageFile file;                                  // 后台线程独占的一份文件，通道的 position 不和前台共享，由 PageCacheImpl 关闭
+    private Logger logger;
+
+    private Pending[] batch;
+    private int batchLimit;                                 // 这一批最多的页数，不超过缓冲池的 1/4，否则小缓冲池会被这里挑出的页占满，前台缺页时无页可驱逐
+    private int size;
+
+    private Thread thread;
+    private volatile boolean stopped;
+    private Lock lock;
+    private Condition wakeup;
+
+    PageWriter(PageCacheImpl pc, PageFile file, Logger logger) {
+        this.pc = pc;
+        this.file = file;
+        this.logger = logger;
+        this.batch = new Pending[MAX_BATCH];
+        int pageSize = pc.getPageSize();
+        ByteBuffer bufs = FrameArena.allocate(MAX_BATCH * pageSize);
+        for (int i = 0; i < MAX_BATCH; i ++) {
+            batch[i] = new Pending(bufs.slice(i * pageSize, pageSize));
+        }
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+    }
+
+    void start() {
+        thread = new Thread(this, "page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 前台在驱逐时不得不同步写脏页，说明脏页积压了，提前唤醒后台线程
+    void wakeUp() {
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        wakeUp();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while(!stopped) {
+            if(flushBatch() == batchLimit) {
+                // 还有积压，不等待直接下一批
+                continue;
+            }
+            lock.lock();
+            try {
+                if(!stopped) {
+                    wakeup.await(INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 刷一批脏页，返回这一批的页数
+    private int flushBatch() {
+        size = 0;
+        // 缓冲池大小可以在线调整，每一批重新计算
+        batchLimit = Math.max(1, Math.min(MAX_BATCH, pc.capacity() / 4));
+        pc.pinUnpinnedPages(this::stage, batchLimit);
+        if(size == 0) {
+            return 0;
+        }
+        Arrays.sort(batch, 0, size, Comparator.comparingInt(p -> p.pg.getPageNumber()));
+
+        logger.flush();
+        try {
+            int i = 0;
+            while(i < size) {
+                int j = i + 1;
+                while(j < size && batch[j].pg.getPageNumber() == batch[j-1].pg.getPageNumber() + 1) {
+                    j ++;
+                }
+                writeRun(i, j);
+                i = j;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        // 写出去之后驱逐再写回的只会是更新的内容，不用等 fsync 完成就可以放开引用
+        int n = size;
+        for (int i = 0; i < n; i ++) {
+            pc.release(batch[i].pg);
+            batch[i].pg = null;
+        }
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return n;
+    }
+
+    // 在分段锁内执行，此时没有其他线程引用这一页
+    private boolean stage(Page pg) {
+        if(!pg.isDirty()) {
+            return false;
+        }
+        Pending p = batch[size ++];
+        p.pg = pg;
+        p.buf.clear();
+        p.buf.put(0, pg.getData(), 0, p.buf.capacity());
+        pg.setDirty(false);
+        return true;
+    }
+
+    // 把 batch[from, to) 这一段页号连续的页一次写出
+    private void writeRun(int from, int to) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[to - from];
+        for (int i = from; i < to; i ++) {
+            bufs[i - from] = batch[i].buf;
+        }
+        file.write(bufs, PageCacheImpl.pageOffset(batch[from].pg.getPageNumber(), pc.getPageSize()));
+    }
+
+    private static class Pending {
+        Page pg;
+        ByteBuffer buf;
+
+        Pending(ByteBuffer buf) {
+            this.buf = buf;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+/**
+ * 缓冲池的运行指标，show pool 返回的就是它
+ */
+public class PoolStats {
+    public static final String[] POOL_NAMES = {"heap", "index"};      // 下标为 PageCache.POOL_HEAP、POOL_INDEX
+
+    public int pageSize;
+    public int capacity;                // 目标页数，启动时由 -mem 决定，可以用 set pool 在线调整
+    public int resident;                // 当前缓存中的页数（包括正在加载的）
+    public int frames;                  // 已经申请的页框数，mmap 模式下页在映射区里，为 0
+    public long evictions;              // 累计驱逐的页数
+
+    // 以下按分区，下标为 PageCache.POOL_HEAP、POOL_INDEX
+    public int[] shares = new int[PageCache.POOLS];             // 保留的百分比
+    public int[] poolResident = new int[PageCache.POOLS];
+    public long[] hits = new long[PageCache.POOLS];
+    public long[] misses = new long[PageCache.POOLS];
+
+    // 缩小之后还没驱逐掉的页数，为 0 说明已经缩到目标大小
+    public int pendingEvictions() {
+        return Math.max(0, resident - capacity);
+    }
+
+    // pool 分区的命中率，还没有访问时为 0
+    public double hitRate(int pool) {
+        long total = hits[pool] + misses[pool];
+        return total == 0 ? 0 : (double)hits[pool] / total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("page size: ").append(pageSize >> 10).append("KB\n");
+        sb.append("capacity: ").append(capacity).append(" pages (").append((long)capacity * pageSize >> 20).append("MB)\n");
+        sb.append("resident: ").append(resident).append(" pages\n");
+        sb.append("frames: ").append(frames).append("\n");
+        sb.append("evictions: ").append(evictions).append("\n");
+        sb.append("pending evictions: ").append(pendingEvictions()).append("\n");
+        for (int pool = 0; pool < PageCache.POOLS; pool ++) {
+            sb.append(POOL_NAMES[pool]).append(": ").append(poolResident[pool]).append(" pages, reserved ").append(shares[pool]).append("%, ")
+              .append("hits ").append(hits[pool]).append(", misses ").append(misses[pool])
+              .append(String.format(", hit rate %.2f%%", hitRate(pool) * 100)).append("\n");
+        }
+        return sb.toString();
+    }
+}
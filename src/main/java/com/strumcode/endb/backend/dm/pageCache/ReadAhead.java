@@ -0,0 +1,164 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 后台预读线程
+ * 一方面根据 getPage 的页号发现顺序访问（连续 SEQ_TRIGGER 次访问相邻的页），提前把后面一个窗口的页读进缓冲池；
+ * 另一方面接受 prefetch(pgnoFrom, count) 的显式请求，给全表扫描、启动时建立 PageIndex 这类已知要顺序读的场景用。
+ *
+ * 预读时先在缓存里为每一页占好位置，再把页号连续的一段用一次大的 read 读进暂存区，最后拆到各个页框里。
+ * 占位期间前台访问这些页会等待预读完成，不会重复读盘；已在缓存中的页跳过。请求队列满了直接丢弃，预读只是优化。
+ */
+class ReadAhead implements Runnable {
+    private static final int SEQ_TRIGGER = 2;
+    private static final int MAX_WINDOW = 32;                       // 一次最多读 32 页，256K
+    private static final int QUEUE_SIZE = 64;
+
+    private PageCacheImpl pc;
+    private PageFile file;
+    private ByteBuffer buf;
+
+    private BlockingQueue<Range> requests;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    // 顺序访问的检测是启发式的，多个线程并发访问时不加锁，偶尔判断错也无妨
+    private int lastPgno;
+    private int seq;
+    private int ahead;                                              // 已经预读到的页号（不含）
+
+    ReadAhead(PageCacheImpl pc, PageFile file) {
+        this.pc = pc;
+        this.file = file;
+        this.buf = FrameArena.allocate(MAX_WINDOW * pc.getPageSize());
+        this.requests = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    }
+
+    void start() {
+        thread = new Thread(this, "page-read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 每次 getPage 时调用，发现顺序访问就提交一个窗口的预读
+    void access(int pgno) {
+        int last = lastPgno;
+        lastPgno = pgno;
+        if(pgno != last + 1) {
+            seq = 0;
+            ahead = 0;
+            return;
+        }
+        int window = window();
+        if(++seq < SEQ_TRIGGER || pgno + window / 2 < ahead) {
+            return;
+        }
+        int from = Math.max(pgno + 1, ahead);
+        ahead = from + window;
+        prefetch(from, window);
+    }
+
+    void prefetch(int pgnoFrom, int count) {
+        while(count > 0) {
+            // 一段占好位置还没读完的页不能被驱逐，每段不超过窗口大小，小缓冲池不会被预读占满
+            int n = Math.min(count, window());
+            if(!requests.offer(new Range(pgnoFrom, n))) {
+                return;
+            }
+            pgnoFrom += n;
+            count -= n;
+        }
+    }
+
+    // 顺序预读的窗口，不超过缓冲池当前大小的 1/8
+    private int window() {
+        return Math.max(1, Math.min(MAX_WINDOW, pc.capacity() / 8));
+    }
+
+    @Override
+    public void run() {
+        while(!stopped) {
+            Range r;
+            try {
+                r = requests.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if(r != null) {
+                load(r.from, Math.min(r.from + r.count, pc.getPageNumber() + 1));
+            }
+        }
+    }
+
+    // 预读 [from, to) 中不在缓存里的页，页号连续的一段合成一次读
+    private void load(int from, int to) {
+        int runStart = from;
+        for (int pgno = from; pgno < to; pgno ++) {
+            if(!pc.beginPagePreload(pgno)) {
+                readRun(runStart, pgno);
+                runStart = pgno + 1;
+            }
+        }
+        readRun(runStart, to);
+    }
+
+    private void readRun(int from, int to) {
+        readRun(pc, file, buf, from, to);
+    }
+
+    /**
+     * 把已经占好位置的 [from, to) 这些页用一次 read 读进 buf，再逐页放进缓冲池，buf 至少能放下 to - from 页。
+     * 也给 WarmUp 用
+     */
+    static void readRun(PageCacheImpl pc, PageFile file, ByteBuffer buf, int from, int to) {
+        if(from >= to) {
+            return;
+        }
+        int pageSize = pc.getPageSize();
+        long offset = PageCacheImpl.pageOffset(from, pageSize);
+        buf.clear().limit((to - from) * pageSize);
+        try {
+            while(buf.hasRemaining()) {
+                if(file.read(buf, offset + buf.position()) < 0) {
+                    while(buf.hasRemaining()) {
+                        buf.put((byte)0);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            for (int pgno = from; pgno < to; pgno ++) {
+                pc.abortPagePreload(pgno, e);
+            }
+            return;
+        }
+        for (int pgno = from; pgno < to; pgno ++) {
+            pc.finishPagePreload(pgno, buf, (pgno - from) * pageSize);
+        }
+    }
+
+    private static class Range {
+        int from;
+        int count;
+
+        Range(int from, int count) {
+            this.from = from;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 页按 SEGMENT_SIZE 切成多个段文件 ".db.0"、".db.1" ...，第 i 个段文件存放偏移量 [i*SEGMENT_SIZE, (i+1)*SEGMENT_SIZE) 的内容
+ * 单个文件不会太大，不受文件系统对单个文件大小的限制，也可以把段文件分别放到不同的磁盘上（软链接）分摊 I/O。
+ *
+ * 文件按顺序增长，只有最后一个段文件可能不满。写到还不存在的段时创建段文件；fsync 只对写过的段做。
+ * SEGMENT_SIZE 是页大小和 mmap 映射块大小的整数倍，一页、一个映射块都不会跨两个段文件。
+ */
+class SegmentedFile implements PageFile {
+    static final long SEGMENT_SIZE = 1L << 30;                          // 每个段文件 1GB
+
+    private String path;
+    private boolean direct;
+    private volatile Segment[] segments;                                // 写时复制，增加、删除段文件时加锁
+
+    SegmentedFile(String path, boolean direct) throws IOException {
+        this.path = path;
+        this.direct = direct;
+        List<Segment> segs = new ArrayList<>();
+        for (int i = 0; segmentFile(path, i).exists(); i ++) {
+            segs.add(new Segment(segmentFile(path, i), direct));
+        }
+        this.segments = segs.toArray(new Segment[0]);
+    }
+
+    static File segmentFile(String path, int idx) {
+        return new File(path + PageCacheImpl.DB_SUFFIX + "." + idx);
+    }
+
+    public int read(ByteBuffer dst, long offset) throws IOException {
+        Segment[] segs = segments;
+        int idx = (int)(offset / SEGMENT_SIZE);
+        if(idx >= segs.length) {
+            return -1;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + (int)Math.min(dst.remaining(), SEGMENT_SIZE - offset % SEGMENT_SIZE));
+        try {
+            return segs[idx].fc.read(dst, offset % SEGMENT_SIZE);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    public int write(ByteBuffer src, long offset) throws IOException {
+        Segment seg = segment((int)(offset / SEGMENT_SIZE));
+        int limit = src.limit();
+        src.limit(src.position() + (int)Math.min(src.remaining(), SEGMENT_SIZE - offset % SEGMENT_SIZE));
+        try {
+            seg.dirty = true;
+            return seg.fc.write(src, offset % SEGMENT_SIZE);
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    public void write(ByteBuffer[] srcs, long offset) throws IOException {
+        int i = 0;
+        while(i < srcs.length) {
+            long local = offset % SEGMENT_SIZE;
+            // 这个段文件里放得下的几个 buffer 合成一次写
+            int j = i;
+            long len = 0;
+            while(j < srcs.length && len + srcs[j].remaining() <= SEGMENT_SIZE - local) {
+                len += srcs[j].remaining();
+                j ++;
+            }
+            if(j == i) {
+                // 跨段的 buffer 拆开写，页对齐的写不会走到这里
+                offset += write(srcs[i], offset);
+                if(!srcs[i].hasRemaining()) {
+                    i ++;
+                }
+                continue;
+            }
+            Segment seg = segment((int)(offset / SEGMENT_SIZE));
+            seg.dirty = true;
+            seg.fc.position(local);
+            long remaining = len;
+            while(remaining > 0) {
+                remaining -= seg.fc.write(srcs, i, j - i);
+            }
+            offset += len;
+            i = j;
+        }
+    }
+
+    public MappedByteBuffer map(long offset, long size) throws IOException {
+        Segment seg = segment((int)(offset / SEGMENT_SIZE));
+        return seg.fc.map(FileChannel.MapMode.PRIVATE, offset % SEGMENT_SIZE, size);
+    }
+
+    public long size() throws IOException {
+        Segment[] segs = segments;
+        if(segs.length == 0) {
+            return 0;
+        }
+        return (segs.length - 1) * SEGMENT_SIZE + segs[segs.length - 1].fc.size();
+    }
+
+    public synchronized void setLength(long size) throws IOException {
+        // 至少留下 ".db.0"，打开时靠它识别段文件
+        int n = (int)Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        Segment[] segs = segments;
+        for (int i = segs.length - 1; i >= n; i --) {
+            segs[i].close();
+            if(!segmentFile(path, i).delete()) {
+                throw new IOException("Cannot delete " + segmentFile(path, i));
+            }
+        }
+        if(n < segs.length) {
+            segments = Arrays.copyOf(segs, n);
+        }
+        segment(n - 1);
+        segs = segments;
+        for (int i = 0; i < n; i ++) {
+            long len = Math.min(SEGMENT_SIZE, size - i * SEGMENT_SIZE);
+            if(segs[i].fc.size() != len) {
+                segs[i].file.setLength(len);
+                segs[i].dirty = true;
+            }
+        }
+    }
+
+    public void force(boolean metaData) throws IOException {
+        for (Segment seg : segments) {
+            if(seg.dirty) {
+                // 先清标记再 fsync，fsync 期间的写会重新标记，留给下一次
+                seg.dirty = false;
+                seg.fc.force(metaData);
+            }
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        for (Segment seg : segments) {
+            seg.close();
+        }
+    }
+
+    // 返回第 idx 个段文件，不存在时把它和它前面缺的段文件一起建出来
+    private Segment segment(int idx) throws IOException {
+        Segment[] segs = segments;
+        if(idx < segs.length) {
+            return segs[idx];
+        }
+        synchronized (this) {
+            segs = segments;
+            if(idx >= segs.length) {
+                Segment[] copy = Arrays.copyOf(segs, idx + 1);
+                for (int i = segs.length; i <= idx; i ++) {
+                    copy[i] = new Segment(segmentFile(path, i), direct);
+                    copy[i].dirty = true;
+                }
+                segments = copy;
+                segs = copy;
+            }
+            return segs[idx];
+        }
+    }
+
+    private static class Segment {
+        RandomAccessFile file;
+        FileChannel fc;
+        volatile boolean dirty;                                         // 上次 force 之后写过
+
+        Segment(File f, boolean direct) throws IOException {
+            this.file = new RandomAccessFile(f, "rw");
+            this.fc = PageFile.openChannel(f, direct);
+        }
+
+        void close() throws IOException {
+            fc.close();
+            file.close();
+        }
+    }
+}
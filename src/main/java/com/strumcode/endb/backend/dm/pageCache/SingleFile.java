@@ -0,0 +1,62 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 所有页放在一个 ".db" 文件里
+ * 页的读写走 fc（direct 时是 O_DIRECT 的通道），改变文件长度走 file
+ */
+class SingleFile implements PageFile {
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    SingleFile(File f, boolean direct) throws IOException {
+        this.file = new RandomAccessFile(f, "rw");
+        this.fc = PageFile.openChannel(f, direct);
+    }
+
+    public int read(ByteBuffer dst, long offset) throws IOException {
+        return fc.read(dst, offset);
+    }
+
+    public int write(ByteBuffer src, long offset) throws IOException {
+        return fc.write(src, offset);
+    }
+
+    public void write(ByteBuffer[] srcs, long offset) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer src : srcs) {
+            remaining += src.remaining();
+        }
+        fc.position(offset);
+        while(remaining > 0) {
+            remaining -= fc.write(srcs);
+        }
+    }
+
+    public MappedByteBuffer map(long offset, long size) throws IOException {
+        return fc.map(FileChannel.MapMode.PRIVATE, offset, size);
+    }
+
+    public long size() throws IOException {
+        return fc.size();
+    }
+
+    public void setLength(long size) throws IOException {
+        file.setLength(size);
+    }
+
+    public void force(boolean metaData) throws IOException {
+        fc.force(metaData);
+    }
+
+    public void close() throws IOException {
+        fc.close();
+        file.close();
+    }
+}
@@ -0,0 +1,149 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.google.common.primitives.Bytes;
+import com.strumcode.endb.backend.common.AbstractCache;
+import com.strumcode.endb.backend.utils.Panic;
+import com.strumcode.endb.backend.utils.Parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * 缓冲池的热启动
+ * 正常关闭时把缓冲池中的页号、热度和分区（见 AbstractCache.visitResident）写进 ".db" 旁边的 ".warm" 文件：
+ * [count 4][pgno 4][heat | pool << 2 1]...
+ * 打开时后台线程按热度从高到低挑出不超过缓冲池 3/4 的页，再按页号排序，页号连续的一段合成一次读，以预读的方式放回缓冲池，
+ * 上次在热区的页直接进入热区，页回到上次所在的分区。服务在这期间照常处理请求，前台访问到正在加载的页会等它加载完，已经在缓存里的页跳过。
+ *
+ * ".warm" 文件只是提示：读出来就删掉，异常关闭之后没有这个文件，从空的缓冲池开始；文件不完整时忽略。
+ */
+class WarmUp implements Runnable {
+    static final String WARM_SUFFIX = ".warm";
+    private static final int MAX_RUN = 32;                          // 一次最多读 32 页
+    private static final int ENTRY_SIZE = 5;
+    private static final int HEAT_MASK = AbstractCache.HEAT_HOT | AbstractCache.HEAT_REFERENCED;
+    private static final int POOL_SHIFT = 2;
+
+    private PageCacheImpl pc;
+    private PageFile file;
+    private File warmFile;
+    private int maxResource;
+    private int maxRun;                                             // 占好位置还没读完的页不能被驱逐，和 ReadAhead 一样不超过缓冲池的 1/8
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    WarmUp(PageCacheImpl pc, PageFile file, File warmFile, int maxResource) {
+        this.pc = pc;
+        this.file = file;
+        this.warmFile = warmFile;
+        this.maxResource = maxResource;
+        this.maxRun = Math.max(1, Math.min(MAX_RUN, maxResource / 8));
+    }
+
+    void start() {
+        if(!warmFile.exists()) {
+            return;
+        }
+        thread = new Thread(this, "page-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        if(thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 把缓冲池中的页号和热度写进 warmFile，先写临时文件再改名，不会留下写了一半的文件
+    static void dump(PageCacheImpl pc, File warmFile) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] count = new int[1];
+        pc.visitResidentPages((pgno, heat, pool) -> {
+            out.write(Parser.int2Byte((int)pgno), 0, 4);
+            out.write(heat | pool << POOL_SHIFT);
+            count[0] ++;
+        });
+        File tmp = new File(warmFile.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), Bytes.concat(Parser.int2Byte(count[0]), out.toByteArray()));
+            Files.move(tmp.toPath(), warmFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(warmFile.toPath());
+            Files.delete(warmFile.toPath());
+        } catch (IOException e) {
+            return;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(raw);
+        if(raw.length < 4 || raw.length != 4 + bb.getInt(0) * ENTRY_SIZE) {
+            return;
+        }
+        int n = bb.getInt(0);
+
+        // 先按热度从高到低排（热度相同时按页号），取前 limit 个，给前台留出 1/4 的缓冲池
+        long[] entries = new long[n];
+        for (int i = 0; i < n; i ++) {
+            int pgno = bb.getInt(4 + i * ENTRY_SIZE);
+            int b = bb.get(4 + i * ENTRY_SIZE + 4) & 0xff;
+            int pool = b >>> POOL_SHIFT;
+            if(pool >= PageCache.POOLS) {
+                return;
+            }
+            entries[i] = ((long)(HEAT_MASK - (b & HEAT_MASK)) << 40) | ((long)pool << 32) | pgno;
+        }
+        Arrays.sort(entries);
+        int limit = Math.min(n, maxResource - maxResource / 4);
+        // 再按页号排序，低 8 位放原来的字节
+        long[] pages = new long[limit];
+        for (int i = 0; i < limit; i ++) {
+            int heat = HEAT_MASK - (int)(entries[i] >>> 40);
+            int pool = (int)(entries[i] >>> 32) & 0xff;
+            pages[i] = ((entries[i] & 0xffffffffL) << 8) | heat | pool << POOL_SHIFT;
+        }
+        Arrays.sort(pages);
+        load(pages);
+    }
+
+    // pages 按页号有序，页号连续又都能占到位置的一段合成一次读
+    private void load(long[] pages) {
+        ByteBuffer buf = FrameArena.allocate(maxRun * pc.getPageSize());
+        int i = 0;
+        while(i < pages.length && !stopped) {
+            int from = (int)(pages[i] >>> 8);
+            int j = i;
+            boolean skip = false;
+            while(j < pages.length && j - i < maxRun && (int)(pages[j] >>> 8) == from + (j - i)) {
+                int pgno = (int)(pages[j] >>> 8);
+                boolean hot = (pages[j] & AbstractCache.HEAT_HOT) != 0;
+                int pool = (int)(pages[j] & 0xff) >>> POOL_SHIFT;
+                if(pgno > pc.getPageNumber() || !pc.beginPagePreload(pgno, hot, pool)) {
+                    skip = true;
+                    break;
+                }
+                j ++;
+            }
+            ReadAhead.readRun(pc, file, buf, from, from + (j - i));
+            i = skip ? j + 1 : j;
+        }
+    }
+}
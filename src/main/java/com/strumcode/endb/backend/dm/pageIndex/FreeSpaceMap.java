@@ -0,0 +1,153 @@
+package com.strumcode.endb.backend.dm.pageIndex;
+
+import com.strumcode.endb.backend.dm.page.Page;
+import com.strumcode.endb.backend.dm.page.PageX;
+import com.strumcode.endb.backend.dm.page.SlottedPage;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import com.strumcode.endb.backend.utils.Panic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 持久化的空闲空间表（FSM），打开数据库时直接从它重建 PageIndex，不用把所有数据页读一遍
+ *
+ * FSM 页夹在数据页中间，位置是固定的：第 2 页是第一个 FSM 页，记录它后面 SLOTS 个数据页的空闲空间，
+ * 再往后一页是下一个 FSM 页，以此类推。每个数据页在 FSM 页里占一个字节，记录空闲空间 / UNIT（向下取整，只会少估不会多估）。
+ *
+ * FSM 的修改不写日志，只是一个提示：只有上次正常关闭时才信任它，异常关闭恢复之后由 DataManager 扫描全部数据页重建。
+ * 没有 FSM 的旧数据库文件（PageOne 中没有 FSM 标记）仍然按原来的方式扫描，也不维护 FSM。
+ *
+ * 数据页分堆页和索引页（见 PageX），PageOne 中有 FEATURE_POOLS 标记时字节的最高位记录页的归属，低 7 位记录空闲空间 / (2*UNIT)。
+ * 没有这个标记的旧文件不区分，所有数据页都是堆页。
+ */
+public class FreeSpaceMap {
+    private static final int FIRST_FSM_PGNO = 2;
+    private static final int POOL_BIT = 0x80;
+
+    private int slots;                                                  // 一个 FSM 页管理的数据页数，等于页大小
+    private int unit;                                                   // 一个字节表示 0~255 个 unit，页大小的 1/256
+    private PageCache pc;
+    private boolean enabled;
+    private boolean pooled;                                             // 是否区分堆页和索引页
+    private boolean slotted;                                            // 数据页是 SlottedPage 还是 PageX 的格式
+    private Lock allocLock;
+
+    public FreeSpaceMap(PageCache pc, boolean enabled, boolean pooled, boolean slotted) {
+        this.pc = pc;
+        this.slots = pc.getPageSize();
+        this.unit = pc.getPageSize() / 256;
+        this.enabled = enabled;
+        this.pooled = pooled;
+        this.slotted = slotted;
+        this.allocLock = new ReentrantLock();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public boolean isFsmPage(int pgno) {
+        return pgno >= FIRST_FSM_PGNO && (pgno - FIRST_FSM_PGNO) % (slots + 1) == 0;
+    }
+
+    // 数据页 pgno 所属的 FSM 页
+    private int fsmPageOf(int pgno) {
+        int group = (pgno - FIRST_FSM_PGNO - 1) / (slots + 1);
+        return FIRST_FSM_PGNO + group * (slots + 1);
+    }
+
+    /**
+     * 分配一个归属 pool 的新数据页，下一页正好轮到 FSM 页时先把 FSM 页分配出来。
+     * 分配加锁，保证 FSM 页的位置不会被并发分配的数据页占掉
+     */
+    public int newDataPage(int pool) {
+        int p = pooled ? pool : PageCache.POOL_HEAP;
+        byte[] raw = slotted ? SlottedPage.initRaw(pc.getPageSize(), p) : PageX.initRaw(pc.getPageSize(), p);
+        if(!enabled) {
+            return pc.newPage(raw);
+        }
+        allocLock.lock();
+        try {
+            if(isFsmPage(pc.getPageNumber() + 1)) {
+                pc.newPage(new byte[pc.getPageSize()]);
+            }
+            return pc.newPage(raw);
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    // 记录归属 pool 的数据页 pgno 当前的空闲空间
+    public void update(int pgno, int freeSpace, int pool) {
+        if(!enabled) {
+            return;
+        }
+        int fsm = fsmPageOf(pgno);
+        byte v;
+        if(pooled) {
+            v = (byte)((pool == PageCache.POOL_INDEX ? POOL_BIT : 0) | Math.min(POOL_BIT - 1, freeSpace / (2 * unit)));
+        } else {
+            v = (byte)Math.min(255, freeSpace / unit);
+        }
+        Page pg = null;
+        try {
+            pg = pc.getPage(fsm);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        ByteBuffer raw = pg.getData();
+        int idx = pgno - fsm - 1;
+        if(raw.get(idx) != v) {
+            raw.put(idx, v);
+            pg.setDirty(true);
+        }
+        pg.release();
+    }
+
+    // 数据页 pgno 的归属，只读 FSM 页、不读数据页本身。不区分归属的文件都是堆页
+    public int getPool(int pgno) {
+        if(!enabled || !pooled) {
+            return PageCache.POOL_HEAP;
+        }
+        int fsm = fsmPageOf(pgno);
+        Page pg = null;
+        try {
+            pg = pc.getPage(fsm);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        int v = pg.getData().get(pgno - fsm - 1) & 0xff;
+        pg.release();
+        return (v & POOL_BIT) != 0 ? PageCache.POOL_INDEX : PageCache.POOL_HEAP;
+    }
+
+    // 从 FSM 页重建各个归属的 PageIndex（下标为 PageCache.POOL_HEAP、POOL_INDEX），只读 FSM 页
+    public void load(PageIndex[] pIndex) {
+        int pageNumber = pc.getPageNumber();
+        for(int fsm = FIRST_FSM_PGNO; fsm <= pageNumber; fsm += slots + 1) {
+            Page pg = null;
+            try {
+                pg = pc.getPage(fsm);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            ByteBuffer raw = pg.getData();
+            for(int i = 0; i < slots && fsm + 1 + i <= pageNumber; i ++) {
+                int v = raw.get(i) & 0xff;
+                if(pooled) {
+                    int pool = (v & POOL_BIT) != 0 ? PageCache.POOL_INDEX : PageCache.POOL_HEAP;
+                    pIndex[pool].add(fsm + 1 + i, (v & (POOL_BIT - 1)) * 2 * unit);
+                } else {
+                    pIndex[PageCache.POOL_HEAP].add(fsm + 1 + i, v * unit);
+                }
+            }
+            pg.release();
+        }
+    }
+}
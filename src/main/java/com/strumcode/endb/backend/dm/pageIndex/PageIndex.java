@@ -1,60 +1,148 @@
 package com.strumcode.endb.backend.dm.pageIndex;
 
-import com.strumcode.endb.backend.dm.pageCache.PageCache;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * 页面索引，缓存了每一页的空闲空间。用于在上层模块进行插入操作时，能够快速找到一个有合适空间的页面
  * 管理的是多个页面，每个页面根据空闲空间的大小被放到列表中，被选择的页，会直接从 PageIndex 中移除，
  *      这也意味着，同一个页面是不允许并发写的。在上层模块使用完这个页面后，需要将其重新插入 PageIndex：
+ *
+ * 每个区间是一个无锁栈（CAS 栈顶），add、select 不加锁，都是 O(1)，并发插入的线程不会排队。
+ *
+ * 另外有一组“当前插入页”槽位，线程按线程号落到其中一个：take 先看自己槽位上的页放不放得下，putBack 优先放回自己的槽位。
+ * 同一个线程连续插入会一直写同一页，直到写满才换页；不同槽位上的线程各写各的页，不会去抢区间里同一个页。
+ * 槽位上的页不在区间里，但槽位数是固定的，最多占住 槽位数 个页。
+ *
+ * 在区间里的页另外记在 present 里。VACUUM 回收空间后用 update 调整页的空闲空间：新的 PageInfo 换掉 present 里的旧对象再入栈，
+ * 旧的留在栈里，select 弹出时发现它已经不在 present 里就丢掉。
+ * 不在区间里的页（正被插入线程拿着，或者是某个槽位上的当前插入页）先把新的空闲空间记进 freed，take 从槽位取出它、putBack 放回它时再用上，
+ * 和放回时算出的空闲空间取大的。多估了没关系，插入线程拿到页之后还会按页的实际空闲空间检查。
  */
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private int threshold;                              // 每个区间的大小，页大小的 1/40
+    private AtomicReferenceArray<Node> lists;           // 每个区间的栈顶
+    private ConcurrentHashMap<Integer, PageInfo> present;   // 页号 -> 区间里有效的那个 PageInfo
+    private ConcurrentHashMap<Integer, Integer> freed;      // 页号 -> 不在区间里的页回收之后的空闲空间
+    private AtomicReferenceArray<PageInfo> sticky;      // 各个槽位的当前插入页
+    private int stickyMask;
+
+    private static class Node {
+        final PageInfo pi;
+        Node next;
 
-    @SuppressWarnings("unchecked")
-    public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
-        for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+        Node(PageInfo pi) {
+            this.pi = pi;
         }
     }
 
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
+        lists = new AtomicReferenceArray<>(INTERVALS_NO+1);
+        present = new ConcurrentHashMap<>();
+        freed = new ConcurrentHashMap<>();
+        // 槽位数取不小于 2 倍核数的 2 的幂，线程落到同一个槽位的机会不大
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        sticky = new AtomicReferenceArray<>(n);
+        stickyMask = n - 1;
+    }
+
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        present.put(pgno, pi);
+        push(pi);
+    }
+
+    // 页 pgno 回收了空间，空闲空间变成了 freeSpace（只会调大）。页不在区间里时记进 freed，等它回到区间时用上
+    public void update(int pgno, int freeSpace) {
+        while(true) {
+            PageInfo old = present.get(pgno);
+            if(old == null) {
+                freed.merge(pgno, freeSpace, Math::max);
+                // 记下之前页可能刚放回区间，这时由这里把它取走、重新调整
+                if(present.containsKey(pgno)) {
+                    Integer f = freed.remove(pgno);
+                    if(f != null) {
+                        freeSpace = Math.max(freeSpace, f);
+                        continue;
+                    }
+                }
+                return;
+            }
+            if(old.freeSpace >= freeSpace) {
+                return;
+            }
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            if(present.replace(pgno, old, pi)) {
+                push(pi);
+                return;
+            }
         }
     }
 
+    private void push(PageInfo pi) {
+        int number = pi.freeSpace / threshold;
+        Node node = new Node(pi);
+        Node head;
+        do {
+            head = lists.get(number);
+            node.next = head;
+        } while(!lists.compareAndSet(number, head, node));
+    }
+
     public PageInfo select(int spaceSize) {
-        lock.lock();
-        try {
-            int number = spaceSize / THRESHOLD;
-            if(number < INTERVALS_NO) number ++;
-            while(number <= INTERVALS_NO) {
-                if(lists[number].size() == 0) {
-                    number ++;
-                    continue;
-                }
-                return lists[number].remove(0);
+        int number = spaceSize / threshold;
+        if(number < INTERVALS_NO) number ++;
+        while(number <= INTERVALS_NO) {
+            Node head = lists.get(number);
+            if(head == null) {
+                number ++;
+                continue;
             }
-            return null;
-        } finally {
-            lock.unlock();
+            // Keypoint 每次入栈都是新的 Node，栈顶不会出现 ABA
+            if(lists.compareAndSet(number, head, head.next) && present.remove(head.pi.pgno, head.pi)) {
+                return head.pi;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 给当前线程选一个能放下 spaceSize 的页，优先用槽位上的当前插入页，放不下时把它按实际空闲空间放回区间，再从区间里选
+     */
+    public PageInfo take(int spaceSize) {
+        int slot = slot();
+        PageInfo pi = sticky.getAndSet(slot, null);
+        if(pi != null) {
+            Integer f = freed.remove(pi.pgno);
+            if(f != null && f > pi.freeSpace) {
+                pi = new PageInfo(pi.pgno, f);
+            }
+            if(pi.freeSpace >= spaceSize) {
+                return pi;
+            }
+            add(pi.pgno, pi.freeSpace);
         }
+        return select(spaceSize);
+    }
+
+    // 用完 take 选出的页后放回，当前线程的槽位空着时成为它的当前插入页，否则放回区间。拿着期间回收的空间一起带上
+    public void putBack(int pgno, int freeSpace) {
+        Integer f = freed.remove(pgno);
+        if(f != null) {
+            freeSpace = Math.max(freeSpace, f);
+        }
+        if(!sticky.compareAndSet(slot(), null, new PageInfo(pgno, freeSpace))) {
+            add(pgno, freeSpace);
+        }
+    }
+
+    private int slot() {
+        long id = Thread.currentThread().getId();
+        return (int)(id ^ (id >>> 16)) & stickyMask;
     }
 
 }
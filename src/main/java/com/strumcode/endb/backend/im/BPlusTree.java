@@ -3,21 +3,22 @@ package com.strumcode.endb.backend.im;
 import com.strumcode.endb.backend.common.SubArray;
 import com.strumcode.endb.backend.dm.DataManager;
 import com.strumcode.endb.backend.dm.dataItem.DataItem;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
 import com.strumcode.endb.backend.tm.TransactionManagerImpl;
 import com.strumcode.endb.backend.utils.Parser;
 import com.strumcode.endb.backend.im.Node.InsertAndSplitRes;
-import com.strumcode.endb.backend.im.Node.LeafSearchRangeRes;
-import com.strumcode.endb.backend.im.Node.SearchNextRes;
+import com.strumcode.endb.backend.im.Node.LeafDeleteRes;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 在依赖关系图中可以看到，IM 直接基于 DM，而没有基于 VM。索引的数据被直接插入数据库文件中，而不需要经过版本管理。
- * Keypoint IM 对上层模块主要提供两种能力：插入索引（即插入节点）和搜索节点。
+ * Keypoint IM 对上层模块主要提供两种能力：插入索引（即插入节点）和搜索节点。另外 VACUUM 会删除指向已回收记录的索引项（只删叶子里的项，不合并节点）。
+ * 不合并节点意味着索引只会变大不会变小：删空的叶子留在兄弟链表里，查找、插入、删除经过空叶子时沿兄弟指针继续，节点占的索引页也不会还给堆页。
+ * 这样删除不用改内部节点，也就不用处理删除和并发插入、分裂交错的情况。
  *
  * 由于 B+ 树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个 bootDataItem，该 DataItem 中存储了根节点的 UID。可以注意到，IM 在操作 DM 时，使用的事务都是 SUPER_XID。
  */
@@ -26,13 +27,14 @@ public class BPlusTree {
     long bootUid;                                                   // 包含 rootUid 的 dataItem 的 uid 号
     DataItem bootDataItem;                                          // 包含 rootUid 的 dataItem
     Lock bootLock;
+    int balance;                                                    // 节点的 balance number，由页大小决定
 
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
-        long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
+        byte[] rawRoot = Node.newNilRootRaw(Node.balanceNumber(dm.getPageSize()));
+        long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot, PageCache.POOL_INDEX);
         // Keypoint 为什么要插入 rootUid，可能是因为 rawRoot 不一定总是根节点，所以我始终使用额外的 rootUid 来表示根节点
         // 这里插入 rootUid（能找到树根节点的 uid）返回包含 rootUid 的 dataItem 的 uid 号
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid), PageCache.POOL_INDEX);
     }
 
     /**
@@ -40,13 +42,14 @@ public class BPlusTree {
      * BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
      */
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
-        DataItem bootDataItem = dm.read(bootUid);               // 包含 rootUid 的 dataItem
+        DataItem bootDataItem = dm.read(bootUid, PageCache.POOL_INDEX);   // 包含 rootUid 的 dataItem
         assert bootDataItem != null;
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;                                    // 包含 rootUid 的 dataItem 的 uid 号
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.balance = Node.balanceNumber(dm.getPageSize());
         return t;
     }
 
@@ -54,7 +57,7 @@ public class BPlusTree {
         bootLock.lock();
         try {
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            return sa.raw.getLong(sa.start);
         } finally {
             bootLock.unlock();
         }
@@ -63,38 +66,46 @@ public class BPlusTree {
     private void updateRootUid(long left, long right, long rightKey) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+            byte[] rootRaw = Node.newRootRaw(balance, left, right, rightKey);
+            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw, PageCache.POOL_INDEX);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            diRaw.raw.putLong(diRaw.start, newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
         } finally {
             bootLock.unlock();
         }
     }
 
-    // 找某个 key 直到找到叶子节点为止
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        if(isLeaf) {
-            return nodeUid;
-        } else {
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    // 找某个 key 直到找到叶子节点为止，每个节点只读一次：判断是不是叶子和找下一层在同一次读里完成
+    private long searchLeaf(NodeReader reader, long nodeUid, long key) throws Exception {
+        while(true) {
+            long next;
+            reader.load(this, nodeUid);
+            try {
+                if(reader.isLeaf()) {
+                    return nodeUid;
+                }
+                next = reader.searchNext(key);
+            } finally {
+                reader.release();
+            }
+            // 找不到时 key 在兄弟节点里，兄弟节点在同一层，也不是叶子
+            nodeUid = next != 0 ? next : reader.siblingUid;
         }
     }
 
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(NodeReader reader, long nodeUid, long key) throws Exception {
         while(true) {
-            Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
-            node.release();
-            if(res.uid != 0) return res.uid;
-            nodeUid = res.siblingUid;
+            long next;
+            reader.load(this, nodeUid);
+            try {
+                next = reader.searchNext(key);
+            } finally {
+                reader.release();
+            }
+            if(next != 0) return next;
+            nodeUid = reader.siblingUid;
         }
     }
 
@@ -104,17 +115,28 @@ public class BPlusTree {
 
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
         long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);                            // 先用 leftKey 走到叶子，再向右遍历
+        /*
+         * 先走到叶子，再向右遍历。和 delete 一样按 leftKey-1 往下走：
+         * 叶子分裂时，右半边第一个 key 成为内部节点里的分隔 key，searchNext 找第一个大于查找 key 的项，
+         * 按 leftKey 往下走会直接进入右半边，等于 leftKey 的项跨了分裂点时（比如字符串哈希相同、或者很多行的值相同）会漏掉左半边的那些。
+         * 按 leftKey-1 往下走最多多读一个叶子，leafSearchRange 会跳过小于 leftKey 的项
+         */
+        NodeReader reader = NodeReader.of();
+        long leafUid = searchLeaf(reader, rootUid, leftKey == Long.MIN_VALUE ? leftKey : leftKey - 1);
         List<Long> uids = new ArrayList<>();
         while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if(res.siblingUid == 0) {
+            reader.load(this, leafUid);
+            try {
+                reader.leafSearchRange(leftKey, rightKey, uids);
+            } finally {
+                reader.release();
+            }
+            if(reader.siblingUid == 0) {
                 break;
             } else {
-                leafUid = res.siblingUid;
+                // 沿兄弟指针向右扫描，叶子通常是先后分裂出来的，在文件中离得不远，预读兄弟所在的页及其后面的页
+                dm.prefetch(reader.siblingUid);
+                leafUid = reader.siblingUid;
             }
         }
         return uids;
@@ -122,7 +144,7 @@ public class BPlusTree {
 
     public void insert(long key, long uid) throws Exception {
         long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
+        InsertRes res = insert(NodeReader.of(), rootUid, uid, key);
         assert res != null;
         if(res.newNode != 0) {
             updateRootUid(rootUid, res.newNode, res.newKey);
@@ -133,17 +155,21 @@ public class BPlusTree {
         long newNode, newKey;
     }
 
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    private InsertRes insert(NodeReader reader, long nodeUid, long uid, long key) throws Exception {
+        boolean isLeaf;
+        reader.load(this, nodeUid);
+        try {
+            isLeaf = reader.isLeaf();
+        } finally {
+            reader.release();
+        }
 
         InsertRes res = null;
         if(isLeaf) {
             res = insertAndSplit(nodeUid, uid, key);
         } else {
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
+            long next = searchNext(reader, nodeUid, key);
+            InsertRes ir = insert(reader, next, uid, key);
             if(ir.newNode != 0) {
                 // 应该是如果在下一层插入的时候造成了分裂，那 res.newNode 就是分裂出来的节点，我们还要把它也插入 B+ 树
                 res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
@@ -170,6 +196,25 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 删除 key 下指向 uid 的索引项，返回是否找到。
+     * Keypoint 相同的 key 可以跨好几个叶子，按 key 往下走会落到最后一个含 key 的叶子（searchNext 找第一个比 key 大的键），
+     * 所以按 key-1 往下走，从第一个可能含 key 的叶子开始向右找（searchRange 也是这样）
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        long leafUid = searchLeaf(NodeReader.of(), rootUid(), key == Long.MIN_VALUE ? key : key - 1);
+        while(leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafDeleteRes res = leaf.leafDelete(key, uid);
+            leaf.release();
+            if(res.deleted) {
+                return true;
+            }
+            leafUid = res.siblingUid;
+        }
+        return false;
+    }
+
     public void close() {
         bootDataItem.release();
     }
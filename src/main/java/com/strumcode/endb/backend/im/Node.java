@@ -1,13 +1,10 @@
 package com.strumcode.endb.backend.im;
 
-import com.strumcode.endb.backend.utils.Parser;
 import com.strumcode.endb.backend.common.SubArray;
 import com.strumcode.endb.backend.dm.dataItem.DataItem;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
 import com.strumcode.endb.backend.tm.TransactionManagerImpl;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import com.strumcode.endb.backend.utils.Codec;
 
 /**
  * Node结构如下：
@@ -19,6 +16,11 @@ import java.util.List;
  * KeyNumber 为该节点中 key 的个数；
  * SiblingUid 是其兄弟节点存储在 DM 中的 UID。（这个节点的同一层的右节点）
  * 后续是穿插的子节点（SonN，Son 应该就是资源的 uid）和 KeyN（应该只是序号）。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
+ *
+ * 节点的扇出随页大小变化（见 balanceNumber），默认的 8K 页是 BALANCE_NUMBER，一个页能放下的节点个数不变。
+ *
+ * Node 通过 DataItem 读写节点，用在插入和删除上。只读的查找不创建 Node，用 NodeReader 直接读页里的节点。
+ * 页里的节点用 ByteBuffer 带下标的 get/put 原地读写；新建的节点（根节点、分裂出来的节点）是 byte[]，用 Codec 原地写。
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
@@ -27,106 +29,103 @@ public class Node {
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
     static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+
+    // 页大小为 pageSize 时的 balance number，按页大小等比例缩放
+    static int balanceNumber(int pageSize) {
+        return BALANCE_NUMBER * pageSize / PageCache.DEFAULT_PAGE_SIZE;
+    }
+
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2*8)*(balance*2+2);
+    }
 
     BPlusTree tree;                                                  // 持有了其 B+ 树结构的引用
     DataItem dataItem;                                               // DataItem 的引用
     SubArray raw;                                                    // SubArray 的引用
     long uid;
 
-    static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
-        if(isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
-        } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;
-        }
-    }
-
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
+        return raw.raw.get(raw.start + IS_LEAF_OFFSET) == (byte)1;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        raw.raw.putShort(raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int) raw.raw.getShort(raw.start+NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        raw.raw.putLong(raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return raw.raw.getLong(raw.start+SIBLING_OFFSET);
     }
 
     // [Son0][Key0][Son1][Key1]...[SonN][KeyN]
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        raw.raw.putLong(offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return raw.raw.getLong(offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        raw.raw.putLong(offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
-    }
-
-    // from 从第 k 个开始的内容拷贝到 to 的第0个开始
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
+        return raw.raw.getLong(offset);
     }
 
     // 从第 k+1 个开始的内容都等于前一个 [Son][Key] 的内容
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
-        }
+        // 节点的 SubArray 正好覆盖整个节点
+        int end = raw.end-1;
+        // 源和目标重叠时 put 的结果等同于先拷贝到临时区域再写入
+        raw.raw.put(begin, raw.raw, begin-(8*2), end-begin+1);
+    }
+
+    // 去掉第 k 个 [Son][Key]，后面的依次前移
+    static void removeRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        int end = raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+        raw.raw.put(begin, raw.raw, begin+(8*2), end-begin-(8*2));
     }
 
     // 根节点的初始两个子节点为 left 和 right, 初始键值为 key。
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(int balance, long left, long right, long key)  {
+        byte[] raw = new byte[nodeSize(balance)];
 
-        setRawIsLeaf(raw, false);
-        setRawNoKeys(raw, 2);
-        setRawSibling(raw, 0);
+        raw[IS_LEAF_OFFSET] = (byte)0;
+        Codec.putShort(raw, NO_KEYS_OFFSET, (short)2);
+        Codec.putLong(raw, SIBLING_OFFSET, 0);
         // [Son][Key]
-        setRawKthSon(raw, left, 0);
-        setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
+        Codec.putLong(raw, NODE_HEADER_SIZE, left);
+        Codec.putLong(raw, NODE_HEADER_SIZE+8, key);
+        Codec.putLong(raw, NODE_HEADER_SIZE+(8*2), right);
+        Codec.putLong(raw, NODE_HEADER_SIZE+(8*2)+8, Long.MAX_VALUE);
 
-        return raw.raw;
+        return raw;
     }
 
-    // 空的根节点
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-
-        setRawIsLeaf(raw, true);
-        setRawNoKeys(raw, 0);
-        setRawSibling(raw, 0);
-
-        return raw.raw;
+    // 空的根节点：是叶子，没有 key 也没有兄弟，新数组里除了 LeafFlag 都是 0
+    static byte[] newNilRootRaw(int balance)  {
+        byte[] raw = new byte[nodeSize(balance)];
+        raw[IS_LEAF_OFFSET] = (byte)1;
+        return raw;
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
-        DataItem di = bTree.dm.read(uid);
+        DataItem di = bTree.dm.read(uid, PageCache.POOL_INDEX);
         assert di != null;
         Node n = new Node();
         n.tree = bTree;
@@ -140,83 +139,42 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
-        dataItem.rLock();
-        try {
-            return getRawIfLeaf(raw);
-        } finally {
-            dataItem.rUnLock();
-        }
-    }
-
-    class SearchNextRes {
-        long uid;
+    class LeafDeleteRes {
+        boolean deleted;
         long siblingUid;
     }
 
-    // searchNext 寻找对应 key 的 UID, 如果找不到, 则需要返回兄弟节点的 UID（后面接着找）。
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i);
-                if(key < ik) {
-                    // 找第一个比 key 大的那一对 [Son][Key]
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
-            }
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
-
-        } finally {
-            dataItem.rUnLock();
-        }
-    }
-
-    class LeafSearchRangeRes {
-        List<Long> uids;
-        long siblingUid;
-    }
-
-    // leafSearchRange 方法在当前节点进行范围查找，范围是 [leftKey, rightKey]，这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
+    /**
+     * 在叶子节点中删除 [uid][key]，找不到并且 key 可能在兄弟节点里（本节点的 key 都不大于它）时返回兄弟节点的 UID。
+     * 删除不合并节点，叶子可以变空，查找和插入遇到空叶子都会沿兄弟指针继续
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
         try {
             int noKeys = getRawNoKeys(raw);
             int kth = 0;
             while(kth < noKeys) {
                 long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
+                if(ik > key) {
+                    return res;
                 }
-                kth ++;
-            }
-            List<Long> uids = new ArrayList<>();
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth ++;
-                } else {
-                    break;
+                if(ik == key && getRawKthSon(raw, kth) == uid) {
+                    removeRawKth(raw, kth, noKeys);
+                    setRawNoKeys(raw, noKeys-1);
+                    res.deleted = true;
+                    return res;
                 }
+                kth ++;
             }
-
-            long siblingUid = 0;
-            if(kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
+            res.siblingUid = getRawSibling(raw);
             return res;
         } finally {
-            dataItem.rUnLock();
+            if(res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
         }
     }
 
@@ -289,7 +247,7 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return tree.balance*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -297,18 +255,21 @@ public class Node {
     }
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
-        setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        int balance = tree.balance;
+        byte[] nodeRaw = new byte[nodeSize(balance)];
+        nodeRaw[IS_LEAF_OFFSET] = raw.raw.get(raw.start+IS_LEAF_OFFSET);
+        Codec.putShort(nodeRaw, NO_KEYS_OFFSET, (short)balance);
+        Codec.putLong(nodeRaw, SIBLING_OFFSET, getRawSibling(raw));
+        // 从第 balance 个开始的 [Son][Key] 拷贝到新节点的第 0 个开始
+        int offset = raw.start+NODE_HEADER_SIZE+balance*(8*2);
+        raw.raw.get(offset, nodeRaw, NODE_HEADER_SIZE, raw.end-offset);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw, PageCache.POOL_INDEX);
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
         res.newSon = son;                                                               // 分裂出来的节点
-        res.newKey = getRawKthKey(nodeRaw, 0);                                    // 分裂出来的节点的第0个节点的 key，之所以是第0个可能是 B+ 树节点的 key 是它的子节点的 key 的最小值（头晕了）
+        res.newKey = Codec.getLong(nodeRaw, NODE_HEADER_SIZE+8);                                    // 分裂出来的节点的第0个节点的 key，之所以是第0个可能是 B+ 树节点的 key 是它的子节点的 key 的最小值（头晕了）
         return res;
     }
 
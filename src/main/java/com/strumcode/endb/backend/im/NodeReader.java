@@ -0,0 +1,85 @@
+package com.strumcode.endb.backend.im;
+
+import com.strumcode.endb.backend.common.SubArray;
+import com.strumcode.endb.backend.dm.dataItem.DataItemView;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+
+import java.util.List;
+
+/**
+ * 只读地访问 B+ 树节点，给查找用（searchRange，以及插入、删除时往下找节点）。节点的布局见 Node。
+ * 通过 DataItemView 读节点（见 DataManager.read(uid, pool, view)），一次查找从根到叶子、再沿兄弟指针向右都用同一个 NodeReader，
+ * 访问一个节点不创建 Node、DataItem，也没有数据项缓存加载用的 future，找到的结果放在 NodeReader 自己的字段里。
+ * 每个线程一个 NodeReader（见 of），同一时刻只读一个节点：load 之后要 release，才能 load 下一个。
+ * 一个线程同时只做一次 B+ 树操作，插入往下递归之前已经 release 了当前节点，不会有两处同时用它
+ */
+class NodeReader {
+    private static final ThreadLocal<NodeReader> readers = ThreadLocal.withInitial(NodeReader::new);
+
+    private DataItemView view = new DataItemView();
+    long siblingUid;                                            // searchNext、leafSearchRange 找不到时，接着找的兄弟节点的 UID
+
+    static NodeReader of() {
+        return readers.get();
+    }
+
+    void load(BPlusTree tree, long uid) throws Exception {
+        boolean valid = tree.dm.read(uid, PageCache.POOL_INDEX, view);
+        assert valid;
+    }
+
+    void release() {
+        view.release();
+    }
+
+    boolean isLeaf() {
+        view.rLock();
+        try {
+            return Node.getRawIfLeaf(view.data());
+        } finally {
+            view.rUnLock();
+        }
+    }
+
+    // 寻找对应 key 的 UID（第一个比 key 大的那一对 [Son][Key] 的 Son），找不到时返回 0，兄弟节点的 UID 在 siblingUid 里（后面接着找）
+    long searchNext(long key) {
+        view.rLock();
+        try {
+            SubArray raw = view.data();
+            int noKeys = Node.getRawNoKeys(raw);
+            for(int i = 0; i < noKeys; i ++) {
+                if(key < Node.getRawKthKey(raw, i)) {
+                    siblingUid = 0;
+                    return Node.getRawKthSon(raw, i);
+                }
+            }
+            siblingUid = Node.getRawSibling(raw);
+            return 0;
+        } finally {
+            view.rUnLock();
+        }
+    }
+
+    /**
+     * 在当前叶子里找 [leftKey, rightKey] 范围内的项，它们的 UID 加进 uids。
+     * 如果 rightKey 大于等于该节点最大的 key，siblingUid 是兄弟节点的 UID，方便继续搜索下一个节点，否则为 0
+     */
+    void leafSearchRange(long leftKey, long rightKey, List<Long> uids) {
+        view.rLock();
+        try {
+            SubArray raw = view.data();
+            int noKeys = Node.getRawNoKeys(raw);
+            int kth = 0;
+            while(kth < noKeys && Node.getRawKthKey(raw, kth) < leftKey) {
+                kth ++;
+            }
+            while(kth < noKeys && Node.getRawKthKey(raw, kth) <= rightKey) {
+                uids.add(Node.getRawKthSon(raw, kth));
+                kth ++;
+            }
+            siblingUid = kth == noKeys ? Node.getRawSibling(raw) : 0;
+        } finally {
+            view.rUnLock();
+        }
+    }
+}
@@ -49,6 +49,12 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "set":
+                    stat = parseSet(tokenizer);
+                    break;
+                case "vacuum":
+                    stat = parseVacuum(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -72,14 +78,81 @@ public class Parser {
         return stat;
     }
 
-    private static Show parseShow(Tokenizer tokenizer) throws Exception {
+    private static Object parseShow(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
             return new Show();
         }
+        if("pool".equals(tmp)) {
+            tokenizer.pop();
+            return new ShowPool();
+        }
         throw Error.InvalidCommandException;
     }
 
+    // vacuum [tableName]
+    private static Vacuum parseVacuum(Tokenizer tokenizer) throws Exception {
+        Vacuum vacuum = new Vacuum();
+        String tmp = tokenizer.peek();
+        if("".equals(tmp)) {
+            return vacuum;
+        }
+        if(!isName(tmp)) {
+            throw Error.InvalidCommandException;
+        }
+        vacuum.tableName = tmp;
+        tokenizer.pop();
+        return vacuum;
+    }
+
+    // set pool 128MB
+    private static SetPool parseSet(Tokenizer tokenizer) throws Exception {
+        if(!"pool".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        SetPool setPool = new SetPool();
+        String tmp = tokenizer.peek();
+        if("heap".equals(tmp) || "index".equals(tmp)) {
+            tokenizer.pop();
+            setPool.poolName = tmp;
+            try {
+                setPool.share = Integer.parseInt(tokenizer.peek());
+            } catch(NumberFormatException e) {
+                throw Error.InvalidPoolShareException;
+            }
+            tokenizer.pop();
+            return setPool;
+        }
+        setPool.memory = parseMem(tmp);
+        tokenizer.pop();
+        return setPool;
+    }
+
+    // 内存大小，单位 KB、MB、GB，和启动参数 -mem 一样
+    private static long parseMem(String memStr) throws Exception {
+        if(memStr.length() < 3) {
+            throw Error.InvalidMemException;
+        }
+        long memNum;
+        try {
+            memNum = Long.parseLong(memStr.substring(0, memStr.length()-2));
+        } catch(NumberFormatException e) {
+            throw Error.InvalidMemException;
+        }
+        switch(memStr.substring(memStr.length()-2)) {
+            case "KB":
+                return memNum << 10;
+            case "MB":
+                return memNum << 20;
+            case "GB":
+                return memNum << 30;
+            default:
+                throw Error.InvalidMemException;
+        }
+    }
+
     private static Update parseUpdate(Tokenizer tokenizer) throws Exception {
         Update update = new Update();
         update.tableName = tokenizer.peek();
@@ -0,0 +1,8 @@
+package com.strumcode.endb.backend.parser.statement;
+
+// set pool <mem> 调整缓冲池大小；set pool heap|index <percent> 调整分区保留的份额，这时 poolName 不为 null
+public class SetPool {
+    public long memory;
+    public String poolName;
+    public int share;
+}
@@ -0,0 +1,5 @@
+package com.strumcode.endb.backend.parser.statement;
+
+public class ShowPool {
+
+}
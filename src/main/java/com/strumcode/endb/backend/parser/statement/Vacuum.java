@@ -0,0 +1,6 @@
+package com.strumcode.endb.backend.parser.statement;
+
+// vacuum <table> 回收表中的死版本；tableName 为 null 时回收所有表
+public class Vacuum {
+    public String tableName;
+}
@@ -46,6 +46,12 @@ public class Executor {
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if(ShowPool.class.isInstance(stat)) {
+            return tbm.showPool();
+        } else if(SetPool.class.isInstance(stat)) {
+            return tbm.setPool((SetPool)stat);
+        } else if(Vacuum.class.isInstance(stat)) {
+            return tbm.vacuum((Vacuum)stat);
         } else {
             return execute2(stat);
         }
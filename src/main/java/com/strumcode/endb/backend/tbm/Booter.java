@@ -10,12 +10,15 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 
 /**
- * 管理 MYDB 的启动信息，虽然现在所需的启动信息，只有一个：第一个表的 uid
+ * 管理 MYDB 的启动信息：[FirstTableUid 8][Features 4]
+ * FirstTableUid 是第一个表的 uid，Features 是建库时确定的 TBM 的功能标记，旧版本创建的文件没有这 4 个字节
  */
 public class Booter {
     public static final String BOOTER_SUFFIX = ".bt";
     public static final String BOOTER_TMP_SUFFIX = ".bt_tmp";
 
+    public static final int FEATURE_ROW_OWNER = 1;          // 每一行开头记着所属的表的 uid，见 Table.ownerOf
+
     String path;
     File file;
 
@@ -4,12 +4,13 @@ import com.google.common.primitives.Bytes;
 import com.strumcode.endb.backend.im.BPlusTree;
 import com.strumcode.endb.backend.parser.statement.SingleExpression;
 import com.strumcode.endb.backend.tm.TransactionManagerImpl;
+import com.strumcode.endb.backend.utils.Codec;
 import com.strumcode.endb.backend.utils.Panic;
 import com.strumcode.endb.backend.utils.ParseStringRes;
 import com.strumcode.endb.backend.utils.Parser;
 import com.strumcode.endb.common.Error;
 
-import java.util.Arrays;
+import java.io.InputStream;
 import java.util.List;
 
 /**
@@ -21,8 +22,13 @@ import java.util.List;
  * FieldName 和 TypeName 存储的都是字节形式的字符串，形式为：[StringLength][StringData]
  * TypeName 为字段的类型，限定为 int32、int64 和 string 类型。
  * 如果这个字段有索引，那个 IndexUID 指向了索引 B+ 树的根，否则该字段为 0。
+ *
+ * string 字段的值编码之后超过页大小的 1/TOAST_FRACTION 时放到溢出链里，行里只留指针（见 Toast）。
+ * 每个字段都没超过但整行放不进一个数据项时，从最长的字段开始也放进去，见 Table.entry2Raw。
  */
 public class Field {
+    private static final int TOAST_FRACTION = 4;
+
     long uid;
     private Table tb;
     String fieldName;
@@ -60,10 +66,10 @@ public class Field {
         ParseStringRes res = Parser.parseString(raw);
         fieldName = res.str;
         position += res.next;
-        res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        res = Parser.parseString(raw, position);
         fieldType = res.str;
         position += res.next;
-        this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        this.index = Parser.parseLong(raw, position);
         if(index != 0) {
             try {
                 bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
@@ -110,6 +116,11 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    // 删除索引中 key 指向 uid 的项，返回是否找到
+    public boolean remove(Object key, long uid) throws Exception {
+        return bt.delete(value2Uid(key), uid);
+    }
+
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
@@ -126,11 +137,11 @@ public class Field {
         return null;
     }
 
-    public long value2Uid(Object key) {
+    public long value2Uid(Object key) throws Exception {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = Parser.str2Uid((String)loadValue(key));
                 break;
             case "int32":
                 int uint = (int)key;
@@ -152,30 +163,75 @@ public class Field {
                 raw = Parser.long2Byte((long)v);
                 break;
             case "string":
-                raw = Parser.string2Byte((String)v);
+                if(v instanceof Toast) {
+                    Toast t = (Toast)v;
+                    raw = new byte[Toast.SIZE];
+                    Codec.putInt(raw, 0, Toast.MARKER);
+                    Codec.putLong(raw, 4, t.uid);
+                    Codec.putInt(raw, 12, t.length);
+                } else {
+                    raw = Parser.string2Byte((String)v);
+                }
                 break;
         }
         return raw;
     }
 
+    /**
+     * 写入行之前调用：太长的字符串放进溢出链，换成 Toast。长短按编码之后的字节数算，force 为 true 时不管多长都放进去。
+     * 已经是 Toast 的值（更新时没改的字段）不复制，新版本和旧版本共用一条链，加一个引用，VACUUM 回收最后一个引用它的版本时才回收这条链
+     */
+    Object toast(long xid, Object v, boolean force) throws Exception {
+        if(!"string".equals(fieldType)) {
+            return v;
+        }
+        if(v instanceof Toast) {
+            ((TableManagerImpl)tb.tbm).dm.shareOverflow(xid, ((Toast)v).uid);
+            return v;
+        }
+        String str = (String)loadValue(v);
+        byte[] data = str.getBytes();
+        if(!force && data.length <= ((TableManagerImpl)tb.tbm).dm.getPageSize() / TOAST_FRACTION) {
+            return str;
+        }
+        return new Toast(((TableManagerImpl)tb.tbm).dm.insertOverflow(xid, data), data.length);
+    }
+
+    // 值是 Toast 时读出溢出链中的字符串，其他值原样返回
+    Object loadValue(Object v) throws Exception {
+        if(!(v instanceof Toast)) {
+            return v;
+        }
+        Toast t = (Toast)v;
+        try (InputStream in = ((TableManagerImpl)tb.tbm).dm.readOverflow(t.uid)) {
+            return new String(in.readNBytes(t.length));
+        }
+    }
+
     class ParseValueRes {
         Object v;
         int shift;
     }
 
-    public ParseValueRes parserValue(byte[] raw) {
+    // 从 raw 的 pos 处解析这个字段的值
+    public ParseValueRes parserValue(byte[] raw, int pos) {
         ParseValueRes res = new ParseValueRes();
         switch(fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
+                res.v = Parser.parseInt(raw, pos);
                 res.shift = 4;
                 break;
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
+                res.v = Parser.parseLong(raw, pos);
                 res.shift = 8;
                 break;
             case "string":
-                ParseStringRes r = Parser.parseString(raw);
+                if(Parser.parseInt(raw, pos) == Toast.MARKER) {
+                    res.v = new Toast(Parser.parseLong(raw, pos+4), Parser.parseInt(raw, pos+12));
+                    res.shift = Toast.SIZE;
+                    break;
+                }
+                ParseStringRes r = Parser.parseString(raw, pos);
                 res.v = r.str;
                 res.shift = r.next;
                 break;
@@ -183,7 +239,28 @@ public class Field {
         return res;
     }
 
-    public String printValue(Object v) {
+    // raw 的 pos 处这个字段的值占的字节数，剩下的字节不够时返回 -1。和 parserValue 不同，raw 可以不是这个字段的值
+    int rawSize(byte[] raw, int pos) {
+        int rest = raw.length - pos;
+        switch(fieldType) {
+            case "int32":
+                return rest >= 4 ? 4 : -1;
+            case "int64":
+                return rest >= 8 ? 8 : -1;
+            case "string":
+                if(rest < 4) {
+                    return -1;
+                }
+                int length = Parser.parseInt(raw, pos);
+                if(length == Toast.MARKER) {
+                    return rest >= Toast.SIZE && Parser.parseInt(raw, pos+12) >= 0 ? Toast.SIZE : -1;
+                }
+                return length >= 0 && length <= rest - 4 ? 4 + length : -1;
+        }
+        return -1;
+    }
+
+    public String printValue(Object v) throws Exception {
         String str = null;
         switch(fieldType) {
             case "int32":
@@ -193,7 +270,7 @@ public class Field {
                 str = String.valueOf((long)v);
                 break;
             case "string":
-                str = (String)v;
+                str = (String)loadValue(v);
                 break;
         }
         return str;
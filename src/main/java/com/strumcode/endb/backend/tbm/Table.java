@@ -3,6 +3,7 @@ package com.strumcode.endb.backend.tbm;
 import com.google.common.primitives.Bytes;
 import com.strumcode.endb.backend.parser.statement.*;
 import com.strumcode.endb.backend.tm.TransactionManagerImpl;
+import com.strumcode.endb.backend.utils.Codec;
 import com.strumcode.endb.backend.utils.Panic;
 import com.strumcode.endb.backend.utils.ParseStringRes;
 import com.strumcode.endb.backend.utils.Parser;
@@ -19,9 +20,14 @@ import java.util.*;
  *
  * 一个数据库中存在多张表，TBM 使用链表的形式将其组织起来，每一张表都保存一个指向下一张表的 UID。
  *
+ * 表中的一行：[TableUid 8][Field1Value]...[FieldNValue]，TableUid 是所属的表的 uid，VACUUM 靠它认出一个死版本是哪张表的。
+ * 没有 Booter.FEATURE_ROW_OWNER 标记的旧库的行没有 TableUid
+ *
  * Keypoint 目前只支持已索引字段作为 Where 的条件
  */
 public class Table {
+    private static final int OWNER_SIZE = 8;
+
     TableManager tbm;
     long uid;                               // Keypoint 看来 uid 都是指资源的号码了
     String name;
@@ -80,11 +86,11 @@ public class Table {
         ParseStringRes res = Parser.parseString(raw);
         name = res.str;
         position += res.next;
-        nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        nextUid = Parser.parseLong(raw, position);
         position += 8;
 
         while(position < raw.length) {
-            long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+            long uid = Parser.parseLong(raw, position);
             position += 8;
             fields.add(Field.loadField(this, uid));
         }
@@ -138,7 +144,7 @@ public class Table {
 
             Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);                              // 更新该字段的值
-            raw = entry2Raw(entry);
+            raw = entry2Raw(xid, entry);
             long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);                          // 重新插入这行
             
             count ++;
@@ -152,22 +158,58 @@ public class Table {
         return count;
     }
 
+    /**
+     * 按这张表的字段解析一个死版本的 raw（VACUUM 用，见 TableManagerImpl.vacuum），raw 是这张表的行并且正好用完整个 raw 时返回 entry，否则返回 null
+     */
+    Map<String, Object> parseRow(byte[] raw) {
+        if(!((TableManagerImpl)tbm).rowOwner || ownerOf(raw) != uid) {
+            return null;
+        }
+        int pos = OWNER_SIZE;
+        for (Field field : fields) {
+            int size = field.rawSize(raw, pos);
+            if(size < 0) {
+                return null;
+            }
+            pos += size;
+        }
+        if(pos != raw.length) {
+            return null;
+        }
+        return parseEntry(raw);
+    }
+
+    // 行 raw 所属的表的 uid，只对有 Booter.FEATURE_ROW_OWNER 的库有意义。raw 不够长时返回 0，0 不是任何表的 uid
+    static long ownerOf(byte[] raw) {
+        return raw.length < OWNER_SIZE ? 0 : Parser.parseLong(raw, 0);
+    }
+
+    // 从每个索引里删掉 entry 指向 uid 的项。没找到也不要紧，重复删除是安全的
+    void unindex(Map<String, Object> entry, long uid) throws Exception {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.remove(entry.get(field.fieldName), uid);
+            }
+        }
+    }
+
     public String read(long xid, Select read) throws Exception {
         // 我需要读的所有资源
         List<Long> uids = parseWhere(read.where);
+        List<Field> selected = selectFields(read.fields);
         StringBuilder sb = new StringBuilder();
         for (Long uid : uids) {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) continue;
             Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+            sb.append(printEntry(selected, entry)).append("\n");
         }
         return sb.toString();
     }
 
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
+        byte[] raw = entry2Raw(xid, entry);
         // 这个 uid 是这整行记录的 value
         long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
         for (Field field : fields) {
@@ -271,12 +313,35 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
+    // select 列出的字段，* 为所有字段
+    private List<Field> selectFields(String[] names) throws Exception {
+        if(names == null || (names.length == 1 && "*".equals(names[0]))) {
+            return fields;
+        }
+        List<Field> selected = new ArrayList<>();
+        for (String name : names) {
+            Field fd = null;
+            for (Field field : fields) {
+                if(field.fieldName.equals(name)) {
+                    fd = field;
+                    break;
+                }
+            }
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            selected.add(fd);
+        }
+        return selected;
+    }
+
+    // 只打印选中的字段，没选中的字段即使在溢出链里也不会去读
+    private String printEntry(List<Field> selected, Map<String, Object> entry) throws Exception {
         StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
+        for (int i = 0; i < selected.size(); i++) {
+            Field field = selected.get(i);
             sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
+            if(i == selected.size()-1) {
                 sb.append("]");
             } else {
                 sb.append(", ");
@@ -285,23 +350,59 @@ public class Table {
         return sb.toString();
     }
 
-    // raw 是所有字段对应的值，按顺序解析出字段和值放到 entry 中
+    // raw 是所有字段对应的值，按顺序解析出字段和值放到 entry 中，溢出链里的字段只解析出 Toast
     private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
+        int pos = ((TableManagerImpl)tbm).rowOwner ? OWNER_SIZE : 0;
         Map<String, Object> entry = new HashMap<>();
         for (Field field : fields) {
-            ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
+            ParseValueRes r = field.parserValue(raw, pos);
             entry.put(field.fieldName, r.v);
             pos += r.shift;
         }
         return entry;
     }
 
-    // 把 entry 中的值提取出来合并成 raw
-    private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
+    /**
+     * 把 entry 中的值提取出来合并成 raw，太长的字符串先在事务 xid 中写进溢出链（见 Field.toast），entry 本身不变。
+     * 每个字段单独看都不长、整行却放不进一个数据项时，把还在行里的最长的字符串放进溢出链，直到放得下或者没有字符串可放
+     */
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
+        boolean owner = ((TableManagerImpl)tbm).rowOwner;
+        Object[] values = new Object[fields.size()];
+        byte[][] parts = new byte[fields.size()][];
+        int size = owner ? OWNER_SIZE : 0;
+        for (int i = 0; i < fields.size(); i ++) {
+            Field field = fields.get(i);
+            values[i] = field.toast(xid, entry.get(field.fieldName), false);
+            parts[i] = field.value2Raw(values[i]);
+            size += parts[i].length;
+        }
+        int maxSize = ((TableManagerImpl)tbm).vm.maxDataSize();
+        while(size > maxSize) {
+            int longest = -1;
+            for (int i = 0; i < fields.size(); i ++) {
+                if(values[i] instanceof String && parts[i].length > Toast.SIZE && (longest < 0 || parts[i].length > parts[longest].length)) {
+                    longest = i;
+                }
+            }
+            if(longest < 0) {
+                // 剩下的都是定长字段和 Toast，插入时会因为太大而失败
+                break;
+            }
+            values[longest] = fields.get(longest).toast(xid, values[longest], true);
+            size -= parts[longest].length;
+            parts[longest] = fields.get(longest).value2Raw(values[longest]);
+            size += parts[longest].length;
+        }
+        byte[] raw = new byte[size];
+        int pos = 0;
+        if(owner) {
+            Codec.putLong(raw, 0, uid);
+            pos = OWNER_SIZE;
+        }
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, raw, pos, part.length);
+            pos += part.length;
         }
         return raw;
     }
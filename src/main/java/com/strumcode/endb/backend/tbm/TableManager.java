@@ -1,5 +1,6 @@
 package com.strumcode.endb.backend.tbm;
 
+import com.google.common.primitives.Bytes;
 import com.strumcode.endb.backend.dm.DataManager;
 import com.strumcode.endb.backend.parser.statement.*;
 import com.strumcode.endb.backend.utils.Parser;
@@ -19,9 +20,17 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    // 缓冲池的管理命令，不在事务中执行
+    byte[] showPool();
+    byte[] setPool(SetPool setPool) throws Exception;
+
+    // 回收死版本，不在事务中执行
+    byte[] vacuum(Vacuum vacuum) throws Exception;
+    void startAutoVacuum(int seconds);              // 每隔 seconds 秒在后台对所有表做一次 VACUUM
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
-        booter.update(Parser.long2Byte(0));
+        booter.update(Bytes.concat(Parser.long2Byte(0), Parser.int2Byte(Booter.FEATURE_ROW_OWNER)));
         return new TableManagerImpl(vm, dm, booter);
     }
 
@@ -1,25 +1,39 @@
 package com.strumcode.endb.backend.tbm;
 
+import com.google.common.primitives.Bytes;
 import com.strumcode.endb.backend.parser.statement.*;
 import com.strumcode.endb.backend.dm.DataManager;
+import com.strumcode.endb.backend.dm.dataItem.DataItem;
+import com.strumcode.endb.backend.dm.pageCache.PoolStats;
 import com.strumcode.endb.backend.utils.Parser;
 import com.strumcode.endb.backend.vm.VersionManager;
 import com.strumcode.endb.common.Error;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class TableManagerImpl implements TableManager {
+    private static final int VACUUM_BATCH = 256;
+
     VersionManager vm;
     DataManager dm;
     private Booter booter;
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
+    private Lock vacuumLock;                        // 同时只有一个 VACUUM，两个 VACUUM 不会 purge 同一个版本
+    private Set<Long> metaUids;                     // 表和字段的定义的 uid，它们也在堆页上，VACUUM 不碰（建表回滚后留下的定义也一样）
+    private int features;                           // Booter 里的功能标记
+    boolean rowOwner;                               // 行里有所属的表的 uid，见 Booter.FEATURE_ROW_OWNER
     
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -28,6 +42,11 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        vacuumLock = new ReentrantLock();
+        metaUids = ConcurrentHashMap.newKeySet();
+        byte[] raw = booter.load();
+        features = raw.length >= 12 ? Parser.parseInt(raw, 8) : 0;
+        rowOwner = (features & Booter.FEATURE_ROW_OWNER) != 0;
         loadTables();
     }
 
@@ -40,6 +59,14 @@ public class TableManagerImpl implements TableManager {
             Table tb = Table.loadTable(this, uid);
             uid = tb.nextUid;
             tableCache.put(tb.name, tb);
+            addMetaUids(tb);
+        }
+    }
+
+    private void addMetaUids(Table tb) {
+        metaUids.add(tb.uid);
+        for (Field field : tb.fields) {
+            metaUids.add(field.uid);
         }
     }
 
@@ -48,9 +75,9 @@ public class TableManagerImpl implements TableManager {
         return Parser.parseLong(raw);
     }
 
-    // 在创建新表时，采用的是头插法，所以每次创建表都需要更新 Booter 文件。
+    // 在创建新表时，采用的是头插法，所以每次创建表都需要更新 Booter 文件。功能标记原样写回
     private void updateFirstTableUid(long uid) {
-        byte[] raw = Parser.long2Byte(uid);
+        byte[] raw = Bytes.concat(Parser.long2Byte(uid), Parser.int2Byte(features));
         booter.update(raw);
     }
 
@@ -72,6 +99,153 @@ public class TableManagerImpl implements TableManager {
         vm.abort(xid);
         return "abort".getBytes();
     }
+    @Override
+    public byte[] showPool() {
+        return dm.getPoolStats().toString().getBytes();
+    }
+
+    @Override
+    public byte[] setPool(SetPool setPool) throws Exception {
+        if(setPool.poolName == null) {
+            dm.resizePool(setPool.memory);
+        } else {
+            dm.setPoolShare(Arrays.asList(PoolStats.POOL_NAMES).indexOf(setPool.poolName), setPool.share);
+        }
+        return dm.getPoolStats().toString().getBytes();
+    }
+
+    @Override
+    public byte[] vacuum(Vacuum vacuum) throws Exception {
+        if(vacuum.tableName == null) {
+            return ("vacuum " + vacuumAll(0)).getBytes();
+        }
+        lock.lock();
+        Table table = tableCache.get(vacuum.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        return ("vacuum " + vacuum(Collections.singleton(table), 0)).getBytes();
+    }
+
+    // 对所有表做 VACUUM，返回 purge 的行数
+    int vacuumAll(int pauseMs) throws Exception {
+        return vacuum(null, pauseMs);
+    }
+
+    /**
+     * 回收死版本（被删除、被更新掉的旧行，回滚的插入）：按页遍历所有堆页找死版本，不经过索引，索引里少了哪一项都不影响找到它。
+     * 死版本先从所属的表（行开头记着，见 Table.ownerOf）的每个索引里删掉，再交给 VM purge，它引用的溢出链和它一起回收（少一个引用，见 DataManager.freeOverflow）。
+     * 索引删到一半出错时这一行还没有 purge，下一次 VACUUM 遍历到它时重新删一遍。
+     * 同一页上还会遇到重启之前留下的孤儿：purge 过还没来得及回收的版本，和恢复时撤销的插入（见 VersionManager.readOrphan），同样先删索引再回收。
+     *
+     * 旧库的行里没有记录是哪张表的，认不准就不回收，什么都不做。
+     * targets 为 null 时回收所有表的死版本，否则只回收属于 targets 的。
+     * 每遍历 VACUUM_BATCH 页 purge 一次，再停 pauseMs 毫秒，给前台的事务让路。返回 purge 和回收的孤儿的行数
+     */
+    private int vacuum(Collection<Table> targets, int pauseMs) throws Exception {
+        if(!rowOwner) {
+            return 0;
+        }
+        Map<Long, Table> tables = new HashMap<>();
+        lock.lock();
+        for (Table table : tableCache.values()) {
+            tables.put(table.uid, table);
+        }
+        lock.unlock();
+        vacuumLock.lock();
+        try {
+            // 先回收之前 purge 的，这次 purge 的如果已经没有事务在用，紧接着就能回收
+            vm.reclaim();
+            long horizon = vm.vacuumHorizon();
+            int count = 0;
+            List<Long> dead = new ArrayList<>();
+            List<List<Long>> overflows = new ArrayList<>();
+            int pageNumber = dm.getPageNumber();
+            for (int pgno = 2; pgno <= pageNumber; pgno ++) {
+                for (long uid : dm.listItems(pgno)) {
+                    if(metaUids.contains(uid)) {
+                        continue;
+                    }
+                    byte[] raw = vm.readDead(uid, horizon);
+                    List<Long> toasts = raw == null ? null : vacuumRow(tables, targets, uid, raw, true);
+                    if(toasts != null) {
+                        dead.add(uid);
+                        overflows.add(toasts);
+                    }
+                }
+                count += vacuumOrphans(tables, targets, pgno, DataItem.PURGED);
+                count += vacuumOrphans(tables, targets, pgno, DataItem.INVALID);
+                if(pgno % VACUUM_BATCH == 0 || pgno == pageNumber) {
+                    vm.purge(dead, overflows);
+                    count += dead.size();
+                    dead = new ArrayList<>();
+                    overflows = new ArrayList<>();
+                    if(pauseMs > 0) {
+                        Thread.sleep(pauseMs);
+                    }
+                }
+            }
+            vm.reclaim();
+            return count;
+        } finally {
+            vacuumLock.unlock();
+        }
+    }
+
+    /**
+     * 回收页 pgno 上 ValidFlag 是 state 的孤儿，返回回收的行数。
+     * 恢复时撤销的插入（INVALID）给溢出链加的引用也一起撤销了，它新写的溢出链也已经无效，只回收行本身，不能再减引用
+     */
+    private int vacuumOrphans(Map<Long, Table> tables, Collection<Table> targets, int pgno, byte state) throws Exception {
+        int count = 0;
+        for (long uid : dm.listItems(pgno, state)) {
+            if(metaUids.contains(uid)) {
+                continue;
+            }
+            byte[] raw = vm.readOrphan(uid);
+            List<Long> toasts = raw == null ? null : vacuumRow(tables, targets, uid, raw, state == DataItem.PURGED);
+            if(toasts != null) {
+                vm.reclaimOrphan(uid, toasts);
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 找出死版本 uid 属于的表，从它的索引里删掉 uid，返回要减引用的溢出链，withToasts 为 false 时是空列表。
+     * 这一行不能回收时返回 null：不属于 targets 或者不认识的表，或者有一个溢出链的指针指向的不是一条溢出链的第一块，宁可留着也不错放
+     */
+    private List<Long> vacuumRow(Map<Long, Table> tables, Collection<Table> targets, long uid, byte[] raw, boolean withToasts) throws Exception {
+        Table table = tables.get(Table.ownerOf(raw));
+        if(table == null || (targets != null && !targets.contains(table))) {
+            return null;
+        }
+        Map<String, Object> entry = table.parseRow(raw);
+        if(entry == null) {
+            return null;
+        }
+        List<Long> toasts = new ArrayList<>();
+        if(withToasts) {
+            for (Object v : entry.values()) {
+                if(v instanceof Toast) {
+                    if(!dm.isOverflow(((Toast)v).uid)) {
+                        return null;
+                    }
+                    toasts.add(((Toast)v).uid);
+                }
+            }
+        }
+        table.unindex(entry, uid);
+        return toasts;
+    }
+
+    @Override
+    public void startAutoVacuum(int seconds) {
+        new VacuumDaemon(this, seconds * 1000L).start();
+    }
+
     @Override
     public byte[] show(long xid) {
         lock.lock();
@@ -103,6 +277,7 @@ public class TableManagerImpl implements TableManager {
             Table table = Table.createTable(this, firstTableUid(), xid, create);
             updateFirstTableUid(table.uid);
             tableCache.put(create.tableName, table);
+            addMetaUids(table);
             if(!xidTableCache.containsKey(xid)) {
                 xidTableCache.put(xid, new ArrayList<>());
             }
@@ -0,0 +1,21 @@
+package com.strumcode.endb.backend.tbm;
+
+/**
+ * 存在溢出链里的字符串字段（见 DataManager.insertOverflow），行里只放一个指针：
+ * [Marker 4] [HeadUid 8] [Length 4]
+ * Marker 为 -1，普通字符串这个位置是非负的长度。Length 为值的字节数。
+ *
+ * 解析行时只得到 Toast，真正用到这个字段的值时才去读溢出链（见 Field.loadValue），只选别的字段不会碰溢出页。
+ */
+class Toast {
+    static final int MARKER = -1;
+    static final int SIZE = 16;
+
+    long uid;
+    int length;
+
+    Toast(long uid, int length) {
+        this.uid = uid;
+        this.length = length;
+    }
+}
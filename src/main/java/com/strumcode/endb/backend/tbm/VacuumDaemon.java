@@ -0,0 +1,45 @@
+package com.strumcode.endb.backend.tbm;
+
+import com.strumcode.endb.backend.utils.Panic;
+
+/**
+ * 后台 VACUUM 线程
+ * 每隔 intervalMs 对所有表做一次 VACUUM（见 TableManagerImpl.vacuumAll），扫描时每一批之后停 PAUSE_MS，不和前台抢资源。
+ * 上一轮 purge 的版本，要等当时活跃的事务结束，在之后的某一轮才真正回收。
+ * VACUUM 不等锁，也不插入数据，出错只能是数据或者磁盘出了问题，和其他后台线程一样停机（Panic），不带着坏掉的状态继续跑。
+ */
+class VacuumDaemon implements Runnable {
+    private static final int PAUSE_MS = 2;
+
+    private TableManagerImpl tbm;
+    private long intervalMs;
+
+    VacuumDaemon(TableManagerImpl tbm, long intervalMs) {
+        this.tbm = tbm;
+        this.intervalMs = intervalMs;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "vacuum");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                tbm.vacuumAll(PAUSE_MS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.strumcode.endb.backend.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * 在 byte[] 的任意偏移处原地读写基本类型，大端序，和 ByteBuffer 默认的字节序以及已有的文件格式一致。
+ * 不用 Arrays.copyOfRange 拷出一段再 ByteBuffer.wrap，也不用先转成小数组再 Bytes.concat，读写本身不分配对象。
+ * 页的数据是 ByteBuffer，直接用它带下标的 get/put 就是原地读写，不需要经过这里。
+ */
+public class Codec {
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short getShort(byte[] buf, int offset) {
+        return (short)SHORT.get(buf, offset);
+    }
+
+    public static void putShort(byte[] buf, int offset, short value) {
+        SHORT.set(buf, offset, value);
+    }
+
+    public static int getInt(byte[] buf, int offset) {
+        return (int)INT.get(buf, offset);
+    }
+
+    public static void putInt(byte[] buf, int offset, int value) {
+        INT.set(buf, offset, value);
+    }
+
+    public static long getLong(byte[] buf, int offset) {
+        return (long)LONG.get(buf, offset);
+    }
+
+    public static void putLong(byte[] buf, int offset, long value) {
+        LONG.set(buf, offset, value);
+    }
+}
@@ -1,48 +1,67 @@
 package com.strumcode.endb.backend.utils;
 
-import com.google.common.primitives.Bytes;
-
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-
 public class Parser {
 
+    // 编码只分配结果数组本身，解码在原数组上读，见 Codec
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[2];
+        Codec.putShort(buf, 0, value);
+        return buf;
     }
 
     public static short parseShort(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 2);
-        return buffer.getShort();
+        return Codec.getShort(buf, 0);
+    }
+
+    public static short parseShort(byte[] buf, int offset) {
+        return Codec.getShort(buf, offset);
     }
 
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[4];
+        Codec.putInt(buf, 0, value);
+        return buf;
     }
 
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return Codec.getInt(buf, 0);
+    }
+
+    public static int parseInt(byte[] buf, int offset) {
+        return Codec.getInt(buf, offset);
     }
 
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return Codec.getLong(buf, 0);
+    }
+
+    public static long parseLong(byte[] buf, int offset) {
+        return Codec.getLong(buf, offset);
     }
 
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[8];
+        Codec.putLong(buf, 0, value);
+        return buf;
     }
 
     public static ParseStringRes parseString(byte[] raw) {
-        int length = parseInt(Arrays.copyOf(raw, 4));
-        String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
+        return parseString(raw, 0);
+    }
+
+    // 从 raw 的 offset 处解析 [StringLength][StringData]，next 是这一段的长度
+    public static ParseStringRes parseString(byte[] raw, int offset) {
+        int length = Codec.getInt(raw, offset);
+        String str = new String(raw, offset+4, length);
         return new ParseStringRes(str, length+4);
     }
 
     public static byte[] string2Byte(String str) {
-        byte[] l = int2Byte(str.length());
-        return Bytes.concat(l, str.getBytes());
+        byte[] data = str.getBytes();
+        byte[] raw = new byte[4 + data.length];
+        Codec.putInt(raw, 0, data.length);
+        System.arraycopy(data, 0, raw, 4, data.length);
+        return raw;
     }
 
     public static long str2Uid(String key) {
@@ -1,9 +1,9 @@
 package com.strumcode.endb.backend.vm;
 
-import com.google.common.primitives.Bytes;
 import com.strumcode.endb.backend.common.SubArray;
 import com.strumcode.endb.backend.dm.dataItem.DataItem;
-import com.strumcode.endb.backend.utils.Parser;
+import com.strumcode.endb.backend.tm.TransactionManagerImpl;
+import com.strumcode.endb.backend.utils.Codec;
 
 import java.util.Arrays;
 
@@ -24,6 +24,7 @@ public class Entry {
     private long uid;
 
     private DataItem dataItem;
+    private SubArray raw;                   // dataItem 的纯数据，加载时取一次，读 XMIN/XMAX 不再每次新建 SubArray
     private VersionManager vm;
 
     public static Entry newEntry(VersionManager vm, DataItem dataItem, long uid) {
@@ -33,6 +34,7 @@ public class Entry {
         Entry entry = new Entry();
         entry.uid = uid;
         entry.dataItem = dataItem;
+        entry.raw = dataItem.data();
         entry.vm = vm;
         return entry;
     }
@@ -42,10 +44,16 @@ public class Entry {
         return newEntry(vm, di, uid);
     }
 
+    // 从 DataItem 的纯数据里取出 data 部分，用于不经过缓存读到的数据项，见 VersionManager.readOrphan
+    public static byte[] unwrapEntryRaw(byte[] raw) {
+        return Arrays.copyOfRange(raw, OF_DATA, raw.length);
+    }
+
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
-        byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] raw = new byte[OF_DATA + data.length];
+        Codec.putLong(raw, OF_XMIN, xid);
+        System.arraycopy(data, 0, raw, OF_DATA, data.length);
+        return raw;
     }
 
     public void release() {
@@ -60,11 +68,11 @@ public class Entry {
     public byte[] data() {
         dataItem.rLock();
         try {
-            //Keypoint 注意这里返回的 sa，它是 dataItem 的纯数据，也就是说 这个纯数据的格式就是 Entry
-            SubArray sa = dataItem.data();
+            //Keypoint 注意这里的 sa，它是 dataItem 的纯数据，也就是说 这个纯数据的格式就是 Entry
+            SubArray sa = raw;
             byte[] data = new byte[sa.end - sa.start - OF_DATA];
             // 一个 Entry 有 [XMIN] [XMAX] [data]，这里就是只拷贝 data
-            System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);
+            sa.raw.get(sa.start+OF_DATA, data);
             return data;
         } finally {
             dataItem.rUnLock();
@@ -74,8 +82,7 @@ public class Entry {
     public long getXmin() {
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return raw.raw.getLong(raw.start+OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -84,8 +91,7 @@ public class Entry {
     public long getXmax() {
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return raw.raw.getLong(raw.start+OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
@@ -94,13 +100,17 @@ public class Entry {
     public void setXmax(long xid) {
         dataItem.before();
         try {
-            SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            raw.raw.putLong(raw.start+OF_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
     }
 
+    // VACUUM 回收死版本，之后 loadEntry 读不到它。标记成 PURGED 而不是 INVALID，重启之后还能认出它来，见 VersionManager.readOrphan
+    public void purge() {
+        dataItem.purge(TransactionManagerImpl.SUPER_XID);
+    }
+
     public long getUid() {
         return uid;
     }
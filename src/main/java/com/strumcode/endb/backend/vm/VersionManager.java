@@ -3,6 +3,8 @@ package com.strumcode.endb.backend.vm;
 import com.strumcode.endb.backend.dm.DataManager;
 import com.strumcode.endb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * VM 基于两段锁协议实现了调度序列的可串行化（多事务时事务间通过 2PL 实现串行），并实现了 MVCC 以消除读写阻塞。同时实现了两种隔离级别。
  * Version Manager 是事务和数据版本的管理核心。
@@ -10,12 +12,31 @@ import com.strumcode.endb.backend.tm.TransactionManager;
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    List<Long> insertBatch(long xid, List<byte[]> data) throws Exception;     // 一次插入多条记录，按顺序返回 uid，见 DataManager.insertBatch
     boolean delete(long xid, long uid) throws Exception;
+    int maxDataSize();                              // insert 能放下的最大记录，见 DataManager.maxItemSize
 
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
+    /**
+     * VACUUM 用到的几个操作，都不在事务中执行：
+     * vacuumHorizon 给出一个事务号，提交时事务号比它小的删除对所有活跃事务和以后的事务都可见；
+     * readDead 在 uid 是死版本（插入它的事务回滚了，或者删除它的事务已提交且早于 horizon）时返回它的内容，否则返回 null；
+     * purge 把死版本标记为无效，之后谁也读不到它们，但当前活跃的事务可能还拿着它们的 uid，空间要等这些事务都结束后由 reclaim 交给 DM 回收。
+     * overflows.get(i) 是 uids.get(i) 引用的溢出链（见 DataManager.insertOverflow），回收这个版本之后每一项减一个引用。
+     * 等待回收的版本只记在内存里，崩溃或者关闭之后留在页上的是 PURGED 的数据项（见 DataItem.PURGED），由 readOrphan 和 reclaimOrphan 回收：
+     * readOrphan 在 uid 是这样的孤儿（PURGED 或者恢复时撤销的插入，且不在本进程等待回收的版本中）时返回它的内容，否则返回 null。
+     * 孤儿都是重启之前留下的，现在的事务不可能拿着它们的 uid，reclaimOrphan 直接回收，overflows 同 purge。
+     */
+    long vacuumHorizon();
+    byte[] readDead(long uid, long horizon) throws Exception;
+    void purge(List<Long> uids, List<List<Long>> overflows) throws Exception;
+    int reclaim() throws Exception;                 // 返回回收的版本数
+    byte[] readOrphan(long uid) throws Exception;
+    void reclaimOrphan(long uid, List<Long> overflows) throws Exception;
+
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
@@ -7,8 +7,13 @@ import com.strumcode.endb.backend.tm.TransactionManager;
 import com.strumcode.endb.backend.tm.TransactionManagerImpl;
 import com.strumcode.endb.common.Error;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,24 +25,33 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;                               // 活跃事务列表，主要用于创建快照
-    Lock lock;
+    Lock lock;                                                              // 保证开启事务时拍下的快照和 activeTransaction 的增删互斥，单纯查询事务不需要加锁
     LockTable lt;
+    List<PurgedBatch> purged;                                               // purge 过、还没交给 DM 回收的版本，受 lock 保护
+    Set<Long> pending;                                                      // purged 中所有的 uid，readOrphan 用，受 lock 保护
+
+    // 一批 purge 过的版本和它们的溢出链，事务号不超过 fence 的事务都结束之后才能回收
+    static class PurgedBatch {
+        long fence;
+        List<Long> uids;
+        List<List<Long>> overflows;
+    }
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.purged = new ArrayList<>();
+        this.pending = new HashSet<>();
     }
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -66,9 +80,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -78,11 +90,29 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         return dm.insert(xid, raw);
     }
 
+    @Override
+    public int maxDataSize() {
+        return dm.maxItemSize() - Entry.wrapEntryRaw(0, new byte[0]).length;
+    }
+
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> data) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        List<byte[]> raws = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            raws.add(Entry.wrapEntryRaw(xid, d));
+        }
+        return dm.insertBatch(xid, raws);
+    }
+
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -152,9 +182,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if(t.err != null) {
@@ -197,6 +225,156 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         tm.abort(xid);
     }
 
+    @Override
+    public long vacuumHorizon() {
+        lock.lock();
+        try {
+            // 可重复读的事务看不到快照里的事务和比自己新的事务做的删除，取所有活跃事务和它们快照中最小的事务号
+            long horizon = Long.MAX_VALUE;
+            for (Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) continue;
+                horizon = Math.min(horizon, t.xid);
+                if(t.snapshot != null) {
+                    for (long x : t.snapshot.keySet()) {
+                        if(x != TransactionManagerImpl.SUPER_XID) {
+                            horizon = Math.min(horizon, x);
+                        }
+                    }
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] readDead(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(Visibility.isDead(tm, entry, horizon)) {
+                return entry.data();
+            }
+            return null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void purge(List<Long> uids, List<List<Long>> overflows) throws Exception {
+        if(uids.isEmpty()) {
+            return;
+        }
+        // 先记进 pending 再标记，页上一出现 PURGED，readOrphan 就知道它不是孤儿
+        lock.lock();
+        try {
+            pending.addAll(uids);
+        } finally {
+            lock.unlock();
+        }
+        for (long uid : uids) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    continue;
+                }
+                throw e;
+            }
+            try {
+                entry.purge();
+            } finally {
+                entry.release();
+            }
+        }
+        // Keypoint 索引项已经删掉了，但现在活跃的事务可能早就从索引里拿到了这些 uid，槽位被重用后它们会读到别的记录，所以要等它们结束
+        PurgedBatch batch = new PurgedBatch();
+        batch.uids = new ArrayList<>(uids);
+        batch.overflows = new ArrayList<>(overflows);
+        lock.lock();
+        try {
+            for (long xid : activeTransaction.keySet()) {
+                batch.fence = Math.max(batch.fence, xid);
+            }
+            purged.add(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int reclaim() throws Exception {
+        List<PurgedBatch> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            for (long xid : activeTransaction.keySet()) {
+                if(xid != TransactionManagerImpl.SUPER_XID) {
+                    oldest = Math.min(oldest, xid);
+                }
+            }
+            Iterator<PurgedBatch> it = purged.iterator();
+            while(it.hasNext()) {
+                PurgedBatch batch = it.next();
+                if(batch.fence < oldest) {
+                    ready.add(batch);
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        int count = 0;
+        for (PurgedBatch batch : ready) {
+            for (int i = 0; i < batch.uids.size(); i ++) {
+                long uid = batch.uids.get(i);
+                reclaimOrphan(uid, batch.overflows.get(i));
+                lock.lock();
+                try {
+                    pending.remove(uid);
+                } finally {
+                    lock.unlock();
+                }
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public byte[] readOrphan(long uid) throws Exception {
+        lock.lock();
+        try {
+            if(pending.contains(uid)) {
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        byte[] raw = dm.readInvalid(uid);
+        return raw == null ? null : Entry.unwrapEntryRaw(raw);
+    }
+
+    @Override
+    public void reclaimOrphan(long uid, List<Long> overflows) throws Exception {
+        // Keypoint 逐行先回收版本再给它的溢出链减引用：两步之间崩溃，最多漏掉这一行的溢出链；反过来，重启后孤儿还在，溢出链会被再减一次
+        dm.free(uid);
+        for (long o : overflows) {
+            dm.freeOverflow(o);
+        }
+    }
+
     public void releaseEntry(Entry entry) {
         super.release(entry.getUid());
     }
@@ -58,4 +58,14 @@ public class Visibility {
         return false;
     }
 
+    /**
+     * 对所有事务都不可见的版本：插入它的事务回滚了，或者删除它的事务已经提交，并且早于 horizon（见 VersionManager.vacuumHorizon）
+     */
+    public static boolean isDead(TransactionManager tm, Entry e, long horizon) {
+        long xmin = e.getXmin();
+        long xmax = e.getXmax();
+        if(tm.isAborted(xmin)) return true;
+        return xmax != 0 && xmax < horizon && tm.isCommitted(xmax);
+    }
+
 }
@@ -12,6 +12,9 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception InvalidPoolShareException = new RuntimeException("Invalid pool share!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception CompressionNotSupportedException = new RuntimeException("Page compression requires io channel!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -43,4 +46,7 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidAutoVacuumException = new RuntimeException("Invalid autovacuum interval!");
+    public static final Exception InvalidIoException = new RuntimeException("Invalid io mode!");
+    public static final Exception DirectIoNotSupportedException = new RuntimeException("Direct io is not supported by the file system!");
 }
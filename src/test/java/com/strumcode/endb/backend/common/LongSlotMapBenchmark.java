@@ -0,0 +1,106 @@
+package com.strumcode.endb.backend.common;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存命中路径上的簿记开销：一次 get 加一次 release，key 都已经在缓存里。
+ * hashMaps 是原来的三张 HashMap<Long, ...>（cache、references、getting），slotMap 是现在分段里的 LongSlotMap，
+ * abstractCache 是现在的 AbstractCache 完整的命中路径（分段锁、CLOCK 访问位都算在内）。
+ *
+ * mvn -B -Pbench test-compile exec:exec -Dbench.args="LongSlotMapBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LongSlotMapBenchmark {
+    private static final int KEYS = 4096;
+    private static final int MASK = KEYS - 1;
+
+    private long[] keys;
+    private int next;
+
+    private HashMap<Long, Object> cache;
+    private HashMap<Long, Integer> references;
+    private HashMap<Long, Boolean> getting;
+
+    private LongSlotMap map;
+
+    private AbstractCache<Object> resident;
+
+    @Setup
+    public void setUp() throws Exception {
+        // 和 uid、页号一样是比较大的 long，不落在 Long.valueOf 的缓存范围内
+        Random random = new Random(1);
+        keys = new long[KEYS];
+        for (int i = 0; i < KEYS; i ++) {
+            keys[i] = ((long)(random.nextInt(1 << 20) + 1024) << 32) | i;
+        }
+
+        cache = new HashMap<>();
+        references = new HashMap<>();
+        getting = new HashMap<>();
+        map = new LongSlotMap();
+        resident = new AbstractCache<Object>(KEYS * 2, true) {
+            @Override
+            protected Object getForCache(long key) {
+                return new Object();
+            }
+
+            @Override
+            protected void releaseForCache(Object obj) {
+            }
+        };
+        for (long key : keys) {
+            cache.put(key, new Object());
+            references.put(key, 0);
+            map.put(key, LongSlotMap.READY, new Object(), 0);
+            resident.get(key);
+            resident.release(key);
+        }
+    }
+
+    private long nextKey() {
+        return keys[next ++ & MASK];
+    }
+
+    @Benchmark
+    public Object hashMaps() {
+        long key = nextKey();
+        if(getting.containsKey(key)) {
+            return null;
+        }
+        Object obj = cache.get(key);
+        references.put(key, references.get(key) + 1);
+        references.put(key, references.get(key) - 1);
+        return obj;
+    }
+
+    @Benchmark
+    public Object slotMap() {
+        long key = nextKey();
+        int slot = map.find(key);
+        if(map.state(slot) != LongSlotMap.READY) {
+            return null;
+        }
+        map.setRefs(slot, map.refs(slot) + 1);
+        Object obj = map.value(slot);
+        slot = map.find(key);
+        map.setRefs(slot, map.refs(slot) - 1);
+        return obj;
+    }
+
+    @Benchmark
+    public Object abstractCache() throws Exception {
+        long key = nextKey();
+        Object obj = resident.get(key);
+        resident.release(key);
+        return obj;
+    }
+}
@@ -0,0 +1,92 @@
+package com.strumcode.endb.backend.common;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongSlotMapTest {
+
+    @Test
+    public void testPutFindRemove() {
+        LongSlotMap map = new LongSlotMap();
+        int slot = map.put(42, LongSlotMap.READY, "v", 1);
+        assertEquals(slot, map.find(42));
+        assertEquals(42, map.key(slot));
+        assertEquals("v", map.value(slot));
+        assertEquals(LongSlotMap.READY, map.state(slot));
+        assertEquals(1, map.refs(slot));
+        assertEquals(0, map.flags(slot));
+        map.setRefs(slot, 3);
+        map.setFlags(slot, (byte)1);
+        assertEquals(3, map.refs(map.find(42)));
+        assertEquals(1, map.flags(map.find(42)));
+
+        map.removeAt(slot);
+        assertEquals(-1, map.find(42));
+        assertEquals(0, map.size());
+        assertNull(map.value(slot));
+    }
+
+    @Test
+    public void testGrowKeepsEntries() {
+        LongSlotMap map = new LongSlotMap();
+        int initial = map.capacity();
+        for (long k = 0; k < 10000; k ++) {
+            map.put(k << 32, LongSlotMap.READY, k, (int)k);
+        }
+        assertTrue(map.capacity() > initial);
+        assertTrue(map.size() * 2 <= map.capacity());
+        for (long k = 0; k < 10000; k ++) {
+            int slot = map.find(k << 32);
+            assertTrue(slot >= 0);
+            assertEquals(k, map.value(slot));
+            assertEquals((int)k, map.refs(slot));
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.find(0));
+    }
+
+    // 随机插入、删除，和 HashMap 对照。删除用向后移动，探测链上后面的元素要挪过来，不能断链
+    @Test
+    public void testRandomAgainstHashMap() {
+        LongSlotMap map = new LongSlotMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random r = new Random(7);
+        for (int i = 0; i < 200000; i ++) {
+            long key = r.nextInt(2000);
+            int slot = map.find(key);
+            assertEquals(expected.containsKey(key), slot >= 0);
+            if(slot < 0) {
+                map.put(key, LongSlotMap.LOADING, null, i);
+                expected.put(key, i);
+            } else {
+                assertEquals((int)expected.get(key), map.refs(slot));
+                if(r.nextBoolean()) {
+                    map.removeAt(slot);
+                    expected.remove(key);
+                }
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        int n = 0;
+        for (int slot = 0; slot < map.capacity(); slot ++) {
+            if(map.state(slot) != LongSlotMap.EMPTY) {
+                assertEquals((int)expected.get(map.key(slot)), map.refs(slot));
+                n ++;
+            }
+        }
+        assertEquals(expected.size(), n);
+        Iterator<Long> it = expected.keySet().iterator();
+        while(it.hasNext()) {
+            map.removeAt(map.find(it.next()));
+            it.remove();
+        }
+        assertEquals(0, map.size());
+    }
+}
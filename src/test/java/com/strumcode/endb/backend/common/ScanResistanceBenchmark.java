@@ -0,0 +1,110 @@
+package com.strumcode.endb.backend.common;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 点查和全表扫描混在一起时点查的命中率：
+ * 缓冲池 CAPACITY 页，点查只落在其中一半大小的热点集合上，每次点查之间夹着 scanPerLookup 次扫描，扫描的页每次都是新的。
+ * twoQ 是现在的 AbstractCache（2Q 的 CLOCK 近似），lru 是按访问顺序驱逐的 LinkedHashMap，作为对照。
+ * 纯 LRU 下扫描的页一个个把热点页挤出去，2Q 下扫描的页只在冷区里互相替换。
+ *
+ * 命中率是 pointHits / (pointHits + pointMisses)，两个计数是各轮的总和：
+ * mvn -B -Pbench test-compile exec:exec -Dbench.args="ScanResistanceBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanResistanceBenchmark {
+    private static final int CAPACITY = 4096;
+    private static final int HOT = CAPACITY / 2;
+    private static final long SCAN_BASE = 1L << 40;
+
+    @Param({"twoQ", "lru"})
+    public String policy;
+
+    @Param({"1", "4"})
+    public int scanPerLookup;
+
+    private Random random;
+    private long scanKey;
+    private long loads;
+
+    private AbstractCache<Object> cache;
+    private LinkedHashMap<Long, Object> lru;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long pointHits;
+        public long pointMisses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pointHits = 0;
+            pointMisses = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        random = new Random(1);
+        scanKey = SCAN_BASE;
+        cache = new AbstractCache<Object>(CAPACITY, true) {
+            @Override
+            protected Object getForCache(long key) {
+                loads ++;
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Object obj) {
+            }
+        };
+        lru = new LinkedHashMap<Long, Object>(CAPACITY * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+    }
+
+    // 访问一页，返回是否命中
+    private boolean access(long key) throws Exception {
+        if("lru".equals(policy)) {
+            if(lru.get(key) != null) {
+                return true;
+            }
+            lru.put(key, key);
+            return false;
+        }
+        long before = loads;
+        cache.get(key);
+        cache.release(key);
+        return loads == before;
+    }
+
+    @Benchmark
+    public void lookupWithScan(Counters counters) throws Exception {
+        if(access(random.nextInt(HOT))) {
+            counters.pointHits ++;
+        } else {
+            counters.pointMisses ++;
+        }
+        for (int i = 0; i < scanPerLookup; i ++) {
+            access(scanKey ++);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.strumcode.endb.backend.dm;
+
+import com.strumcode.endb.backend.dm.page.PageOne;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import com.strumcode.endb.backend.tm.TransactionManager;
+import com.strumcode.endb.backend.tm.TransactionManagerImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class HighWaterMarkTest {
+    private static final long MEM = 1 << 24;
+    // PageOne 里特性标记的位置，PageOne 是文件的第一页，从偏移量 0 开始
+    private static final int OF_FEATURES = 116;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static int readFeatures(File db) throws IOException {
+        try(RandomAccessFile f = new RandomAccessFile(db, "r")) {
+            f.seek(OF_FEATURES);
+            return f.readInt();
+        }
+    }
+
+    // 把新建的库改成没有高水位的旧文件
+    private static void clearHwmFeature(File db) throws IOException {
+        int features = readFeatures(db);
+        assertTrue((features & PageOne.FEATURE_HWM) != 0);
+        try(RandomAccessFile f = new RandomAccessFile(db, "rw")) {
+            f.seek(OF_FEATURES);
+            f.writeInt(features & ~PageOne.FEATURE_HWM);
+        }
+    }
+
+    // 旧文件打开之后预分配了区段，正常关闭再打开，已分配的页数不能把预分配的空页算进去
+    @Test
+    public void testOldFileGetsHwmBeforePreallocating() throws Exception {
+        String path = new File(tmp.getRoot(), "t").getPath();
+        File db = new File(path + ".db");
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, PageCache.IO_CHANNEL, false, false, PageCache.DEFAULT_PAGE_SIZE, tm);
+        dm.close();
+        clearHwmFeature(db);
+
+        dm = DataManager.open(path, MEM, PageCache.IO_CHANNEL, tm);
+        assertTrue((readFeatures(db) & PageOne.FEATURE_HWM) != 0);
+        int before = dm.getPageNumber();
+        byte[] data = new byte[dm.maxItemSize()];
+        for (int i = 0; i < 10; i ++) {
+            dm.insert(TransactionManagerImpl.SUPER_XID, data);
+        }
+        int used = dm.getPageNumber();
+        assertTrue(used > before);
+        dm.close();
+        // 文件里有预分配出来的空页
+        assertTrue(db.length() / PageCache.DEFAULT_PAGE_SIZE > used);
+
+        dm = DataManager.open(path, MEM, PageCache.IO_CHANNEL, tm);
+        assertEquals(used, dm.getPageNumber());
+        dm.close();
+    }
+}
@@ -0,0 +1,207 @@
+package com.strumcode.endb.backend.dm;
+
+import com.strumcode.endb.backend.common.SubArray;
+import com.strumcode.endb.backend.dm.dataItem.DataItem;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import com.strumcode.endb.backend.tm.TransactionManager;
+import com.strumcode.endb.backend.tm.TransactionManagerImpl;
+import com.strumcode.endb.common.Error;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 崩溃用"不关闭就重新打开"模拟：第一个实例用 mmap，没有后台刷页的线程，也不会在关闭时写第一页的校验字节，
+ * 重新打开时第一页校验不过，走恢复流程
+ */
+public class RecoverTest {
+    private static final long MEM = 1 << 24;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path;
+    private TransactionManager tm;
+    private DataManager dm;
+    private DataManager reopened;
+
+    @Before
+    public void setUp() {
+        path = new File(tmp.getRoot(), "t").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, PageCache.IO_MMAP, false, false, PageCache.DEFAULT_PAGE_SIZE, tm);
+    }
+
+    @After
+    public void tearDown() {
+        if(reopened != null) {
+            reopened.close();
+        }
+    }
+
+    private DataManager reopen() {
+        TransactionManager tm2 = TransactionManager.open(path);
+        reopened = DataManager.open(path, MEM, PageCache.IO_CHANNEL, tm2);
+        return reopened;
+    }
+
+    private static byte[] value(int i, int length) {
+        byte[] raw = new byte[length];
+        Arrays.fill(raw, (byte)i);
+        raw[0] = (byte)(i >> 8);
+        return raw;
+    }
+
+    private static List<byte[]> values(int from, int count, int length) {
+        List<byte[]> data = new ArrayList<>();
+        for (int i = from; i < from + count; i ++) {
+            data.add(value(i, length));
+        }
+        return data;
+    }
+
+    // 回收过的槽位读出来是 NullEntryException，插入被撤销的数据项是无效的（null）
+    private static byte[] readOrNull(DataManager dm, long uid) throws Exception {
+        DataItem di;
+        try {
+            di = dm.read(uid);
+        } catch(RuntimeException e) {
+            assertSame(Error.NullEntryException, e);
+            return null;
+        }
+        if(di == null) {
+            return null;
+        }
+        try {
+            SubArray sa = di.data();
+            byte[] raw = new byte[sa.end - sa.start];
+            sa.raw.get(sa.start, raw);
+            return raw;
+        } finally {
+            di.release();
+        }
+    }
+
+    private static void update(DataManager dm, long xid, long uid, byte[] raw) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            SubArray sa = di.data();
+            sa.raw.put(sa.start, raw);
+            di.after(xid);
+        } finally {
+            di.release();
+        }
+    }
+
+    @Test
+    public void testBatchRedoAndUndo() throws Exception {
+        long committed = tm.begin();
+        // 一页放不下，拆成几条批量插入日志
+        List<byte[]> committedData = values(0, 300, 100);
+        List<Long> committedUids = dm.insertBatch(committed, committedData);
+        tm.commit(committed);
+
+        long active = tm.begin();
+        List<Long> activeUids = dm.insertBatch(active, values(1000, 300, 100));
+        long single = dm.insert(active, value(2000, 50));
+
+        DataManager dm = reopen();
+        for (int i = 0; i < committedUids.size(); i ++) {
+            assertArrayEquals(committedData.get(i), readOrNull(dm, committedUids.get(i)));
+        }
+        for (long uid : activeUids) {
+            assertNull(readOrNull(dm, uid));
+        }
+        assertNull(readOrNull(dm, single));
+    }
+
+    @Test
+    public void testUpdateRedoAndUndo() throws Exception {
+        long xid = tm.begin();
+        long a = dm.insert(xid, value(1, 64));
+        long b = dm.insert(xid, value(2, 64));
+        tm.commit(xid);
+
+        long committed = tm.begin();
+        update(dm, committed, a, value(3, 64));
+        tm.commit(committed);
+        long active = tm.begin();
+        update(dm, active, b, value(4, 64));
+
+        DataManager dm = reopen();
+        assertArrayEquals(value(3, 64), readOrNull(dm, a));
+        assertArrayEquals(value(2, 64), readOrNull(dm, b));
+    }
+
+    // 插入 -> 回收 -> 重用同一个槽位的插入，按日志顺序重放，留下的是重用之后的记录
+    @Test
+    public void testFreeRedoWithReuse() throws Exception {
+        long xid = tm.begin();
+        List<Long> uids = dm.insertBatch(xid, values(0, 10, 80));
+        tm.commit(xid);
+
+        dm.free(uids.get(3));
+        dm.free(uids.get(5));
+        long reuser = tm.begin();
+        long reused = dm.insert(reuser, value(100, 80));
+        assertEquals((long)uids.get(3), reused);
+        tm.commit(reuser);
+
+        DataManager dm = reopen();
+        assertArrayEquals(value(100, 80), readOrNull(dm, reused));
+        assertNull(readOrNull(dm, uids.get(5)));
+        for (int i : new int[] {0, 1, 2, 4, 6, 7, 8, 9}) {
+            assertArrayEquals(value(i, 80), readOrNull(dm, uids.get(i)));
+        }
+        // 回收的槽位恢复之后还能再用
+        long after = dm.insert(TransactionManagerImpl.SUPER_XID, value(101, 80));
+        assertEquals((long)uids.get(5), after);
+    }
+
+    // 重用槽位的事务没有提交，撤销它的插入之后槽位上不会回到回收前的记录
+    @Test
+    public void testFreeRedoWithActiveReuse() throws Exception {
+        long xid = tm.begin();
+        List<Long> uids = dm.insertBatch(xid, values(0, 10, 80));
+        tm.commit(xid);
+
+        dm.free(uids.get(7));
+        long active = tm.begin();
+        long reused = dm.insert(active, value(100, 80));
+        assertEquals((long)uids.get(7), reused);
+
+        DataManager dm = reopen();
+        assertNull(readOrNull(dm, reused));
+        for (int i = 0; i < 7; i ++) {
+            assertArrayEquals(value(i, 80), readOrNull(dm, uids.get(i)));
+        }
+    }
+
+    // 恢复过一次的库正常关闭后再打开，不再走恢复，内容不变
+    @Test
+    public void testRecoverThenCleanReopen() throws Exception {
+        long xid = tm.begin();
+        List<byte[]> data = values(0, 50, 120);
+        List<Long> uids = dm.insertBatch(xid, data);
+        tm.commit(xid);
+        dm.free(uids.get(0));
+
+        reopen().close();
+        reopened = null;
+        DataManager dm = reopen();
+        assertNull(readOrNull(dm, uids.get(0)));
+        for (int i = 1; i < uids.size(); i ++) {
+            assertArrayEquals(data.get(i), readOrNull(dm, uids.get(i)));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.strumcode.endb.backend.dm.page;
+
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SlottedPageTest {
+    private static final int PAGE_SIZE = 8192;
+    private static final int SLOT_SIZE = 4;
+
+    private static Page newPage() {
+        return new PageImpl(3, ByteBuffer.wrap(SlottedPage.initRaw(PAGE_SIZE, PageCache.POOL_HEAP)), null);
+    }
+
+    private static byte[] record(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte)seed);
+        return data;
+    }
+
+    private static short insert(Page pg, byte[] data, boolean canCompact) {
+        short slot = SlottedPage.reserve(pg, data.length, canCompact);
+        if(slot >= 0) {
+            SlottedPage.insert(pg, slot, data);
+        }
+        return slot;
+    }
+
+    private static byte[] read(Page pg, short slot, int length) {
+        short offset = SlottedPage.getOffset(pg, slot);
+        assertTrue(offset > 0);
+        byte[] data = new byte[length];
+        pg.getData().get(offset, data);
+        return data;
+    }
+
+    @Test
+    public void testReserveAssignsSlotsInOrder() {
+        Page pg = newPage();
+        assertEquals(SlottedPage.maxFreeSpace(PAGE_SIZE), SlottedPage.getFreeSpace(pg));
+        for (int i = 0; i < 3; i ++) {
+            int before = SlottedPage.getFreeSpace(pg);
+            assertEquals(i, insert(pg, record(100 + i, i + 1), false));
+            assertEquals(before - (100 + i) - SLOT_SIZE, SlottedPage.getFreeSpace(pg));
+        }
+        assertEquals(3, SlottedPage.getSlots(pg));
+        for (short i = 0; i < 3; i ++) {
+            assertArrayEquals(record(100 + i, i + 1), read(pg, i, 100 + i));
+        }
+        assertEquals(-1, SlottedPage.getOffset(pg, (short)3));
+    }
+
+    @Test
+    public void testFreedSlotIsReused() {
+        Page pg = newPage();
+        for (int i = 0; i < 3; i ++) {
+            insert(pg, record(50, i + 1), false);
+        }
+        SlottedPage.free(pg, (short)1);
+        assertEquals(-1, SlottedPage.getOffset(pg, (short)1));
+        // 空槽位优先重用
+        assertEquals(1, insert(pg, record(20, 9), false));
+        assertArrayEquals(record(50, 1), read(pg, (short)0, 50));
+        assertArrayEquals(record(20, 9), read(pg, (short)1, 20));
+        assertArrayEquals(record(50, 3), read(pg, (short)2, 50));
+    }
+
+    @Test
+    public void testFreedSpaceNeedsCompaction() {
+        Page pg = newPage();
+        short n = 0;
+        while(insert(pg, record(1000, n + 1), false) >= 0) {
+            n ++;
+        }
+        SlottedPage.free(pg, (short)1);
+        SlottedPage.free(pg, (short)2);
+        assertTrue(SlottedPage.getFreeSpace(pg) >= 1500);
+        assertTrue(SlottedPage.getContiguousFreeSpace(pg) < 1500);
+        assertEquals(-1, SlottedPage.reserve(pg, 1500, false));
+
+        short slot = insert(pg, record(1500, 99), true);
+        assertTrue(slot == 1 || slot == 2);
+        assertArrayEquals(record(1500, 99), read(pg, slot, 1500));
+        // 整理之后其他记录的槽位号不变，内容也不变
+        for (short i = 0; i < n; i ++) {
+            if(i != 1 && i != 2) {
+                assertArrayEquals(record(1000, i + 1), read(pg, i, 1000));
+            }
+        }
+    }
+
+    @Test
+    public void testCompactDropsTrailingEmptySlots() {
+        Page pg = newPage();
+        for (int i = 0; i < 4; i ++) {
+            insert(pg, record(30, i + 1), false);
+        }
+        SlottedPage.free(pg, (short)1);
+        SlottedPage.free(pg, (short)3);
+        int free = SlottedPage.getFreeSpace(pg);
+        SlottedPage.compact(pg);
+        assertEquals(3, SlottedPage.getSlots(pg));
+        assertEquals(-1, SlottedPage.getOffset(pg, (short)1));
+        assertEquals(SlottedPage.getFreeSpace(pg), SlottedPage.getContiguousFreeSpace(pg));
+        assertEquals(free + SLOT_SIZE, SlottedPage.getFreeSpace(pg));
+        assertArrayEquals(record(30, 1), read(pg, (short)0, 30));
+        assertArrayEquals(record(30, 3), read(pg, (short)2, 30));
+    }
+
+    @Test
+    public void testRecoverInsertIsIdempotent() {
+        Page pg = newPage();
+        SlottedPage.recoverInsert(pg, record(64, 7), (short)0);
+        int free = SlottedPage.getFreeSpace(pg);
+        SlottedPage.recoverInsert(pg, record(64, 7), (short)0);
+        assertEquals(free, SlottedPage.getFreeSpace(pg));
+        assertEquals(1, SlottedPage.getSlots(pg));
+        assertArrayEquals(record(64, 7), read(pg, (short)0, 64));
+    }
+
+    @Test
+    public void testRecoverInsertFillsSkippedSlots() {
+        Page pg = newPage();
+        SlottedPage.recoverInsert(pg, record(10, 5), (short)3);
+        assertEquals(4, SlottedPage.getSlots(pg));
+        for (short i = 0; i < 3; i ++) {
+            assertEquals(-1, SlottedPage.getOffset(pg, i));
+        }
+        assertArrayEquals(record(10, 5), read(pg, (short)3, 10));
+        // 跳过的槽位是空槽位，插入时优先用
+        assertEquals(0, insert(pg, record(10, 6), false));
+    }
+
+    @Test
+    public void testRecoverInsertReplacesRecordOfOtherLength() {
+        Page pg = newPage();
+        insert(pg, record(10, 1), false);
+        SlottedPage.recoverInsert(pg, record(40, 2), (short)0);
+        assertEquals(1, SlottedPage.getSlots(pg));
+        assertArrayEquals(record(40, 2), read(pg, (short)0, 40));
+    }
+
+    @Test
+    public void testRecoverFree() {
+        Page pg = newPage();
+        insert(pg, record(10, 1), false);
+        insert(pg, record(10, 2), false);
+        SlottedPage.recoverFree(pg, (short)0);
+        assertEquals(-1, SlottedPage.getOffset(pg, (short)0));
+        int free = SlottedPage.getFreeSpace(pg);
+        // 槽位已经空着、或者根本不存在时什么都不做
+        SlottedPage.recoverFree(pg, (short)0);
+        SlottedPage.recoverFree(pg, (short)5);
+        assertEquals(free, SlottedPage.getFreeSpace(pg));
+        assertArrayEquals(record(10, 2), read(pg, (short)1, 10));
+    }
+}
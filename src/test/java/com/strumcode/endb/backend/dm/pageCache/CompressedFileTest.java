@@ -0,0 +1,169 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedFileTest {
+    private static final int PAGE_SIZE = 8192;
+    private static final int PAGES = 64;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path;
+    private File dataFile;
+
+    @Before
+    public void setUp() throws IOException {
+        path = new File(tmp.getRoot(), "t").getPath();
+        dataFile = new File(path + ".db");
+        assertTrue(dataFile.createNewFile());
+    }
+
+    private CompressedFile create() throws IOException {
+        return CompressedFile.create(path, new SingleFile(dataFile, false), PAGE_SIZE);
+    }
+
+    private CompressedFile open() throws IOException {
+        return CompressedFile.open(path, new SingleFile(dataFile, false));
+    }
+
+    // 第 pgno 页的内容：有全 0 的、压缩得很好的、压不动的
+    private static byte[] page(int pgno, int version) {
+        byte[] page = new byte[PAGE_SIZE];
+        switch(pgno % 3) {
+            case 0:
+                break;
+            case 1:
+                for (int i = 0; i < PAGE_SIZE / 2; i ++) {
+                    page[i] = (byte)(pgno + version + i % 7);
+                }
+                break;
+            default:
+                new Random(pgno * 31L + version).nextBytes(page);
+        }
+        return page;
+    }
+
+    private static void writePage(CompressedFile f, int pgno, byte[] page) throws IOException {
+        assertEquals(PAGE_SIZE, f.write(ByteBuffer.wrap(page), (long)pgno * PAGE_SIZE));
+    }
+
+    private static byte[] readPage(CompressedFile f, int pgno) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+        assertEquals(PAGE_SIZE, f.read(buf, (long)pgno * PAGE_SIZE));
+        return buf.array();
+    }
+
+    @Test
+    public void testForceAndReopen() throws IOException {
+        CompressedFile f = create();
+        for (int i = 0; i < PAGES; i ++) {
+            writePage(f, i, page(i, 0));
+        }
+        for (int i = 0; i < PAGES; i ++) {
+            assertArrayEquals(page(i, 0), readPage(f, i));
+        }
+        f.close();
+
+        f = open();
+        assertEquals((long)PAGES * PAGE_SIZE, f.size());
+        for (int i = 0; i < PAGES; i ++) {
+            assertArrayEquals(page(i, 0), readPage(f, i));
+        }
+        assertEquals(-1, f.read(ByteBuffer.allocate(PAGE_SIZE), (long)PAGES * PAGE_SIZE));
+        f.close();
+        // 全 0 的页不占空间，压得好的页只占几个扇区
+        assertTrue(dataFile.length() < (long)PAGES * PAGE_SIZE / 2);
+    }
+
+    // 没有 force 的写不会覆盖 ".pmap" 里还指向的旧位置，崩溃后读到的是 force 时的内容
+    @Test
+    public void testUnforcedWritesKeepForcedPages() throws IOException {
+        CompressedFile f = create();
+        for (int i = 0; i < PAGES; i ++) {
+            writePage(f, i, page(i, 0));
+        }
+        f.force(false);
+        for (int i = 0; i < PAGES; i ++) {
+            writePage(f, i, page(i, 1));
+        }
+        writePage(f, PAGES, page(1, 1));
+
+        CompressedFile crashed = open();
+        assertEquals((long)PAGES * PAGE_SIZE, crashed.size());
+        for (int i = 0; i < PAGES; i ++) {
+            assertArrayEquals(page(i, 0), readPage(crashed, i));
+        }
+        crashed.close();
+    }
+
+    @Test
+    public void testRewritesReuseSpace() throws IOException {
+        CompressedFile f = create();
+        for (int i = 0; i < PAGES; i ++) {
+            writePage(f, i, page(i, 0));
+        }
+        f.force(false);
+        long first = dataFile.length();
+        for (int round = 1; round <= 20; round ++) {
+            for (int i = 0; i < PAGES; i ++) {
+                writePage(f, i, page(i, round));
+            }
+            f.force(false);
+        }
+        // 每一轮只多用上一轮的量：旧位置在 force 之后回收，合并成段之后能放下下一轮的页
+        assertTrue(dataFile.length() <= first * 3);
+        for (int i = 0; i < PAGES; i ++) {
+            assertArrayEquals(page(i, 20), readPage(f, i));
+        }
+        f.close();
+        f = open();
+        for (int i = 0; i < PAGES; i ++) {
+            assertArrayEquals(page(i, 20), readPage(f, i));
+        }
+        f.close();
+    }
+
+    @Test
+    public void testSetLengthAndReopen() throws IOException {
+        CompressedFile f = create();
+        for (int i = 0; i < PAGES; i ++) {
+            writePage(f, i, page(i, 0));
+        }
+        f.setLength((long)(PAGES / 2) * PAGE_SIZE);
+        f.setLength((long)PAGES * PAGE_SIZE);
+        f.close();
+
+        f = open();
+        assertEquals((long)PAGES * PAGE_SIZE, f.size());
+        for (int i = 0; i < PAGES / 2; i ++) {
+            assertArrayEquals(page(i, 0), readPage(f, i));
+        }
+        byte[] zero = new byte[PAGE_SIZE];
+        for (int i = PAGES / 2; i < PAGES; i ++) {
+            assertTrue(Arrays.equals(zero, readPage(f, i)));
+        }
+        f.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnalignedWrite() throws IOException {
+        CompressedFile f = create();
+        try {
+            f.write(ByteBuffer.allocate(100), 0);
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓冲池满了之后的缺页：随机驱逐一个常驻的页，把另一页读进来。
+ * heapFrame 是原来的做法，每次缺页 ByteBuffer.allocate 一个新的页，被驱逐的页交给 GC；
+ * arenaFrame 是现在 PageCacheImpl 的做法，被驱逐的页框还给 FrameArena，缺页时从里面取。
+ * 常驻的页活得足够久，会被晋升到老年代，缓冲池越大，heapFrame 留给老年代的垃圾越多。
+ *
+ * 分配速率和 GC 次数、耗时看 -prof gc：
+ * mvn -B -Pbench test-compile exec:exec -Dbench.args="FrameArenaBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+public class FrameArenaBenchmark {
+    private static final int PAGE_SIZE = PageCache.DEFAULT_PAGE_SIZE;
+    private static final int FILE_PAGES = 8192;
+
+    // 常驻的页数，默认 64K 页（512MB）
+    @Param({"65536"})
+    public int poolPages;
+
+    private File file;
+    private FileChannel fc;
+    private Random random;
+    private ByteBuffer[] heapPool;
+    private ByteBuffer[] arenaPool;
+    private FrameArena arena;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("endb-bench", ".db");
+        fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Random fill = new Random(1);
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = 0; i < FILE_PAGES; i ++) {
+            fill.nextBytes(page);
+            fc.write(ByteBuffer.wrap(page), (long)i * PAGE_SIZE);
+        }
+        random = new Random(2);
+    }
+
+    // 两种方式各自只在自己的那一轮里占内存，互不影响
+    @Setup(Level.Iteration)
+    public void fillPool(org.openjdk.jmh.infra.BenchmarkParams params) {
+        if(params.getBenchmark().endsWith("heapFrame") && heapPool == null) {
+            heapPool = new ByteBuffer[poolPages];
+            for (int i = 0; i < poolPages; i ++) {
+                heapPool[i] = ByteBuffer.allocate(PAGE_SIZE);
+            }
+        }
+        if(params.getBenchmark().endsWith("arenaFrame") && arenaPool == null) {
+            arena = new FrameArena(PAGE_SIZE, poolPages);
+            arenaPool = new ByteBuffer[poolPages];
+            for (int i = 0; i < poolPages; i ++) {
+                arenaPool[i] = arena.take();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fc.close();
+        file.delete();
+    }
+
+    private long nextOffset() {
+        return (long)random.nextInt(FILE_PAGES) * PAGE_SIZE;
+    }
+
+    @Benchmark
+    public int heapFrame() throws IOException {
+        int victim = random.nextInt(poolPages);
+        ByteBuffer frame = ByteBuffer.allocate(PAGE_SIZE);
+        int n = fc.read(frame, nextOffset());
+        heapPool[victim] = frame;
+        return n;
+    }
+
+    @Benchmark
+    public int arenaFrame() throws IOException {
+        int victim = random.nextInt(poolPages);
+        arena.giveBack(arenaPool[victim]);
+        ByteBuffer frame = arena.take();
+        int n = fc.read(frame.clear(), nextOffset());
+        arenaPool[victim] = frame;
+        return n;
+    }
+}
@@ -0,0 +1,106 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LzTest {
+    private static final int PAGE_SIZE = 8192;
+
+    private static byte[] roundTrip(byte[] src) throws IOException {
+        byte[] out = new byte[src.length];
+        int len = Lz.compress(src, src.length, out);
+        assertTrue(len > 0 && len < src.length);
+        byte[] dst = new byte[src.length];
+        Lz.decompress(out, 0, len, dst, src.length);
+        return dst;
+    }
+
+    // 像数据页一样：前面是重复度高的记录，后面是空的
+    private static byte[] pageLike(Random r) {
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE / 2; i ++) {
+            page[i] = (byte)("row-" + (i / 16)).charAt(i % 4);
+        }
+        for (int i = 0; i < 64; i ++) {
+            page[r.nextInt(PAGE_SIZE)] = (byte)r.nextInt();
+        }
+        return page;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random r = new Random(1);
+        for (int i = 0; i < 100; i ++) {
+            byte[] page = pageLike(r);
+            assertArrayEquals(page, roundTrip(page));
+        }
+        assertArrayEquals(new byte[PAGE_SIZE], roundTrip(new byte[PAGE_SIZE]));
+    }
+
+    @Test
+    public void testLongRunsAndLiterals() throws IOException {
+        // 字面量和匹配长度都超过 15，要用到扩展字节，其中有正好 255 的
+        byte[] page = new byte[PAGE_SIZE];
+        Random r = new Random(2);
+        int pos = 0;
+        int[] lens = {14, 15, 16, 269, 270, 300, 1000};
+        for (int len : lens) {
+            for (int i = 0; i < len && pos < PAGE_SIZE; i ++) {
+                page[pos ++] = (byte)r.nextInt();
+            }
+            pos += len;
+        }
+        assertArrayEquals(page, roundTrip(page));
+    }
+
+    @Test
+    public void testIncompressible() {
+        byte[] page = new byte[PAGE_SIZE];
+        new Random(3).nextBytes(page);
+        assertEquals(-1, Lz.compress(page, PAGE_SIZE, new byte[PAGE_SIZE - 512]));
+    }
+
+    @Test
+    public void testCorruptInput() throws IOException {
+        byte[] page = pageLike(new Random(4));
+        byte[] out = new byte[PAGE_SIZE];
+        int len = Lz.compress(page, PAGE_SIZE, out);
+
+        assertBad(Arrays.copyOf(out, len), len - 1);                       // 截断
+        assertBad(Arrays.copyOf(out, len), len, PAGE_SIZE - 1);            // 解出来的长度不对
+        Random r = new Random(5);
+        for (int i = 0; i < 1000; i ++) {
+            byte[] bad = Arrays.copyOf(out, len);
+            bad[r.nextInt(len)] ^= (byte)(1 + r.nextInt(255));
+            byte[] dst = new byte[PAGE_SIZE];
+            try {
+                Lz.decompress(bad, 0, len, dst, PAGE_SIZE);
+            } catch(IOException e) {
+                // 损坏的数据只能抛 IOException，不能越界或者死循环
+            }
+        }
+        byte[] garbage = new byte[512];
+        for (int i = 0; i < 1000; i ++) {
+            r.nextBytes(garbage);
+            assertBad(garbage, garbage.length);
+        }
+    }
+
+    private static void assertBad(byte[] src, int len) {
+        assertBad(src, len, PAGE_SIZE);
+    }
+
+    private static void assertBad(byte[] src, int len, int dstLen) {
+        try {
+            Lz.decompress(src, 0, len, new byte[PAGE_SIZE], dstLen);
+            fail("corrupt input accepted");
+        } catch(IOException e) {
+            assertEquals("Bad compressed page", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.dm.logger.Logger;
+import com.strumcode.endb.backend.dm.page.Page;
+import com.strumcode.endb.backend.dm.page.PageOne;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MmapPageCacheTest {
+    private static final int PAGE_SIZE = PageCache.DEFAULT_PAGE_SIZE;
+    private static final int PAGES = 1024;                  // 8MB，8 个映射块
+    private static final int MEM_PAGES = 32;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void writePage(PageCache pc, int pgno, int value) throws Exception {
+        Page pg = pc.getPage(pgno);
+        pg.lock();
+        pg.getData().putInt(0, value);
+        pg.getData().putInt(PAGE_SIZE - 4, value);
+        pg.setDirty(true);
+        pg.unlock();
+        pg.release();
+    }
+
+    private static void checkPage(PageCache pc, int pgno, int value) throws Exception {
+        Page pg = pc.getPage(pgno);
+        assertEquals(value, pg.getData().getInt(0));
+        assertEquals(value, pg.getData().getInt(PAGE_SIZE - 4));
+        pg.release();
+    }
+
+    // 随机改很多页，写回过的页的副本数一直不超过缓存的页数；块退役、重新映射之后读到的都是最后写的内容
+    @Test
+    public void testCopiesBoundedByMem() throws Exception {
+        String path = new File(tmp.getRoot(), "t").getPath();
+        long mem = (long)MEM_PAGES * PAGE_SIZE;
+        PageCache pc = PageCache.create(path, mem, PageCache.IO_MMAP, false, false, PAGE_SIZE, Logger.create(path));
+        pc.newPage(PageOne.InitRaw(PAGE_SIZE));
+        for (int i = 1; i < PAGES; i ++) {
+            pc.newPage(new byte[PAGE_SIZE]);
+        }
+        // 一直引用着第一页，它所在的块退役之后也解除不了映射
+        Page pageOne = pc.getPage(1);
+
+        int[] values = new int[PAGES + 1];
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i ++) {
+            int pgno = 2 + random.nextInt(PAGES - 1);
+            values[pgno] = random.nextInt();
+            writePage(pc, pgno, values[pgno]);
+            assertTrue(((MmapPageCacheImpl)pc).getCopies() <= MEM_PAGES);
+        }
+        for (int pgno = 2; pgno <= PAGES; pgno ++) {
+            checkPage(pc, pgno, values[pgno]);
+        }
+        pageOne.release();
+        pc.close();
+
+        pc = PageCache.open(path, mem, PageCache.IO_MMAP, Logger.open(path));
+        for (int pgno = 2; pgno <= PAGES; pgno ++) {
+            checkPage(pc, pgno, values[pgno]);
+        }
+        pc.close();
+    }
+}
@@ -0,0 +1,84 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.dm.logger.Logger;
+import com.strumcode.endb.backend.dm.page.Page;
+import com.strumcode.endb.backend.dm.page.PageOne;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getPage + release 随机取页，比较 -io mmap 和默认的 -io channel：
+ * 缓冲池只有文件的 1/32，绝大部分访问是缺页；文件在操作系统的页缓存里，比较的是缺页路径本身的开销。
+ * write = true 时每次取到页都改一个字节并标脏，页被驱逐时要写回。
+ *
+ * mvn -B -Pbench test-compile exec:exec -Dbench.args="PageFetchBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageFetchBenchmark {
+    private static final int PAGE_SIZE = PageCache.DEFAULT_PAGE_SIZE;
+    private static final int PAGES = 8192;                  // 64MB
+    private static final long MEM = (long)PAGES / 32 * PAGE_SIZE;
+
+    @Param({"channel", "mmap"})
+    public String io;
+
+    @Param({"false", "true"})
+    public boolean write;
+
+    private File dir;
+    private PageCache pc;
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("endb-bench").toFile();
+        String path = new File(dir, "bench").getPath();
+        int mode = "mmap".equals(io) ? PageCache.IO_MMAP : PageCache.IO_CHANNEL;
+        pc = PageCache.create(path, MEM, mode, false, false, PAGE_SIZE, Logger.create(path));
+        pc.newPage(PageOne.InitRaw(PAGE_SIZE));
+        Random fill = new Random(1);
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = 1; i < PAGES; i ++) {
+            fill.nextBytes(page);
+            pc.newPage(page);
+        }
+        pc.close();
+        pc = PageCache.open(path, MEM, mode, Logger.open(path));
+        random = new Random(2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pc.close();
+        try(var files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public int fetch() throws Exception {
+        Page pg = pc.getPage(2 + random.nextInt(PAGES - 1));
+        try {
+            if(write) {
+                pg.lock();
+                pg.getData().put(100, (byte)random.nextInt());
+                pg.setDirty(true);
+                pg.unlock();
+            }
+            return pg.getData().get(PAGE_SIZE - 1);
+        } finally {
+            pg.release();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.strumcode.endb.backend.dm.pageCache;
+
+import com.strumcode.endb.backend.dm.logger.Logger;
+import com.strumcode.endb.backend.dm.page.Page;
+import com.strumcode.endb.backend.dm.page.PageOne;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多个线程同时随机读页：
+ * lockedRead 是原来的做法，持有 fileLock 先 position 再 read，所有线程的读盘排成一队；
+ * positionalRead 是现在 PageFile 的做法，带偏移量的 read，不加锁；
+ * pageCacheMiss 走现在 PageCacheImpl.getPage 完整的缺页路径，缓冲池只有文件的 1/32，绝大部分访问是缺页。
+ * direct = true 时用 O_DIRECT 打开，绕过操作系统的页缓存，每次读都真正落到磁盘上（冷缓存）。
+ *
+ * 用 -t 指定线程数，分别跑 1、4、8 个线程：
+ * mvn -B -Pbench test-compile exec:exec -Dbench.args="PositionalReadBenchmark -t 4"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PositionalReadBenchmark {
+    private static final int PAGE_SIZE = PageCache.DEFAULT_PAGE_SIZE;
+    private static final int PAGES = 8192;                  // 64MB
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private File dir;
+    private FileChannel fc;
+    private Lock fileLock;
+    private PageCache pc;
+
+    @State(Scope.Thread)
+    public static class Reader {
+        ByteBuffer buf = FrameArena.allocate(PAGE_SIZE);
+        Random random = new Random(Thread.currentThread().getId());
+
+        long nextOffset() {
+            return (long)random.nextInt(PAGES) * PAGE_SIZE;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("endb-bench").toFile();
+        String path = new File(dir, "bench").getPath();
+        pc = PageCache.create(path, (long)PAGES / 32 * PAGE_SIZE, direct ? PageCache.IO_DIRECT : PageCache.IO_CHANNEL,
+                false, false, PAGE_SIZE, Logger.create(path));
+        // 第一页是 PageOne，重新打开时要从里面读出页大小
+        pc.newPage(PageOne.InitRaw(PAGE_SIZE));
+        Random random = new Random(1);
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = 1; i < PAGES; i ++) {
+            random.nextBytes(page);
+            pc.newPage(page);
+        }
+        // 把新页都写下去，之后 fc 读到的和缓冲池缺页读到的是同一个文件
+        pc.close();
+        pc = PageCache.open(path, (long)PAGES / 32 * PAGE_SIZE, direct ? PageCache.IO_DIRECT : PageCache.IO_CHANNEL, Logger.open(path));
+        fc = PageFile.openChannel(new File(path + PageCacheImpl.DB_SUFFIX), direct);
+        fileLock = new ReentrantLock();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pc.close();
+        fc.close();
+        try(var files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public int lockedRead(Reader r) throws IOException {
+        r.buf.clear();
+        fileLock.lock();
+        try {
+            fc.position(r.nextOffset());
+            return fc.read(r.buf);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    @Benchmark
+    public int positionalRead(Reader r) throws IOException {
+        r.buf.clear();
+        return fc.read(r.buf, r.nextOffset());
+    }
+
+    @Benchmark
+    public int pageCacheMiss(Reader r) throws Exception {
+        Page pg = pc.getPage(1 + (int)(r.nextOffset() / PAGE_SIZE));
+        try {
+            return pg.getPageNumber();
+        } finally {
+            pg.release();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.strumcode.endb.backend.im;
+
+import com.strumcode.endb.backend.dm.DataManager;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import com.strumcode.endb.backend.tm.TransactionManager;
+import com.strumcode.endb.backend.utils.Parser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 索引点查的分配量，看 -prof gc 的 gc.alloc.rate.norm：
+ * search 是现在 BPlusTree.search 完整的路径，树有 KEYS 个 key，缓冲池放得下整棵树。访问节点本身不分配（见 NodeReader），
+ * 剩下的是返回的 List<Long>：ArrayList、它的数组和装箱的 uid；
+ * copyingDecode 和 inPlaceDecode 只比较在一个满的节点里找第一个大于 key 的项：
+ * 前者是原来的 Parser.parseLong(Arrays.copyOfRange(...))，每比较一个 key 拷一个数组，后者是现在 Node 的做法，直接按偏移量读页框。
+ *
+ * mvn -B -Pbench test-compile exec:exec -Dbench.args="BPlusTreeSearchBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BPlusTreeSearchBenchmark {
+    private static final int KEYS = 100000;
+    private static final int NODE_KEYS = Node.BALANCE_NUMBER * 2;
+
+    private File dir;
+    private TransactionManager tm;
+    private DataManager dm;
+    private BPlusTree tree;
+    private Random random;
+
+    private byte[] heapNode;
+    private ByteBuffer frameNode;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("endb-bench").toFile();
+        String path = new File(dir, "bench").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1L << 28, PageCache.IO_CHANNEL, false, false, PageCache.DEFAULT_PAGE_SIZE, tm);
+        tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        random = new Random(1);
+        for (int i = 0; i < KEYS; i ++) {
+            tree.insert(random.nextInt(KEYS) * 16L, i + 1);
+        }
+
+        // 满的节点，key 递增，布局同 Node
+        heapNode = new byte[Node.nodeSize(Node.BALANCE_NUMBER)];
+        frameNode = ByteBuffer.allocateDirect(heapNode.length);
+        for (int i = 0; i < NODE_KEYS; i ++) {
+            int of = Node.NODE_HEADER_SIZE + i * 16;
+            ByteBuffer.wrap(heapNode).putLong(of, i + 1).putLong(of + 8, i * 16L);
+            frameNode.putLong(of, i + 1).putLong(of + 8, i * 16L);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tree.close();
+        dm.close();
+        tm.close();
+        try(var files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public List<Long> search() throws Exception {
+        return tree.search(random.nextInt(KEYS) * 16L);
+    }
+
+    @Benchmark
+    public long copyingDecode() {
+        long key = random.nextInt(NODE_KEYS) * 16L + 8;
+        for (int i = 0; i < NODE_KEYS; i ++) {
+            int of = Node.NODE_HEADER_SIZE + i * 16;
+            long ik = Parser.parseLong(Arrays.copyOfRange(heapNode, of + 8, of + 16));
+            if(key < ik) {
+                return Parser.parseLong(Arrays.copyOfRange(heapNode, of, of + 8));
+            }
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public long inPlaceDecode() {
+        long key = random.nextInt(NODE_KEYS) * 16L + 8;
+        for (int i = 0; i < NODE_KEYS; i ++) {
+            int of = Node.NODE_HEADER_SIZE + i * 16;
+            if(key < frameNode.getLong(of + 8)) {
+                return frameNode.getLong(of);
+            }
+        }
+        return 0;
+    }
+}
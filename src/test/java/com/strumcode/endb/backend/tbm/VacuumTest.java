@@ -0,0 +1,156 @@
+package com.strumcode.endb.backend.tbm;
+
+import com.strumcode.endb.backend.dm.DataManager;
+import com.strumcode.endb.backend.dm.dataItem.DataItem;
+import com.strumcode.endb.backend.dm.pageCache.PageCache;
+import com.strumcode.endb.backend.parser.Parser;
+import com.strumcode.endb.backend.parser.statement.*;
+import com.strumcode.endb.backend.tm.TransactionManager;
+import com.strumcode.endb.backend.vm.VersionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 崩溃同 RecoverTest，用"不关闭就重新打开"模拟，第一个实例用 mmap
+ */
+public class VacuumTest {
+    private static final long MEM = 1 << 24;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path;
+    private TransactionManager tm;
+    private DataManager dm;
+    private TableManager tbm;
+
+    @Before
+    public void setUp() {
+        path = new File(tmp.getRoot(), "t").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, PageCache.IO_MMAP, false, false, PageCache.DEFAULT_PAGE_SIZE, tm);
+        tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    // 不关闭旧的实例就重新打开
+    private void reopen() {
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, PageCache.IO_CHANNEL, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+    }
+
+    private void close() {
+        dm.close();
+        tm.close();
+    }
+
+    private String exec(long xid, String sql) throws Exception {
+        Object stat = Parser.Parse(sql.getBytes());
+        byte[] res;
+        if(stat instanceof Create) {
+            res = tbm.create(xid, (Create)stat);
+        } else if(stat instanceof Insert) {
+            res = tbm.insert(xid, (Insert)stat);
+        } else if(stat instanceof Delete) {
+            res = tbm.delete(xid, (Delete)stat);
+        } else if(stat instanceof Select) {
+            res = tbm.read(xid, (Select)stat);
+        } else {
+            res = tbm.vacuum((Vacuum)stat);
+        }
+        return new String(res);
+    }
+
+    private long begin() {
+        return tbm.begin(new Begin()).xid;
+    }
+
+    private void autoCommit(String sql) throws Exception {
+        long xid = begin();
+        exec(xid, sql);
+        tbm.commit(xid);
+    }
+
+    private int countRows(String sql) throws Exception {
+        long xid = begin();
+        String res = exec(xid, sql);
+        tbm.commit(xid);
+        return res.isEmpty() ? 0 : res.split("\n").length;
+    }
+
+    private List<Long> listItems(byte state) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int pgno = 2; pgno <= dm.getPageNumber(); pgno ++) {
+            uids.addAll(dm.listItems(pgno, state));
+        }
+        return uids;
+    }
+
+    // purge 之后还有事务在运行，空间没来得及回收就关闭了，重启后的 VACUUM 回收这些版本
+    @Test
+    public void testPurgedVersionsSurviveRestart() throws Exception {
+        autoCommit("create table t id int32, name string (index id)");
+        for (int i = 0; i < 100; i ++) {
+            autoCommit("insert into t values " + i + " n" + i);
+        }
+        autoCommit("delete from t where id < 50");
+        long holder = begin();
+        assertEquals("vacuum 50", exec(0, "vacuum t"));
+        tbm.commit(holder);
+        assertEquals(50, listItems(DataItem.PURGED).size());
+        close();
+
+        reopen();
+        assertEquals(50, listItems(DataItem.PURGED).size());
+        assertEquals("vacuum 50", exec(0, "vacuum t"));
+        assertTrue(listItems(DataItem.PURGED).isEmpty());
+        assertEquals("vacuum 0", exec(0, "vacuum t"));
+        assertEquals(50, countRows("select * from t where id < 100"));
+    }
+
+    // 崩溃时没提交的插入在恢复时被撤销，留下的数据项和索引项由 VACUUM 回收
+    @Test
+    public void testUndoneInsertIsReclaimed() throws Exception {
+        autoCommit("create table t id int32 (index id)");
+        autoCommit("insert into t values 1");
+        long xid = begin();
+        exec(xid, "insert into t values 2");
+
+        reopen();
+        assertEquals(1, listItems(DataItem.INVALID).size());
+        assertEquals("vacuum 1", exec(0, "vacuum"));
+        assertTrue(listItems(DataItem.INVALID).isEmpty());
+        assertEquals(1, countRows("select * from t where id > 0"));
+    }
+
+    // 两张表的字段一样，b 的死版本按 a 的字段也能解析，vacuum a 不能碰它
+    @Test
+    public void testVacuumOnlyTouchesOwnerTable() throws Exception {
+        autoCommit("create table a id int32 (index id)");
+        autoCommit("create table b id int32 (index id)");
+        autoCommit("insert into a values 1");
+        autoCommit("insert into b values 1");
+        autoCommit("delete from b where id = 1");
+
+        assertEquals("vacuum 0", exec(0, "vacuum a"));
+        assertEquals(1, countRows("select * from a where id = 1"));
+        assertEquals("vacuum 1", exec(0, "vacuum b"));
+        assertEquals(1, countRows("select * from a where id = 1"));
+        assertEquals(0, countRows("select * from b where id = 1"));
+    }
+}